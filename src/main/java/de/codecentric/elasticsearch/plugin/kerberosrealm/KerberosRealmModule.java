@@ -0,0 +1,32 @@
+/*
+   Copyright 2015 codecentric AG
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package de.codecentric.elasticsearch.plugin.kerberosrealm;
+
+import org.elasticsearch.common.inject.AbstractModule;
+
+import de.codecentric.elasticsearch.plugin.kerberosrealm.realm.KerberosRealms;
+import de.codecentric.elasticsearch.plugin.kerberosrealm.rest.SessionCookieRestFilter;
+
+/**
+ */
+public class KerberosRealmModule extends AbstractModule {
+
+    @Override
+    protected void configure() {
+        bind(SessionCookieRestFilter.class).asEagerSingleton();
+        bind(KerberosRealms.class).asEagerSingleton();
+    }
+}
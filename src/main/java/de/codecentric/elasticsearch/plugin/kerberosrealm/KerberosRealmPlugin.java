@@ -18,11 +18,16 @@
 package de.codecentric.elasticsearch.plugin.kerberosrealm;
 
 import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.Collections;
 
 import org.elasticsearch.common.SuppressForbidden;
+import org.elasticsearch.common.component.LifecycleComponent;
+import org.elasticsearch.common.inject.Module;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.Loggers;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
 import org.elasticsearch.plugins.Plugin;
 import org.elasticsearch.rest.RestModule;
 import org.elasticsearch.shield.authc.AuthenticationModule;
@@ -30,6 +35,9 @@ import org.elasticsearch.shield.authc.AuthenticationModule;
 import de.codecentric.elasticsearch.plugin.kerberosrealm.realm.KerberosAuthenticationFailureHandler;
 import de.codecentric.elasticsearch.plugin.kerberosrealm.realm.KerberosRealm;
 import de.codecentric.elasticsearch.plugin.kerberosrealm.realm.KerberosRealmFactory;
+import de.codecentric.elasticsearch.plugin.kerberosrealm.realm.KerberosRealms;
+import de.codecentric.elasticsearch.plugin.kerberosrealm.rest.KerberosRealmStatsRestAction;
+import de.codecentric.elasticsearch.plugin.kerberosrealm.rest.KerberosUserGroupCacheClearRestAction;
 import de.codecentric.elasticsearch.plugin.kerberosrealm.rest.LoginInfoRestAction;
 import de.codecentric.elasticsearch.plugin.kerberosrealm.support.PropertyUtil;
 
@@ -58,9 +66,49 @@ public class KerberosRealmPlugin extends Plugin {
         return "codecentric AG Kerberos V5 Realm";
     }
     
+    @Override
+    public Collection<Module> nodeModules() {
+        if (client) {
+            return Collections.emptyList();
+        }
+        return Collections.<Module>singletonList(new KerberosRealmModule());
+    }
+
+    /**
+     * The realms are created by Shield and know nothing about the node, closing the node closes them through this
+     * service.
+     */
+    @Override
+    @SuppressWarnings("rawtypes")
+    public Collection<Class<? extends LifecycleComponent>> nodeServices() {
+        if (client) {
+            return Collections.emptyList();
+        }
+        return Collections.<Class<? extends LifecycleComponent>>singletonList(KerberosRealms.class);
+    }
+
+    /**
+     * Registers the fixed size "kerberos" thread pool on which the realm performs its blocking work. Size and
+     * queue can be overridden with the usual threadpool.kerberos.* node settings.
+     */
+    @Override
+    public Settings additionalSettings() {
+        if (client) {
+            return Settings.EMPTY;
+        }
+        final String prefix = "threadpool." + KerberosRealm.THREAD_POOL_NAME + ".";
+        return Settings.settingsBuilder()
+                .put(prefix + "type", "fixed")
+                .put(prefix + "size", 2 * EsExecutors.boundedNumberOfProcessors(settings))
+                .put(prefix + "queue_size", 1000)
+                .build();
+    }
+
     public void onModule(final RestModule module) {
         if (!client) {
             module.addRestAction(LoginInfoRestAction.class);
+            module.addRestAction(KerberosRealmStatsRestAction.class);
+            module.addRestAction(KerberosUserGroupCacheClearRestAction.class);
         }
     }
 
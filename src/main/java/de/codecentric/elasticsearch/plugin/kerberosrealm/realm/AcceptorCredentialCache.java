@@ -0,0 +1,119 @@
+package de.codecentric.elasticsearch.plugin.kerberosrealm.realm;
+
+import de.codecentric.elasticsearch.plugin.kerberosrealm.support.KrbConstants;
+import org.elasticsearch.common.logging.ESLogger;
+import org.ietf.jgss.GSSCredential;
+import org.ietf.jgss.GSSException;
+import org.ietf.jgss.GSSManager;
+
+import javax.security.auth.Subject;
+import javax.security.auth.login.LoginException;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+
+/**
+ * Shares one acceptor {@link GSSCredential} between all request threads of a realm. The credential is acquired
+ * once from the acceptor subject and transparently rebuilt when the subject was renewed (e.g. because the keytab
+ * changed) or when the credential is about to expire.
+ */
+public class AcceptorCredentialCache {
+
+    // rebuild a credential with a finite lifetime a bit before it actually expires
+    private static final long EXPIRY_MARGIN_MILLIS = 60 * 1000;
+
+    private final AcceptorSubjectHolder subjectHolder;
+    private final GSSManager manager = GSSManager.getInstance();
+    private final ESLogger logger;
+    private final Object buildLock = new Object();
+
+    private volatile CachedCredential current;
+
+    public AcceptorCredentialCache(AcceptorSubjectHolder subjectHolder, ESLogger esLogger) {
+        this.subjectHolder = subjectHolder;
+        logger = esLogger;
+    }
+
+    public GSSManager getManager() {
+        return manager;
+    }
+
+    /**
+     * @return a valid acceptor credential, building a new one only if the cached one is missing, expired or
+     * belongs to an outdated acceptor subject
+     */
+    public GSSCredential getCredential() throws LoginException, GSSException, PrivilegedActionException {
+        CachedCredential cached = current;
+        if (isUsable(cached)) {
+            return cached.credential;
+        }
+
+        synchronized (buildLock) {
+            cached = current;
+            if (isUsable(cached)) {
+                return cached.credential;
+            }
+            cached = build();
+            current = cached;
+            return cached.credential;
+        }
+    }
+
+    /**
+     * Drops the cached credential, the next call to {@link #getCredential()} will acquire a new one.
+     */
+    public void invalidate() {
+        current = null;
+    }
+
+    private boolean isUsable(CachedCredential cached) {
+        return cached != null
+                && cached.subjectGeneration == subjectHolder.generation()
+                && System.currentTimeMillis() < cached.expiresAtMillis;
+    }
+
+    private CachedCredential build() throws LoginException, GSSException, PrivilegedActionException {
+        // read the generation before the subject so that a concurrent renewal leads to a rebuild, never to
+        // a credential of an outdated subject being tagged with the new generation
+        subjectHolder.getSubject();
+        final long generation = subjectHolder.generation();
+        final GSSCredential credential = acquire(subjectHolder.getSubject());
+
+        final int remainingLifetime = credential.getRemainingAcceptLifetime(KrbConstants.SPNEGO);
+        if (remainingLifetime == 0) {
+            throw new GSSException(GSSException.CREDENTIALS_EXPIRED);
+        }
+
+        final long expiresAtMillis;
+        if (remainingLifetime == GSSCredential.INDEFINITE_LIFETIME) {
+            expiresAtMillis = Long.MAX_VALUE;
+        } else {
+            expiresAtMillis = System.currentTimeMillis() + Math.max(0, remainingLifetime * 1000L - EXPIRY_MARGIN_MILLIS);
+        }
+
+        logger.debug("Acquired acceptor credential for {} (subject generation {}, remaining lifetime {}s)", credential.getName(),
+                generation, remainingLifetime == GSSCredential.INDEFINITE_LIFETIME ? "indefinite" : remainingLifetime);
+        return new CachedCredential(credential, generation, expiresAtMillis);
+    }
+
+    GSSCredential acquire(Subject subject) throws PrivilegedActionException {
+        final PrivilegedExceptionAction<GSSCredential> action = new PrivilegedExceptionAction<GSSCredential>() {
+            @Override
+            public GSSCredential run() throws GSSException {
+                return manager.createCredential(null, GSSCredential.INDEFINITE_LIFETIME, KrbConstants.SPNEGO, GSSCredential.ACCEPT_ONLY);
+            }
+        };
+        return Subject.doAs(subject, action);
+    }
+
+    private static final class CachedCredential {
+        final GSSCredential credential;
+        final long subjectGeneration;
+        final long expiresAtMillis;
+
+        CachedCredential(GSSCredential credential, long subjectGeneration, long expiresAtMillis) {
+            this.credential = credential;
+            this.subjectGeneration = subjectGeneration;
+            this.expiresAtMillis = expiresAtMillis;
+        }
+    }
+}
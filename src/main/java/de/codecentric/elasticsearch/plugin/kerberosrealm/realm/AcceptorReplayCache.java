@@ -0,0 +1,173 @@
+package de.codecentric.elasticsearch.plugin.kerberosrealm.realm;
+
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory replay cache for the acceptor, checked in addition to the JDK replay cache unless that one is switched
+ * off explicitly.
+ * <p>
+ * Authenticators are identified by a fingerprint of the client principal and the cipher of the authenticator, see
+ * {@link TokenFingerprint#ofAuthenticator(String, byte[])}, and recorded only after the security context was
+ * established, so tokens which fail validation never take up room. Fingerprints are spread over lock stripes and,
+ * within a stripe, over time buckets which together cover the clock skew window. Buckets older than the skew window
+ * are dropped as a whole. Every stripe has a fixed entry ceiling, when it is reached new authenticators are refused
+ * until buckets expire: dropping live entries early would let their tokens be replayed.
+ */
+public class AcceptorReplayCache implements ToXContent {
+
+    private static final int STRIPES = 16;
+    // number of buckets covering the skew window, one more slot holds the bucket currently being filled
+    private static final int BUCKETS = 8;
+    private static final int SLOTS = BUCKETS + 1;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final long bucketMillis;
+    private final int maxEntriesPerStripe;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+    private final AtomicLong rejections = new AtomicLong();
+
+    /**
+     * Outcome of {@link #check(TokenFingerprint)}.
+     */
+    enum Result {
+        // not seen within the skew window, now recorded
+        FRESH,
+        // already seen within the skew window
+        REPLAY,
+        // not seen but the cache is full, so it could not be recorded
+        FULL
+    }
+
+    public AcceptorReplayCache(int maxEntries, int skewSeconds) {
+        this.bucketMillis = Math.max(1L, skewSeconds * 1000L / BUCKETS);
+        this.maxEntriesPerStripe = Math.max(1, maxEntries / STRIPES);
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Records the fingerprint of an authenticator of an established context and tells whether it was already seen
+     * within the skew window.
+     */
+    Result check(TokenFingerprint fingerprint) {
+        return check(fingerprint, System.currentTimeMillis());
+    }
+
+    Result check(TokenFingerprint fingerprint, long nowMillis) {
+        final Stripe stripe = stripes[fingerprint.stripe(STRIPES)];
+
+        final Result result = stripe.checkAndRecord(fingerprint, nowMillis / bucketMillis);
+        switch (result) {
+        case REPLAY:
+            hits.incrementAndGet();
+            break;
+        case FULL:
+            rejections.incrementAndGet();
+            break;
+        default:
+            misses.incrementAndGet();
+        }
+        return result;
+    }
+
+    public long hits() {
+        return hits.get();
+    }
+
+    public long misses() {
+        return misses.get();
+    }
+
+    public long expirations() {
+        return expirations.get();
+    }
+
+    public long rejections() {
+        return rejections.get();
+    }
+
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size;
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject("replay_cache");
+        builder.field("size", size());
+        builder.field("hits", hits());
+        builder.field("misses", misses());
+        builder.field("expirations", expirations());
+        builder.field("rejections", rejections());
+        builder.endObject();
+        return builder;
+    }
+
+    private final class Stripe {
+        // buckets[epoch % SLOTS] holds the fingerprints recorded during that epoch, bucketEpochs tells which one
+        @SuppressWarnings("unchecked")
+        private final Set<TokenFingerprint>[] buckets = new Set[SLOTS];
+        private final long[] bucketEpochs = new long[SLOTS];
+        private int size;
+
+        Stripe() {
+            for (int i = 0; i < SLOTS; i++) {
+                buckets[i] = new HashSet<>();
+                bucketEpochs[i] = -1;
+            }
+        }
+
+        synchronized Result checkAndRecord(TokenFingerprint fingerprint, long epoch) {
+            expire(epoch);
+
+            for (int i = 0; i < SLOTS; i++) {
+                if (bucketEpochs[i] >= 0 && buckets[i].contains(fingerprint)) {
+                    return Result.REPLAY;
+                }
+            }
+
+            if (size >= maxEntriesPerStripe) {
+                return Result.FULL;
+            }
+
+            final int index = (int) (epoch % SLOTS);
+            bucketEpochs[index] = epoch;
+            if (buckets[index].add(fingerprint)) {
+                size++;
+            }
+            return Result.FRESH;
+        }
+
+        private void expire(long epoch) {
+            for (int i = 0; i < SLOTS; i++) {
+                // a bucket stays live for at least BUCKETS full epochs, which is the whole skew window
+                if (bucketEpochs[i] >= 0 && epoch - bucketEpochs[i] > BUCKETS) {
+                    clear(i);
+                }
+            }
+        }
+
+        private void clear(int index) {
+            final int removed = buckets[index].size();
+            buckets[index].clear();
+            bucketEpochs[index] = -1;
+            size -= removed;
+            expirations.addAndGet(removed);
+        }
+    }
+}
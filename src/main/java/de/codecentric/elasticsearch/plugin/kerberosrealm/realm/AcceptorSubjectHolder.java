@@ -0,0 +1,137 @@
+package de.codecentric.elasticsearch.plugin.kerberosrealm.realm;
+
+import de.codecentric.elasticsearch.plugin.kerberosrealm.support.JaasKrbUtil;
+import de.codecentric.elasticsearch.plugin.kerberosrealm.support.KrbConstants;
+import org.elasticsearch.common.SuppressForbidden;
+import org.elasticsearch.common.logging.ESLogger;
+
+import javax.security.auth.Subject;
+import javax.security.auth.login.LoginException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Holds the long-lived acceptor {@link Subject} of a realm. The subject is logged in from the keytab once and then
+ * only replaced by {@link #relogin()}, which builds the new subject completely before swapping it in, so request
+ * threads never see a half initialized subject.
+ */
+@SuppressForbidden(
+        reason = "proper use of Paths.get() to resolve krb5.conf from system property"
+)
+public class AcceptorSubjectHolder {
+
+    private final String acceptorPrincipal;
+    private final Path acceptorKeyTabPath;
+    private final ESLogger logger;
+
+    private final AtomicReference<Subject> subject = new AtomicReference<>();
+    private final AtomicLong generation = new AtomicLong();
+    private final Object loginLock = new Object();
+
+    private volatile long lastLoginMillis;
+    private volatile long keytabModifiedMillis;
+    private volatile long krb5ConfModifiedMillis;
+
+    public AcceptorSubjectHolder(String acceptorPrincipal, Path acceptorKeyTabPath, ESLogger esLogger) {
+        this.acceptorPrincipal = acceptorPrincipal;
+        this.acceptorKeyTabPath = acceptorKeyTabPath;
+        logger = esLogger;
+    }
+
+    /**
+     * Returns the current acceptor subject, logging in from the keytab if this has not been done yet.
+     */
+    public Subject getSubject() throws LoginException {
+        final Subject current = subject.get();
+        if (current != null) {
+            return current;
+        }
+
+        synchronized (loginLock) {
+            final Subject loggedIn = subject.get();
+            if (loggedIn != null) {
+                return loggedIn;
+            }
+            return relogin();
+        }
+    }
+
+    /**
+     * Logs in from the keytab and publishes the new subject. The previous subject is not logged out because
+     * requests which are still in flight may use it.
+     */
+    public Subject relogin() throws LoginException {
+        synchronized (loginLock) {
+            final long keytabModified = lastModified(acceptorKeyTabPath);
+            final long krb5ConfModified = lastModified(krb5ConfPath());
+
+            final Subject fresh = login();
+
+            keytabModifiedMillis = keytabModified;
+            krb5ConfModifiedMillis = krb5ConfModified;
+            lastLoginMillis = System.currentTimeMillis();
+            subject.set(fresh);
+            final long gen = generation.incrementAndGet();
+            logger.debug("Acceptor {} logged in from keytab {} (generation {})", acceptorPrincipal, acceptorKeyTabPath, gen);
+            return fresh;
+        }
+    }
+
+    Subject login() throws LoginException {
+        return JaasKrbUtil.loginUsingKeytab(acceptorPrincipal, acceptorKeyTabPath, false);
+    }
+
+    /**
+     * @return true if the subject was never logged in, is older than maxAgeMillis or the keytab or krb5.conf
+     * changed on disk since the last login
+     */
+    public boolean needsRelogin(long maxAgeMillis) {
+        return needsRelogin(maxAgeMillis, System.currentTimeMillis());
+    }
+
+    boolean needsRelogin(long maxAgeMillis, long nowMillis) {
+        if (subject.get() == null) {
+            return true;
+        }
+        if (nowMillis - lastLoginMillis >= maxAgeMillis) {
+            return true;
+        }
+        return lastModified(acceptorKeyTabPath) != keytabModifiedMillis
+                || lastModified(krb5ConfPath()) != krb5ConfModifiedMillis;
+    }
+
+    /**
+     * @return a counter which is incremented each time a new subject is published
+     */
+    public long generation() {
+        return generation.get();
+    }
+
+    long lastLoginMillis() {
+        return lastLoginMillis;
+    }
+
+    public String getAcceptorPrincipal() {
+        return acceptorPrincipal;
+    }
+
+    private static Path krb5ConfPath() {
+        final String krb5Conf = System.getProperty(KrbConstants.KRB5_CONF_PROP);
+        return krb5Conf == null ? null : Paths.get(krb5Conf);
+    }
+
+    private static long lastModified(Path path) {
+        if (path == null) {
+            return 0L;
+        }
+        try {
+            return Files.getLastModifiedTime(path).toMillis();
+        } catch (IOException e) {
+            return 0L;
+        }
+    }
+}
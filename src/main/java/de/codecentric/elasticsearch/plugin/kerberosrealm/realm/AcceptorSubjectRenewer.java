@@ -0,0 +1,55 @@
+package de.codecentric.elasticsearch.plugin.kerberosrealm.realm;
+
+import org.elasticsearch.common.logging.ESLogger;
+
+import javax.security.auth.login.LoginException;
+
+/**
+ * Background task which re-logs in the acceptor subject before it gets stale, i.e. after the configured
+ * number of minutes or as soon as the keytab or krb5.conf changed.
+ */
+public class AcceptorSubjectRenewer implements Runnable {
+
+    private static final long MAX_CHECK_INTERVAL_MILLIS = 60 * 1000;
+
+    private final AcceptorSubjectHolder _subjectHolder;
+    private final int _reloginMinutes;
+    private final ESLogger logger;
+
+    public AcceptorSubjectRenewer(AcceptorSubjectHolder subjectHolder, int reloginMinutes, ESLogger esLogger) {
+        _subjectHolder = subjectHolder;
+        _reloginMinutes = reloginMinutes;
+        logger = esLogger;
+    }
+
+    public void run() {
+        final long reloginMilliseconds = _reloginMinutes * 60L * 1000L;
+        final long checkMilliseconds = checkIntervalMillis(reloginMilliseconds);
+        while (!Thread.interrupted()) {
+            try {
+                if (_subjectHolder.needsRelogin(reloginMilliseconds)) {
+                    _subjectHolder.relogin();
+                }
+            } catch (LoginException e) {
+                // keep the previous subject, it is most likely still valid
+                logger.warn("Unable to renew acceptor subject for {}", e, _subjectHolder.getAcceptorPrincipal());
+            } catch (RuntimeException e) {
+                logger.error("Unexpected error while renewing acceptor subject for {}", e, _subjectHolder.getAcceptorPrincipal());
+            }
+
+            try {
+                Thread.sleep(checkMilliseconds);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return how often the subject is checked, at least once a minute so that a changed keytab is picked up soon
+     * and at most once a second
+     */
+    static long checkIntervalMillis(long reloginMilliseconds) {
+        return Math.max(1000L, Math.min(reloginMilliseconds, MAX_CHECK_INTERVAL_MILLIS));
+    }
+}
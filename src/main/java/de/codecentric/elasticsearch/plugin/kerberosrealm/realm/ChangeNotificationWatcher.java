@@ -0,0 +1,239 @@
+package de.codecentric.elasticsearch.plugin.kerberosrealm.realm;
+
+import de.codecentric.elasticsearch.plugin.kerberosrealm.support.Sid;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.SearchResult;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Subscribes to changes of the containers which hold the groups of role_mapping.yml (and the groups nested in them),
+ * using the Active Directory change notification control or a generic persistent search, so that membership changes
+ * apply within seconds instead of at the next poll.
+ * <p>
+ * When a mapped or nested group changes only the mapped groups containing it are resolved again, and only the
+ * cached groups of its members, of the principals whose cached groups contain it and of a changed user itself are
+ * dropped. Every container gets its own subscription on a dedicated connection. A supervisor thread follows the
+ * containers of the current role mapping and renews subscriptions which ended; changes missed while a subscription
+ * was down are picked up by the regular refresh every ldap_cache_minutes, which keeps running as a fallback. A
+ * subscription whose container is no longer watched is closed right away, together with its connection.
+ */
+public class ChangeNotificationWatcher implements ToXContent {
+
+    private static final String[] ATTRIBUTES = new String[] { "objectClass", "objectSid", "member" };
+
+    private final LDAPHelper ldapHelper;
+    private final RoleMapper roleMapper;
+    private final UserGroupCache userGroupCache;
+    private final boolean persistentSearch;
+    private final int maxContainers;
+    private final int resubscribeSeconds;
+    private final long retryMillis;
+    private final String name;
+    private final ESLogger logger;
+    private final Thread supervisor;
+
+    // only modified by the supervisor thread, closed by shutdown
+    private final Map<String, Subscription> subscriptions = new ConcurrentHashMap<>();
+
+    private final AtomicLong notifications = new AtomicLong();
+    private final AtomicLong resolvedGroups = new AtomicLong();
+    private final AtomicLong invalidatedUsers = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    private volatile boolean shutdown;
+
+    /**
+     * @param userGroupCache may be null
+     */
+    public ChangeNotificationWatcher(LDAPHelper ldapHelper, RoleMapper roleMapper, UserGroupCache userGroupCache, boolean persistentSearch,
+            int maxContainers, int resubscribeSeconds, int retrySeconds, String name, ESLogger esLogger) {
+        this.ldapHelper = ldapHelper;
+        this.roleMapper = roleMapper;
+        this.userGroupCache = userGroupCache;
+        this.persistentSearch = persistentSearch;
+        this.maxContainers = maxContainers;
+        this.resubscribeSeconds = resubscribeSeconds;
+        this.retryMillis = Math.max(1, retrySeconds) * 1000L;
+        this.name = name;
+        logger = esLogger;
+
+        supervisor = new Thread(new Supervisor(), "kerberos-ldap-change-notification[" + name + "]");
+        supervisor.setDaemon(true);
+        supervisor.start();
+    }
+
+    public void shutdown() {
+        shutdown = true;
+        supervisor.interrupt();
+        for (final Subscription subscription : subscriptions.values()) {
+            subscription.watch.close();
+        }
+    }
+
+    private void changed(SearchResult result) throws NamingException {
+        notifications.incrementAndGet();
+        final String dn = result.getNameInNamespace();
+        final Attributes attributes = result.getAttributes();
+        final Attribute objectClass = attributes.get("objectClass");
+        final boolean group = objectClass != null && objectClass.contains("group");
+        if (!group && (objectClass == null || !objectClass.contains("user"))) {
+            return;
+        }
+        logger.debug("Directory reported change of {}", dn);
+
+        if (group) {
+            resolvedGroups.addAndGet(roleMapper.groupsChanged(Collections.singleton(dn)));
+        }
+
+        if (userGroupCache != null) {
+            Sid sid = null;
+            final Set<String> members = new HashSet<>();
+            if (group) {
+                final Attribute objectSid = attributes.get("objectSid");
+                if (objectSid != null) {
+                    sid = Sid.wrap((byte[]) objectSid.get());
+                }
+                // members of large groups are returned with range retrieval (member;range=0-1499) and are missing
+                // here, removed members are still found by their cached groups
+                final Attribute member = attributes.get("member");
+                if (member != null) {
+                    final NamingEnumeration<?> values = member.getAll();
+                    while (values.hasMore()) {
+                        members.add(values.next().toString().toLowerCase(Locale.ROOT));
+                    }
+                }
+            }
+            invalidatedUsers.addAndGet(userGroupCache.invalidateAffected(dn, sid, members));
+        }
+    }
+
+    /**
+     * @return the number of subscriptions currently receiving notifications, not counting ones which are connecting
+     * or failed and wait to be renewed
+     */
+    int openSubscriptions() {
+        int open = 0;
+        for (final Subscription subscription : subscriptions.values()) {
+            if (!subscription.ended && subscription.watch.isOpen()) {
+                open++;
+            }
+        }
+        return open;
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject("change_notification");
+        builder.field("type", persistentSearch ? "persistent_search" : "ad");
+        builder.field("subscriptions", openSubscriptions());
+        builder.field("notifications", notifications.get());
+        builder.field("resolved_groups", resolvedGroups.get());
+        builder.field("invalidated_users", invalidatedUsers.get());
+        builder.field("failures", failures.get());
+        builder.endObject();
+        return builder;
+    }
+
+    private final class Supervisor implements Runnable {
+
+        @Override
+        public void run() {
+            while (!shutdown && !Thread.currentThread().isInterrupted()) {
+                final Set<String> containers = roleMapper.watchedContainers(maxContainers);
+
+                final Iterator<Map.Entry<String, Subscription>> it = subscriptions.entrySet().iterator();
+                while (it.hasNext()) {
+                    final Subscription subscription = it.next().getValue();
+                    if (!containers.contains(subscription.container)) {
+                        subscription.watch.close();
+                        it.remove();
+                    } else if (subscription.ended) {
+                        it.remove();
+                    }
+                }
+
+                for (final String container : containers) {
+                    if (!subscriptions.containsKey(container) && !shutdown) {
+                        final Subscription subscription = new Subscription(container);
+                        subscriptions.put(container, subscription);
+                        final Thread thread = new Thread(subscription, "kerberos-ldap-change-notification[" + name + "][" + container + "]");
+                        thread.setDaemon(true);
+                        thread.start();
+                    }
+                }
+
+                try {
+                    Thread.sleep(retryMillis);
+                } catch (final InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private final class Subscription implements Runnable {
+        final String container;
+        final LDAPHelper.Watch watch = new LDAPHelper.Watch();
+        volatile boolean ended;
+        // the read timeout applies to the wait for the next notification
+        volatile long lastActivityMillis;
+
+        Subscription(String container) {
+            this.container = container;
+        }
+
+        @Override
+        public void run() {
+            lastActivityMillis = System.currentTimeMillis();
+            try {
+                if (shutdown) {
+                    return;
+                }
+                ldapHelper.watch(container, persistentSearch, resubscribeSeconds, ATTRIBUTES, new LDAPHelper.SearchResultHandler() {
+                    @Override
+                    public boolean handle(SearchResult result) throws NamingException {
+                        if (shutdown) {
+                            return false;
+                        }
+                        lastActivityMillis = System.currentTimeMillis();
+                        changed(result);
+                        return true;
+                    }
+                }, watch);
+            } catch (final NamingException e) {
+                if (shutdown || watch.isClosed()) {
+                    return;
+                }
+                if (LDAPConnectionPool.isTimeout(e, System.currentTimeMillis() - lastActivityMillis, resubscribeSeconds * 1000L)) {
+                    // nothing changed for resubscribe_seconds, renewed by the supervisor
+                    logger.debug("Change notification for {} timed out", container);
+                } else {
+                    failures.incrementAndGet();
+                    logger.warn("Change notification for {} failed: {}", container, e.toString());
+                }
+            } catch (final RuntimeException e) {
+                if (!shutdown && !watch.isClosed()) {
+                    failures.incrementAndGet();
+                    logger.warn("Change notification for {} failed: {}", container, e.toString());
+                }
+            } finally {
+                ended = true;
+            }
+        }
+    }
+}
@@ -23,8 +23,8 @@ public class FileWatcher implements Runnable{
     }
 
     public void run() {
-        try {
-            WatchService watcher = FileSystems.getDefault().newWatchService();
+        // closed when the thread is interrupted
+        try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
             Path dir = Paths.get(_roleMappingFilePath);
             // get the parent buecause we're asking for the actual role_mapping.yml file name
             dir.getParent().register(watcher, ENTRY_MODIFY);
@@ -0,0 +1,135 @@
+package de.codecentric.elasticsearch.plugin.kerberosrealm.realm;
+
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.ietf.jgss.GSSContext;
+import org.ietf.jgss.GSSException;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps acceptor contexts of SPNEGO handshakes which need more than one round so that the next leg continues
+ * the existing context instead of starting over.
+ * <p>
+ * Contexts are stored under a random continuation id which is returned to the client, a later leg only finds its
+ * context if the client echoes that id. The connection is deliberately not used as a key: behind a load balancer or
+ * proxy many clients share one remote address and could pick up each other's half finished context. Taking a context
+ * removes it, so a context is only ever used by one thread at a time.
+ * The store is bounded, contexts not continued within the TTL or pushed out by newer ones are disposed.
+ */
+public class GSSContextContinuationStore implements ToXContent {
+
+    private final int maxEntries;
+    private final long ttlMillis;
+
+    // insertion ordered and all entries share one TTL, so the eldest entry always expires first
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>();
+
+    private final AtomicLong stored = new AtomicLong();
+    private final AtomicLong resumed = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+
+    public GSSContextContinuationStore(int maxEntries, int ttlSeconds) {
+        this.maxEntries = Math.max(1, maxEntries);
+        this.ttlMillis = ttlSeconds * 1000L;
+    }
+
+    /**
+     * Stores an incomplete context.
+     *
+     * @return the continuation id the client has to send with the next leg
+     */
+    public String put(GSSContext context) {
+        final String id = Strings.randomBase64UUID();
+        final long now = System.currentTimeMillis();
+        synchronized (this) {
+            expire(now);
+            while (entries.size() >= maxEntries) {
+                removeEldest();
+            }
+            entries.put(id, new Entry(context, now + ttlMillis));
+        }
+        stored.incrementAndGet();
+        return id;
+    }
+
+    /**
+     * Removes and returns the context of a handshake in progress.
+     *
+     * @return the context stored for the continuation id or null if there is none or the id is null
+     */
+    public GSSContext take(String continuationId) {
+        if (continuationId == null) {
+            return null;
+        }
+        final Entry entry;
+        synchronized (this) {
+            expire(System.currentTimeMillis());
+            entry = entries.remove(continuationId);
+        }
+        if (entry == null) {
+            return null;
+        }
+        resumed.incrementAndGet();
+        return entry.context;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject("continuations");
+        builder.field("size", size());
+        builder.field("stored", stored.get());
+        builder.field("resumed", resumed.get());
+        builder.field("expired", expired.get());
+        builder.endObject();
+        return builder;
+    }
+
+    private void expire(long now) {
+        final Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            final Entry entry = it.next().getValue();
+            if (entry.expiresAtMillis > now) {
+                break;
+            }
+            it.remove();
+            dispose(entry);
+            expired.incrementAndGet();
+        }
+    }
+
+    private void removeEldest() {
+        final Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        final Entry entry = it.next().getValue();
+        it.remove();
+        dispose(entry);
+        expired.incrementAndGet();
+    }
+
+    private static void dispose(Entry entry) {
+        try {
+            entry.context.dispose();
+        } catch (final GSSException e) {
+            // Ignore
+        }
+    }
+
+    private static final class Entry {
+        final GSSContext context;
+        final long expiresAtMillis;
+
+        Entry(GSSContext context, long expiresAtMillis) {
+            this.context = context;
+            this.expiresAtMillis = expiresAtMillis;
+        }
+    }
+}
@@ -0,0 +1,297 @@
+package de.codecentric.elasticsearch.plugin.kerberosrealm.realm;
+
+import com.google.common.collect.ListMultimap;
+import de.codecentric.elasticsearch.plugin.kerberosrealm.support.Sid;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The resolved role mapping as a compact graph: every group DN (mapped or nested) is stored once and identified by
+ * an int id, role names are identified by int ids as well, and the roles granted by every group are kept as a bitset
+ * of role ids in a single long array with one row per group. The groups nested in every mapped group are kept as
+ * CSR int arrays of group ids, the graph is the only copy of them in a published {@link RoleMappingSnapshot}.
+ * <p>
+ * A directory with many nested groups repeats the same long DNs and role names in every mapped group they are nested
+ * in. Looking up a DN is a probe of an open addressing table of ids, the roles of a user are the OR of the rows of
+ * its groups and the role names of every distinct result are cached, so {@link #resolveRoles} does not allocate.
+ */
+public final class GroupGraph {
+
+    // distinct role sets whose names are cached
+    private static final int ROLE_SET_CACHE_SIZE = 1024;
+    private static final ThreadLocal<long[]> SCRATCH = new ThreadLocal<>();
+
+    // group id -> DN, the mapped groups come first
+    private final String[] dns;
+    // the ids of the groups nested in mapped group m are nested[nestedStart[m]] to nested[nestedStart[m + 1] - 1]
+    private final int[] nestedStart;
+    private final int[] nested;
+    // open addressing table of group id + 1, 0 is a free slot
+    private final int[] table;
+    // role id -> role name
+    private final String[] roles;
+    // longs per role set
+    private final int words;
+    // the roles granted by group g (directly or through a mapped group it is nested in) are the bits of
+    // groupRoles[g * words] to groupRoles[g * words + words - 1]
+    private final long[] groupRoles;
+    // the roles of users mapped by principal name and of mapped groups by SID, only the roles a group is mapped to
+    // itself because a PAC already contains the transitive group membership
+    private final Map<String, long[]> userRoles;
+    private final Map<Sid, long[]> sidRoles;
+    private final RoleSetCache roleSets;
+
+    private GroupGraph(String[] dns, int[] nestedStart, int[] nested, int[] table, String[] roles, int words, long[] groupRoles,
+            Map<String, long[]> userRoles, Map<Sid, long[]> sidRoles) {
+        this.dns = dns;
+        this.nestedStart = nestedStart;
+        this.nested = nested;
+        this.table = table;
+        this.roles = roles;
+        this.words = words;
+        this.groupRoles = groupRoles;
+        this.userRoles = userRoles;
+        this.sidRoles = sidRoles;
+        this.roleSets = new RoleSetCache(roles, words, ROLE_SET_CACHE_SIZE);
+    }
+
+    /**
+     * Builds the graph of the mapped users and groups. The mapped groups get the ids 0 to mappedGroups() - 1 in
+     * iteration order.
+     */
+    static GroupGraph build(ListMultimap<String, String> users, Collection<RoleMapper.MappedGroup> mappedGroups) {
+        final Map<String, Integer> ids = new HashMap<>();
+        final Map<String, Integer> roleIds = new HashMap<>();
+        final int mapped = mappedGroups.size();
+
+        for (String role : users.values()) {
+            intern(roleIds, role);
+        }
+        // roles of every mapped group
+        final int[] mappedRoleStart = new int[mapped + 1];
+        int mappedRoleCount = 0;
+        int edges = 0;
+        for (RoleMapper.MappedGroup group : mappedGroups) {
+            mappedRoleCount += group.roles.size();
+            edges += group.nested.length;
+        }
+        final int[] mappedRoles = new int[mappedRoleCount];
+        int m = 0;
+        for (RoleMapper.MappedGroup group : mappedGroups) {
+            intern(ids, group.dn);
+            mappedRoleStart[m + 1] = mappedRoleStart[m];
+            for (String role : group.roles) {
+                mappedRoles[mappedRoleStart[m + 1]++] = intern(roleIds, role);
+            }
+            m++;
+        }
+
+        // edges from every mapped group to the groups nested in it, interned in a second pass so that the mapped
+        // groups get the lowest ids even if nested in each other
+        final int[] nestedStart = new int[mapped + 1];
+        final int[] nested = new int[edges];
+        final String[] dnOf = new String[ids.size() + edges];
+        for (Map.Entry<String, Integer> entry : ids.entrySet()) {
+            dnOf[entry.getValue()] = entry.getKey();
+        }
+        m = 0;
+        for (RoleMapper.MappedGroup group : mappedGroups) {
+            nestedStart[m + 1] = nestedStart[m];
+            for (int i = 0; i < group.nested.length; i++) {
+                final int id = intern(ids, group.nested[i]);
+                if (dnOf[id] == null) {
+                    dnOf[id] = group.nested[i];
+                }
+                nested[nestedStart[m + 1]++] = id;
+            }
+            m++;
+        }
+        final int groupCount = ids.size();
+        final String[] dns = Arrays.copyOf(dnOf, groupCount);
+
+        final String[] roles = new String[roleIds.size()];
+        for (Map.Entry<String, Integer> entry : roleIds.entrySet()) {
+            roles[entry.getValue()] = entry.getKey();
+        }
+        final int words = Math.max(1, (roles.length + 63) / 64);
+
+        // a mapped group grants its roles itself and to every group nested in it
+        final long[] groupRoles = new long[groupCount * words];
+        final Map<Sid, long[]> sidRoles = new HashMap<>();
+        final long[] own = new long[words];
+        m = 0;
+        for (RoleMapper.MappedGroup group : mappedGroups) {
+            Arrays.fill(own, 0L);
+            for (int r = mappedRoleStart[m]; r < mappedRoleStart[m + 1]; r++) {
+                own[mappedRoles[r] >>> 6] |= 1L << mappedRoles[r];
+            }
+            or(groupRoles, m, own, words);
+            for (int e = nestedStart[m]; e < nestedStart[m + 1]; e++) {
+                or(groupRoles, nested[e], own, words);
+            }
+            if (group.sid != null) {
+                final long[] sidBits = sidRoles.get(group.sid);
+                if (sidBits == null) {
+                    sidRoles.put(group.sid, own.clone());
+                } else {
+                    or(sidBits, 0, own, words);
+                }
+            }
+            m++;
+        }
+
+        final Map<String, long[]> userRoles = new HashMap<>();
+        for (String user : users.keySet()) {
+            final long[] bits = new long[words];
+            for (String role : users.get(user)) {
+                final int id = roleIds.get(role);
+                bits[id >>> 6] |= 1L << id;
+            }
+            userRoles.put(user, bits);
+        }
+
+        return new GroupGraph(dns, nestedStart, nested, buildTable(dns), roles, words, groupRoles, userRoles, sidRoles);
+    }
+
+    private static void or(long[] rows, int row, long[] bits, int words) {
+        final int offset = row * words;
+        for (int w = 0; w < words; w++) {
+            rows[offset + w] |= bits[w];
+        }
+    }
+
+    private static int intern(Map<String, Integer> ids, String value) {
+        Integer id = ids.get(value);
+        if (id == null) {
+            id = ids.size();
+            ids.put(value, id);
+        }
+        return id;
+    }
+
+    private static int[] buildTable(String[] dns) {
+        int capacity = 2;
+        while (capacity < dns.length * 2) {
+            capacity <<= 1;
+        }
+        final int[] table = new int[capacity];
+        final int mask = capacity - 1;
+        for (int id = 0; id < dns.length; id++) {
+            int slot = hash(dns[id]) & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = id + 1;
+        }
+        return table;
+    }
+
+    private static int hash(String value) {
+        final int h = value.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @return the roles of the user: those it is mapped to by principal name and those of its groups, given by DN
+     * or by SID (either may be null). The array is shared and must not be modified.
+     */
+    public String[] resolveRoles(String user, List<String> groups, List<Sid> groupSids) {
+        long[] bits = SCRATCH.get();
+        if (bits == null || bits.length < words) {
+            bits = new long[words];
+            SCRATCH.set(bits);
+        } else {
+            Arrays.fill(bits, 0, words, 0L);
+        }
+
+        final long[] mappedUserRoles = userRoles.get(user);
+        if (mappedUserRoles != null) {
+            or(bits, 0, mappedUserRoles, words);
+        }
+        if (groups != null) {
+            for (int i = 0; i < groups.size(); i++) {
+                final int group = id(groups.get(i));
+                if (group >= 0) {
+                    final int offset = group * words;
+                    for (int w = 0; w < words; w++) {
+                        bits[w] |= groupRoles[offset + w];
+                    }
+                }
+            }
+        }
+        if (groupSids != null) {
+            for (int i = 0; i < groupSids.size(); i++) {
+                final long[] sidBits = sidRoles.get(groupSids.get(i));
+                if (sidBits != null) {
+                    or(bits, 0, sidBits, words);
+                }
+            }
+        }
+        return roleSets.get(bits);
+    }
+
+    /**
+     * @return the id of the group or -1 if it is neither mapped nor nested in a mapped group
+     */
+    public int id(String dn) {
+        final int mask = table.length - 1;
+        int slot = hash(dn) & mask;
+        int entry;
+        while ((entry = table[slot]) != 0) {
+            if (dns[entry - 1].equals(dn)) {
+                return entry - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    public int size() {
+        return dns.length;
+    }
+
+    public String dn(int group) {
+        return dns[group];
+    }
+
+    /**
+     * @return the number of mapped groups, they have the lowest ids
+     */
+    public int mappedGroups() {
+        return nestedStart.length - 1;
+    }
+
+    /**
+     * @return the DNs of the groups nested in the mapped group, a new array of the DN instances of the graph
+     */
+    public String[] nestedGroups(int mappedGroup) {
+        final String[] groups = new String[nestedStart[mappedGroup + 1] - nestedStart[mappedGroup]];
+        for (int i = 0; i < groups.length; i++) {
+            groups[i] = dns[nested[nestedStart[mappedGroup] + i]];
+        }
+        return groups;
+    }
+
+    public int roleCount() {
+        return roles.length;
+    }
+
+    public String role(int role) {
+        return roles[role];
+    }
+
+    /**
+     * @return true if the group grants the role, directly or through a mapped group it is nested in
+     */
+    public boolean hasRole(int group, int role) {
+        return (groupRoles[group * words + (role >>> 6)] & (1L << role)) != 0;
+    }
+
+    int cachedRoleSets() {
+        return roleSets.size();
+    }
+}
@@ -19,9 +19,12 @@ package de.codecentric.elasticsearch.plugin.kerberosrealm.realm;
 
 import org.elasticsearch.ElasticsearchException;
 import org.elasticsearch.ElasticsearchSecurityException;
+import org.elasticsearch.ElasticsearchTimeoutException;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
 import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestStatus;
 import org.elasticsearch.shield.authc.AuthenticationToken;
 import org.elasticsearch.shield.authc.DefaultAuthenticationFailureHandler;
 import org.elasticsearch.transport.TransportMessage;
@@ -56,6 +59,10 @@ public class KerberosAuthenticationFailureHandler extends DefaultAuthenticationF
 
     @Override
     public ElasticsearchSecurityException exceptionProcessingRequest(final RestRequest request, final Exception e) {
+        final ElasticsearchSecurityException overloaded = overloaded(e);
+        if (overloaded != null) {
+            return overloaded;
+        }
         final ElasticsearchSecurityException se = super.exceptionProcessingRequest(request, e);
         String outToken = "";
         if (e instanceof ElasticsearchException) {
@@ -63,6 +70,7 @@ public class KerberosAuthenticationFailureHandler extends DefaultAuthenticationF
             if (kae.getHeader("kerberos_out_token") != null) {
                 outToken = " " + kae.getHeader("kerberos_out_token").get(0);
             }
+            addContinuationHeader(kae, se);
         }
 
         se.addHeader(KrbConstants.WWW_AUTHENTICATE, KrbConstants.NEGOTIATE + outToken);
@@ -87,6 +95,10 @@ public class KerberosAuthenticationFailureHandler extends DefaultAuthenticationF
 
     @Override
     public ElasticsearchSecurityException exceptionProcessingRequest(final TransportMessage message, final Exception e) {
+        final ElasticsearchSecurityException overloaded = overloaded(e);
+        if (overloaded != null) {
+            return overloaded;
+        }
         final ElasticsearchSecurityException se = super.exceptionProcessingRequest(message, e);
         String outToken = "";
 
@@ -95,6 +107,7 @@ public class KerberosAuthenticationFailureHandler extends DefaultAuthenticationF
             if (kae.getHeader("kerberos_out_token") != null) {
                 outToken = " " + kae.getHeader("kerberos_out_token").get(0);
             }
+            addContinuationHeader(kae, se);
         }
         se.addHeader(KrbConstants.WWW_AUTHENTICATE, KrbConstants.NEGOTIATE + outToken);
 
@@ -130,4 +143,28 @@ public class KerberosAuthenticationFailureHandler extends DefaultAuthenticationF
         return se;
     }
 
+    /**
+     * Passes the id of a pending multi-round handshake on to the client, the next leg can send it back to
+     * continue the stored context.
+     */
+    private static void addContinuationHeader(final ElasticsearchException source, final ElasticsearchSecurityException target) {
+        if (source.getHeader(KrbConstants.CONTINUATION_HEADER) != null) {
+            target.addHeader(KrbConstants.CONTINUATION_HEADER, source.getHeader(KrbConstants.CONTINUATION_HEADER).get(0));
+        }
+    }
+
+    /**
+     * The kerberos thread pool is saturated or the authentication timed out, this is not an authentication
+     * failure so there is no new challenge, the client should retry later.
+     */
+    private ElasticsearchSecurityException overloaded(final Exception e) {
+        if (e instanceof EsRejectedExecutionException) {
+            logger.debug("kerberos thread pool rejected authentication: {}", e.toString());
+            return new ElasticsearchSecurityException("Too many pending Kerberos authentications", RestStatus.TOO_MANY_REQUESTS, e);
+        }
+        if (e instanceof ElasticsearchTimeoutException) {
+            return new ElasticsearchSecurityException("Kerberos authentication timed out", RestStatus.SERVICE_UNAVAILABLE, e);
+        }
+        return null;
+    }
 }
@@ -25,6 +25,8 @@ import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.Loggers;
 import org.elasticsearch.shield.authc.AuthenticationToken;
 
+import de.codecentric.elasticsearch.plugin.kerberosrealm.support.Sid;
+
 public class KerberosAuthenticationToken implements AuthenticationToken {
 
     static final KerberosAuthenticationToken LIVENESS_TOKEN = new KerberosAuthenticationToken(new byte[]{1,2,3}, "LIVENESS_TOKEN");
@@ -32,12 +34,18 @@ public class KerberosAuthenticationToken implements AuthenticationToken {
     private byte[] outToken;
     private final String principal;
     private List<String> groups;
+    private final List<Sid> groupSids;
+    private final String[] roles;
+    private final boolean groupLookupFailed;
 
     public KerberosAuthenticationToken(final byte[] outToken, final String principal) {
         super();
         this.outToken = Objects.requireNonNull(outToken);
         this.principal = Objects.requireNonNull(principal);
         this.groups = new ArrayList<String>();
+        this.groupSids = new ArrayList<Sid>();
+        this.roles = null;
+        this.groupLookupFailed = false;
     }
 
     public KerberosAuthenticationToken(final byte[] outToken, final String principal, final List<String> groups2) {
@@ -45,6 +53,56 @@ public class KerberosAuthenticationToken implements AuthenticationToken {
         this.outToken = Objects.requireNonNull(outToken);
         this.principal = Objects.requireNonNull(principal);
         this.groups = groups2;
+        this.groupSids = new ArrayList<Sid>();
+        this.roles = null;
+        this.groupLookupFailed = false;
+    }
+
+    /**
+     * Token for a principal whose (transitive) group SIDs were taken from the PAC of the service ticket or
+     * from tokenGroups.
+     */
+    public KerberosAuthenticationToken(final byte[] outToken, final String principal, final List<String> groups,
+            final List<Sid> groupSids) {
+        super();
+        this.outToken = Objects.requireNonNull(outToken);
+        this.principal = Objects.requireNonNull(principal);
+        this.groups = groups;
+        this.groupSids = groupSids;
+        this.roles = null;
+        this.groupLookupFailed = false;
+    }
+
+    /**
+     * Token for a principal whose roles were already resolved, e.g. from a session cookie.
+     */
+    public KerberosAuthenticationToken(final byte[] outToken, final String principal, final String[] roles) {
+        super();
+        this.outToken = Objects.requireNonNull(outToken);
+        this.principal = Objects.requireNonNull(principal);
+        this.groups = new ArrayList<String>();
+        this.groupSids = new ArrayList<Sid>();
+        this.roles = Objects.requireNonNull(roles);
+        this.groupLookupFailed = false;
+    }
+
+    /**
+     * Token for a principal whose groups could not be looked up in the directory, it is authenticated with the
+     * roles mapped to the principal itself but must not be remembered in a session cookie.
+     */
+    static KerberosAuthenticationToken withFailedGroupLookup(final byte[] outToken, final String principal) {
+        return new KerberosAuthenticationToken(outToken, principal, new ArrayList<String>(), new ArrayList<Sid>(), true);
+    }
+
+    private KerberosAuthenticationToken(final byte[] outToken, final String principal, final List<String> groups,
+            final List<Sid> groupSids, final boolean groupLookupFailed) {
+        super();
+        this.outToken = Objects.requireNonNull(outToken);
+        this.principal = Objects.requireNonNull(principal);
+        this.groups = groups;
+        this.groupSids = groupSids;
+        this.roles = null;
+        this.groupLookupFailed = groupLookupFailed;
     }
 
     @Override
@@ -67,6 +125,24 @@ public class KerberosAuthenticationToken implements AuthenticationToken {
         return this.groups;
     }
 
+    public List<Sid> groupSids() {
+        return this.groupSids;
+    }
+
+    /**
+     * @return the already resolved roles or null if they have to be resolved from the groups
+     */
+    public String[] roles() {
+        return this.roles;
+    }
+
+    /**
+     * @return true if the groups are empty because the directory lookup failed, not because there are none
+     */
+    public boolean groupLookupFailed() {
+        return this.groupLookupFailed;
+    }
+
     @Override
     public String toString() {
         return "KerberosAuthenticationToken [principal=" + principal + ", credentials null?: " + (outToken == null) + "]";
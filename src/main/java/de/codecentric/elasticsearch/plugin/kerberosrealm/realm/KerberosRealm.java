@@ -18,7 +18,10 @@
  */
 package de.codecentric.elasticsearch.plugin.kerberosrealm.realm;
 
+import java.io.IOException;
 import java.io.Serializable;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
@@ -28,14 +31,24 @@ import java.security.PrivilegedAction;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
 import java.util.*;
-import javax.security.auth.Subject;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import javax.naming.NamingException;
 import javax.security.auth.login.LoginException;
-import javax.xml.bind.DatatypeConverter;
 
 import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.ElasticsearchTimeoutException;
 import org.elasticsearch.ExceptionsHelper;
 import org.elasticsearch.action.admin.cluster.node.liveness.LivenessRequest;
 import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.transport.TransportAddress;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.env.Environment;
 import org.elasticsearch.rest.RestRequest;
 import org.elasticsearch.shield.InternalSystemUser;
@@ -44,24 +57,29 @@ import org.elasticsearch.shield.authc.AuthenticationToken;
 import org.elasticsearch.shield.authc.Realm;
 import org.elasticsearch.shield.authc.RealmConfig;
 import org.elasticsearch.shield.authc.support.DnRoleMapper;
+import org.elasticsearch.threadpool.ThreadPool;
 import org.elasticsearch.transport.TransportMessage;
 import org.ietf.jgss.GSSContext;
-import org.ietf.jgss.GSSCredential;
 import org.ietf.jgss.GSSException;
-import org.ietf.jgss.GSSManager;
 import org.ietf.jgss.GSSName;
 
 import com.google.common.collect.Iterators;
 
-import de.codecentric.elasticsearch.plugin.kerberosrealm.support.JaasKrbUtil;
+import de.codecentric.elasticsearch.plugin.kerberosrealm.support.Base64Util;
+import de.codecentric.elasticsearch.plugin.kerberosrealm.support.HeaderUtil;
 import de.codecentric.elasticsearch.plugin.kerberosrealm.support.KrbConstants;
+import de.codecentric.elasticsearch.plugin.kerberosrealm.support.PacUtil;
+import de.codecentric.elasticsearch.plugin.kerberosrealm.support.PropertyUtil;
 import de.codecentric.elasticsearch.plugin.kerberosrealm.support.SettingConstants;
+import de.codecentric.elasticsearch.plugin.kerberosrealm.support.Sid;
+import de.codecentric.elasticsearch.plugin.kerberosrealm.support.SpnegoUtil;
 
 /**
  */
-public class KerberosRealm extends Realm<KerberosAuthenticationToken> {
+public class KerberosRealm extends Realm<KerberosAuthenticationToken> implements ToXContent {
 
     public static final String TYPE = "cc-kerberos";
+    public static final String THREAD_POOL_NAME = "kerberos";
 
     private final boolean stripRealmFromPrincipalName;
     private final String acceptorPrincipal;
@@ -72,15 +90,32 @@ public class KerberosRealm extends Realm<KerberosAuthenticationToken> {
 
     private int ldapCacheMinutes = SettingConstants.DEFAULT_LDAP_CACHE_MINUTES;
     private int maxNestedGroupDepth = SettingConstants.DEFAULT_MAX_NESTED_GROUP_DEPTH;
-    private int maxThreadsToUseToFindNestedGroups = SettingConstants.DEFAULT_MAX_THREADS_TO_USE_TO_FIND_NESTED_GROUPS;
+    private int acceptorReloginMinutes = SettingConstants.DEFAULT_ACCEPTOR_RELOGIN_MINUTES;
+    private int authTimeoutSeconds = SettingConstants.DEFAULT_AUTH_TIMEOUT_SECONDS;
 
     private final LDAPHelper ldapHelper;
     private final RoleMapper roleMapper;
     private final RoleCacheRefresher cacheRefresher;
     private final FileWatcher fileWatcher;
-
-    public KerberosRealm(final RealmConfig config) {
+    private final Thread cacheThread;
+    private final Thread fileWatcherThread;
+    // null in mock mode
+    private final Thread renewerThread;
+    private final AcceptorSubjectHolder acceptorSubject;
+    private final AcceptorCredentialCache acceptorCredentials;
+    private final SessionCookieManager sessionCookies;
+    private final AcceptorReplayCache replayCache;
+    private final GSSContextContinuationStore continuations;
+    private final NegativeAuthenticationCache negativeCache;
+    private final UserGroupCache userGroupCache;
+    private final ChangeNotificationWatcher changeNotifications;
+    private final boolean usePacGroups;
+    private final boolean useTokenGroups;
+    private final ThreadPool threadPool;
+
+    public KerberosRealm(final RealmConfig config, final ThreadPool threadPool) {
         super(TYPE, config);
+        this.threadPool = threadPool;
         stripRealmFromPrincipalName = config.settings().getAsBoolean(SettingConstants.STRIP_REALM_FROM_PRINCIPAL, true);
         acceptorPrincipal = config.settings().get(SettingConstants.ACCEPTOR_PRINCIPAL, null);
         final String acceptorKeyTab = config.settings().get(SettingConstants.ACCEPTOR_KEYTAB_PATH, null);
@@ -91,6 +126,17 @@ public class KerberosRealm extends Realm<KerberosAuthenticationToken> {
 
         env = new Environment(config.globalSettings());
         mockMode = config.settings().getAsBoolean("mock_mode", false);
+        usePacGroups = config.settings().getAsBoolean(SettingConstants.USE_PAC_GROUPS, true);
+
+        final String userGroupResolution = config.settings().get(SettingConstants.USER_GROUP_RESOLUTION,
+                SettingConstants.USER_GROUP_RESOLUTION_MEMBER_OF);
+        if (SettingConstants.USER_GROUP_RESOLUTION_TOKEN_GROUPS.equals(userGroupResolution)) {
+            useTokenGroups = true;
+        } else if (SettingConstants.USER_GROUP_RESOLUTION_MEMBER_OF.equals(userGroupResolution)) {
+            useTokenGroups = false;
+        } else {
+            throw new ElasticsearchException("Unknown {}: {}", SettingConstants.USER_GROUP_RESOLUTION, userGroupResolution);
+        }
 
         if (acceptorPrincipal == null) {
             throw new ElasticsearchException("Unconfigured (but required) property: {}", SettingConstants.ACCEPTOR_PRINCIPAL);
@@ -118,19 +164,135 @@ public class KerberosRealm extends Realm<KerberosAuthenticationToken> {
         }
 
         try {
-            maxThreadsToUseToFindNestedGroups = Integer.parseInt(config.settings().get(SettingConstants.MAX_THREADS_TO_USE_TO_FIND_NESTED_GROUPS, "50"));
+            acceptorReloginMinutes = Integer.parseInt(config.settings().get(SettingConstants.ACCEPTOR_RELOGIN_MINUTES, "60"));
         } catch (NumberFormatException e) {
-            logger.warn("Incorrect format for {}", SettingConstants.MAX_THREADS_TO_USE_TO_FIND_NESTED_GROUPS);
+            logger.warn("Incorrect format for {}", SettingConstants.ACCEPTOR_RELOGIN_MINUTES);
+        }
+
+        try {
+            authTimeoutSeconds = Integer.parseInt(config.settings().get(SettingConstants.AUTH_TIMEOUT_SECONDS, "30"));
+        } catch (NumberFormatException e) {
+            logger.warn("Incorrect format for {}", SettingConstants.AUTH_TIMEOUT_SECONDS);
+        }
+
+        if (mockMode) {
+            acceptorSubject = null;
+            acceptorCredentials = null;
+            renewerThread = null;
+        } else {
+            acceptorSubject = new AcceptorSubjectHolder(acceptorPrincipal, acceptorKeyTabPath, logger);
+            acceptorCredentials = new AcceptorCredentialCache(acceptorSubject, logger);
+            renewerThread = new Thread(new AcceptorSubjectRenewer(acceptorSubject, acceptorReloginMinutes, logger),
+                    "kerberos-acceptor-renewer[" + config.name() + "]");
+            renewerThread.setDaemon(true);
+            renewerThread.start();
+        }
+
+        if (config.settings().getAsBoolean(SettingConstants.SESSION_COOKIE_ENABLED, false)) {
+            int sessionCookieTtlMinutes = SettingConstants.DEFAULT_SESSION_COOKIE_TTL_MINUTES;
+            try {
+                sessionCookieTtlMinutes = Integer.parseInt(config.settings().get(SettingConstants.SESSION_COOKIE_TTL_MINUTES, "60"));
+            } catch (NumberFormatException e) {
+                logger.warn("Incorrect format for {}", SettingConstants.SESSION_COOKIE_TTL_MINUTES);
+            }
+            sessionCookies = new SessionCookieManager(config.settings().getAsArray(SettingConstants.SESSION_COOKIE_KEYS),
+                    sessionCookieTtlMinutes, logger);
+        } else {
+            sessionCookies = null;
+        }
+
+        final String replayCacheType = config.settings().get(SettingConstants.REPLAY_CACHE_TYPE, SettingConstants.REPLAY_CACHE_TYPE_JDK);
+        if (SettingConstants.REPLAY_CACHE_TYPE_MEMORY.equals(replayCacheType)) {
+            replayCache = new AcceptorReplayCache(
+                    config.settings().getAsInt(SettingConstants.REPLAY_CACHE_MAX_ENTRIES, SettingConstants.DEFAULT_REPLAY_CACHE_MAX_ENTRIES),
+                    config.settings().getAsInt(SettingConstants.REPLAY_CACHE_SKEW_SECONDS, SettingConstants.DEFAULT_REPLAY_CACHE_SKEW_SECONDS));
+            if (config.settings().getAsBoolean(SettingConstants.REPLAY_CACHE_DISABLE_JDK, false)) {
+                // applies to every Kerberos acceptor of the JVM, so only on request and never over an explicit value
+                logger.warn("Switching off the JDK replay cache for the whole JVM ({}=none)", KrbConstants.REPLAY_CACHE_PROP);
+                PropertyUtil.setSystemProperty(KrbConstants.REPLAY_CACHE_PROP, "none", false);
+            }
+        } else if (SettingConstants.REPLAY_CACHE_TYPE_JDK.equals(replayCacheType)) {
+            replayCache = null;
+        } else {
+            throw new ElasticsearchException("Unknown {}: {}", SettingConstants.REPLAY_CACHE_TYPE, replayCacheType);
+        }
+
+        if (!mockMode && config.settings().getAsBoolean(SettingConstants.CONTINUATION_ENABLED, true)) {
+            continuations = new GSSContextContinuationStore(
+                    config.settings().getAsInt(SettingConstants.CONTINUATION_MAX_ENTRIES, SettingConstants.DEFAULT_CONTINUATION_MAX_ENTRIES),
+                    config.settings().getAsInt(SettingConstants.CONTINUATION_TTL_SECONDS, SettingConstants.DEFAULT_CONTINUATION_TTL_SECONDS));
+        } else {
+            continuations = null;
+        }
+
+        if (config.settings().getAsBoolean(SettingConstants.NEGATIVE_CACHE_ENABLED, true)) {
+            negativeCache = new NegativeAuthenticationCache(
+                    config.settings().getAsInt(SettingConstants.NEGATIVE_CACHE_MAX_ENTRIES, SettingConstants.DEFAULT_NEGATIVE_CACHE_MAX_ENTRIES),
+                    config.settings().getAsInt(SettingConstants.NEGATIVE_CACHE_TTL_SECONDS, SettingConstants.DEFAULT_NEGATIVE_CACHE_TTL_SECONDS));
+        } else {
+            negativeCache = null;
         }
 
         ldapHelper = new LDAPHelper(config, logger);
-        roleMapper = new RoleMapper(roleMappingPath, ldapHelper, stripRealmFromPrincipalName, maxNestedGroupDepth, maxThreadsToUseToFindNestedGroups, logger);
+
+        if (config.settings().getAsBoolean(SettingConstants.USER_GROUP_CACHE_ENABLED, true)) {
+            userGroupCache = new UserGroupCache(new UserGroupCache.Loader() {
+                    @Override
+                    public UserGroupCache.UserGroups load(final String principal) throws Exception {
+                        return loadUserGroups(principal);
+                    }
+                },
+                config.settings().getAsInt(SettingConstants.USER_GROUP_CACHE_MAX_ENTRIES, SettingConstants.DEFAULT_USER_GROUP_CACHE_MAX_ENTRIES),
+                config.settings().getAsInt(SettingConstants.USER_GROUP_CACHE_TTL_SECONDS, SettingConstants.DEFAULT_USER_GROUP_CACHE_TTL_SECONDS),
+                config.settings().getAsInt(SettingConstants.USER_GROUP_CACHE_REFRESH_AHEAD_SECONDS,
+                        SettingConstants.DEFAULT_USER_GROUP_CACHE_REFRESH_AHEAD_SECONDS),
+                threadPool.executor(ThreadPool.Names.GENERIC));
+        } else {
+            userGroupCache = null;
+        }
+        final String roleMappingSync = config.settings().get(SettingConstants.ROLE_MAPPING_SYNC, SettingConstants.ROLE_MAPPING_SYNC_FULL);
+        final boolean incrementalSync;
+        if (SettingConstants.ROLE_MAPPING_SYNC_INCREMENTAL.equals(roleMappingSync)) {
+            incrementalSync = true;
+        } else if (SettingConstants.ROLE_MAPPING_SYNC_FULL.equals(roleMappingSync)) {
+            incrementalSync = false;
+        } else {
+            throw new ElasticsearchException("Unknown {}: {}", SettingConstants.ROLE_MAPPING_SYNC, roleMappingSync);
+        }
+        final double minSuccessRatio = config.settings().getAsDouble(SettingConstants.ROLE_MAPPING_MIN_SUCCESS_RATIO,
+                SettingConstants.DEFAULT_ROLE_MAPPING_MIN_SUCCESS_RATIO);
+        final Path[] dataFiles = env.dataFiles();
+        final Path syncStateFile = incrementalSync && dataFiles != null && dataFiles.length > 0
+                ? dataFiles[0].resolve("kerberos").resolve(config.name() + "_role_mapping_sync.json") : null;
+        roleMapper = new RoleMapper(roleMappingPath, ldapHelper, stripRealmFromPrincipalName, maxNestedGroupDepth,
+                incrementalSync, syncStateFile, minSuccessRatio,
+                TimeUnit.MINUTES.toMillis(config.settings().getAsInt(SettingConstants.ROLE_MAPPING_FULL_SYNC_MINUTES,
+                        SettingConstants.DEFAULT_ROLE_MAPPING_FULL_SYNC_MINUTES)),
+                config.settings().getAsInt(SettingConstants.ROLE_MAPPING_PARALLELISM, SettingConstants.DEFAULT_ROLE_MAPPING_PARALLELISM), logger);
+
+        final String changeNotification = config.settings().get(SettingConstants.CHANGE_NOTIFICATION, SettingConstants.CHANGE_NOTIFICATION_NONE);
+        if (SettingConstants.CHANGE_NOTIFICATION_NONE.equals(changeNotification)) {
+            changeNotifications = null;
+        } else if (SettingConstants.CHANGE_NOTIFICATION_AD.equals(changeNotification)
+                || SettingConstants.CHANGE_NOTIFICATION_PERSISTENT_SEARCH.equals(changeNotification)) {
+            changeNotifications = new ChangeNotificationWatcher(ldapHelper, roleMapper, userGroupCache,
+                    SettingConstants.CHANGE_NOTIFICATION_PERSISTENT_SEARCH.equals(changeNotification),
+                    config.settings().getAsInt(SettingConstants.CHANGE_NOTIFICATION_MAX_CONTAINERS,
+                            SettingConstants.DEFAULT_CHANGE_NOTIFICATION_MAX_CONTAINERS),
+                    config.settings().getAsInt(SettingConstants.CHANGE_NOTIFICATION_RESUBSCRIBE_SECONDS,
+                            SettingConstants.DEFAULT_CHANGE_NOTIFICATION_RESUBSCRIBE_SECONDS),
+                    config.settings().getAsInt(SettingConstants.CHANGE_NOTIFICATION_RETRY_SECONDS,
+                            SettingConstants.DEFAULT_CHANGE_NOTIFICATION_RETRY_SECONDS),
+                    config.name(), logger);
+        } else {
+            throw new ElasticsearchException("Unknown {}: {}", SettingConstants.CHANGE_NOTIFICATION, changeNotification);
+        }
 
         cacheRefresher = new RoleCacheRefresher(roleMapper, ldapCacheMinutes);
         fileWatcher = new FileWatcher(roleMappingPath, roleMapper, logger);
 
-        Thread cacheThread = new Thread(cacheRefresher);
-        Thread fileWatcherThread = new Thread(fileWatcher);
+        cacheThread = new Thread(cacheRefresher, "kerberos-role-cache-refresher[" + config.name() + "]");
+        fileWatcherThread = new Thread(fileWatcher, "kerberos-role-mapping-watcher[" + config.name() + "]");
         cacheThread.start();
         fileWatcherThread.start();
     }
@@ -145,19 +307,84 @@ public class KerberosRealm extends Realm<KerberosAuthenticationToken> {
         if (logger.isDebugEnabled()) {
             logger.debug("Rest request headers: {}", Iterators.toString(request.headers().iterator()));
         }
+        if (sessionCookies != null) {
+            final KerberosAuthenticationToken sessionToken = sessionCookies.verify(request.header("Cookie"));
+            if (sessionToken != null) {
+                logger.debug("Rest request for {} authenticated by session cookie of {}", request.path(), sessionToken.principal());
+                return sessionToken;
+            }
+        }
+
         final String authorizationHeader = request.header("Authorization");
-        final KerberosAuthenticationToken token = token(authorizationHeader);
+        final KerberosAuthenticationToken token = tokenOnThreadPool(authorizationHeader, RequestOrigin.of(request));
         if (token != null && logger.isDebugEnabled()) {
             logger.debug("Rest request token '{}' for {} successully generated", token, request.path());
         }
+
+        if (token != null && sessionCookies != null && token.groupLookupFailed()) {
+            // the roles of the groups are missing, the next request looks them up again instead of the cookie
+            logger.debug("No session cookie for {}, the directory lookup of its groups failed", token.principal());
+        } else if (token != null && sessionCookies != null) {
+            // picked up by the SessionCookieRestFilter which sets the cookie on the response
+            final String[] roles = resolveRoles(token.principal(), token.groups(), token.groupSids());
+            request.putInContext(KrbConstants.SESSION_COOKIE_CONTEXT_KEY, sessionCookies.issue(token.principal(), roles));
+        }
         return token;
     }
 
-    private KerberosAuthenticationToken token(final String authorizationHeader) {
+    /**
+     * Runs the blocking part of the authentication (keytab login, GSS acceptance, LDAP) on the bounded
+     * kerberos thread pool. The realm API is synchronous, so the calling thread, which may be a network thread,
+     * still waits for the result. What the pool adds is a bound on the number of concurrent authentications and
+     * on the time a caller waits: a slow KDC or domain controller stalls a caller for at most authTimeoutSeconds.
+     * A full queue surfaces as {@link org.elasticsearch.common.util.concurrent.EsRejectedExecutionException},
+     * which the failure handler turns into 429, a timeout as 503.
+     */
+    private KerberosAuthenticationToken tokenOnThreadPool(final String authorizationHeader, final RequestOrigin origin) {
+        if (authorizationHeader == null) {
+            return null;
+        }
+
+        return callWithTimeout(threadPool.executor(THREAD_POOL_NAME), new Callable<KerberosAuthenticationToken>() {
+            @Override
+            public KerberosAuthenticationToken call() {
+                return token(authorizationHeader, origin);
+            }
+        }, authTimeoutSeconds, logger);
+    }
+
+    /**
+     * Runs the call on the executor and waits at most timeoutSeconds for it, the call is interrupted if it takes
+     * longer. Rejections of the executor and runtime exceptions of the call are thrown as they are.
+     */
+    static <T> T callWithTimeout(final Executor executor, final Callable<T> call, final int timeoutSeconds, final ESLogger logger) {
+        final FutureTask<T> task = new FutureTask<>(call);
+        executor.execute(task);
+
+        try {
+            return task.get(timeoutSeconds, TimeUnit.SECONDS);
+        } catch (final TimeoutException e) {
+            task.cancel(true);
+            logger.warn("Kerberos authentication did not complete within {} seconds", timeoutSeconds);
+            throw new ElasticsearchTimeoutException("Kerberos authentication did not complete within {} seconds", timeoutSeconds);
+        } catch (final InterruptedException e) {
+            task.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new ElasticsearchException("Interrupted while waiting for Kerberos authentication", e);
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw ExceptionsHelper.convertToRuntime((Exception) cause);
+        }
+    }
+
+    private KerberosAuthenticationToken token(final String authorizationHeader, final RequestOrigin origin) {
         if (mockMode) {
             return tokenMock(authorizationHeader);
         } else {
-            return tokenKerb(authorizationHeader);
+            return tokenKerb(authorizationHeader, origin);
         }
     }
 
@@ -186,51 +413,98 @@ public class KerberosRealm extends Realm<KerberosAuthenticationToken> {
         return null;
     }
 
-    private KerberosAuthenticationToken tokenKerb(final String authorizationHeader) {
+    private KerberosAuthenticationToken tokenKerb(final String authorizationHeader, final RequestOrigin origin) {
         Principal principal = null;
         List<String> groups = null;
+        List<Sid> groupSids = null;
 
         if (authorizationHeader != null && acceptorKeyTabPath != null && acceptorPrincipal != null) {
 
-            if (!authorizationHeader.trim().toLowerCase(Locale.ENGLISH).startsWith("negotiate ")) {
+            final int tokenStart = HeaderUtil.negotiateTokenStart(authorizationHeader);
+            if (tokenStart < 0) {
                 throw new ElasticsearchException("Bad 'Authorization' header");
             } else {
 
-                final byte[] decodedNegotiateHeader = DatatypeConverter.parseBase64Binary(authorizationHeader.substring(10));
+                // decoded into a buffer of this (kerberos pool) thread, only valid until the token is accepted
+                final int tokenEnd = HeaderUtil.trimmedEnd(authorizationHeader, tokenStart);
+                final byte[] decodedNegotiateHeader = Base64Util.threadLocalBuffer(Base64Util.maxDecodedLength(tokenEnd - tokenStart));
+                final int decodedLength = Base64Util.decode(authorizationHeader, tokenStart, tokenEnd, decodedNegotiateHeader);
+                if (decodedLength <= 0) {
+                    throw new ElasticsearchException("Bad 'Authorization' header");
+                }
 
                 GSSContext gssContext = null;
                 byte[] outToken = null;
 
+                final TokenFingerprint fingerprint = negativeCache == null ? null
+                        : TokenFingerprint.of(decodedNegotiateHeader, 0, decodedLength);
+
+                if (negativeCache != null) {
+                    negativeCache.checkToken(fingerprint, origin.host);
+                }
+
+                boolean keepContext = false;
+
                 try {
 
-                    final Subject subject = JaasKrbUtil.loginUsingKeytab(acceptorPrincipal, acceptorKeyTabPath, false);
+                    // a further leg of a handshake continues its context, otherwise a new one is started
+                    gssContext = continuations == null ? null : continuations.take(origin.continuationId);
+                    if (gssContext == null) {
+                        // the acceptor credential is shared, so accepting the token is the only per request GSS work
+                        gssContext = acceptorCredentials.getManager().createContext(acceptorCredentials.getCredential());
+                    }
 
-                    final GSSManager manager = GSSManager.getInstance();
-                    final int credentialLifetime = GSSCredential.INDEFINITE_LIFETIME;
+                    outToken = new AcceptAction(gssContext, decodedNegotiateHeader, decodedLength).run();
 
-                    final PrivilegedExceptionAction<GSSCredential> action = new PrivilegedExceptionAction<GSSCredential>() {
-                        @Override
-                        public GSSCredential run() throws GSSException {
-                            return manager.createCredential(null, credentialLifetime, KrbConstants.SPNEGO, GSSCredential.ACCEPT_ONLY);
+                    if (!gssContext.isEstablished()) {
+                        // client has to send another token, keep the context for that leg
+                        final ElasticsearchException ee = new ElasticsearchException("Security context not yet established");
+                        if (outToken != null) {
+                            ee.addHeader("kerberos_out_token", Base64Util.encode(outToken));
                         }
-                    };
-                    gssContext = manager.createContext(Subject.doAs(subject, action));
-
-                    outToken = Subject.doAs(subject, new AcceptAction(gssContext, decodedNegotiateHeader));
+                        if (continuations != null) {
+                            ee.addHeader(KrbConstants.CONTINUATION_HEADER, continuations.put(gssContext));
+                            keepContext = true;
+                        }
+                        throw ee;
+                    }
 
                     if (outToken == null) {
                         logger.warn("Ticket validation not successful, outToken is null");
                         return null;
                     }
 
-                    principal = Subject.doAs(subject, new AuthenticateAction(logger, gssContext, stripRealmFromPrincipalName));
+                    if (replayCache != null) {
+                        checkReplay(gssContext, decodedNegotiateHeader, decodedLength);
+                    }
+
+                    principal = new AuthenticateAction(logger, gssContext, stripRealmFromPrincipalName).run();
 
-                    groups = ldapHelper.getUserRoles(principal.getName());
+                    if (usePacGroups) {
+                        groupSids = getPacGroupSids(gssContext);
+                    }
+
+                    if (groupSids != null) {
+                        groups = new ArrayList<String>();
+                    } else {
+                        // no PAC, e.g. not an AD KDC, fall back to LDAP
+                        final UserGroupCache.UserGroups userGroups = directoryGroups(principal.getName());
+                        if (userGroups != null) {
+                            groups = userGroups.groups;
+                            groupSids = userGroups.groupSids;
+                        }
+                    }
 
                 } catch (final LoginException e) {
                     logger.error("Login exception due to {}", e, e.toString());
                     throw ExceptionsHelper.convertToRuntime(e);
                 } catch (final GSSException e) {
+                    if (e.getMajor() == GSSException.CREDENTIALS_EXPIRED || e.getMajor() == GSSException.NO_CRED) {
+                        acceptorCredentials.invalidate();
+                    } else if (negativeCache != null) {
+                        // the token itself is bad, not our credential, so the same token will fail again
+                        negativeCache.tokenFailed(fingerprint, origin.host);
+                    }
                     logger.error("Ticket validation not successful due to {}", e, e.toString());
                     throw ExceptionsHelper.convertToRuntime(e);
                 } catch (final PrivilegedActionException e) {
@@ -242,24 +516,26 @@ public class KerberosRealm extends Realm<KerberosAuthenticationToken> {
                     }
                     throw ExceptionsHelper.convertToRuntime(e);
                 } finally {
-                    if (gssContext != null) {
+                    if (gssContext != null && !keepContext) {
                         try {
                             gssContext.dispose();
                         } catch (final GSSException e) {
                             // Ignore
                         }
                     }
-                    //TODO subject logout
                 }
 
                 if (principal == null) {
                     final ElasticsearchException ee = new ElasticsearchException("Principal null");
-                    ee.addHeader("kerberos_out_token", DatatypeConverter.printBase64Binary(outToken));
+                    ee.addHeader("kerberos_out_token", Base64Util.encode(outToken));
                     throw ee;
                 }
 
                 final String username = ((SimpleUserPrincipal) principal).getName();
-                return new KerberosAuthenticationToken(outToken, username, groups);
+                if (groups == null) {
+                    return KerberosAuthenticationToken.withFailedGroupLookup(outToken, username);
+                }
+                return new KerberosAuthenticationToken(outToken, username, groups, groupSids);
             }
 
         } else {
@@ -279,7 +555,7 @@ public class KerberosRealm extends Realm<KerberosAuthenticationToken> {
         }
 
         final String authorizationHeader = message.getHeader("Authorization");
-        final KerberosAuthenticationToken token = token(authorizationHeader);
+        final KerberosAuthenticationToken token = tokenOnThreadPool(authorizationHeader, RequestOrigin.of(message));
         if (token != null && logger.isDebugEnabled()) {
             logger.debug("Transport message token '{}' for message {} successully generated", token, message.getClass());
         }
@@ -301,29 +577,131 @@ public class KerberosRealm extends Realm<KerberosAuthenticationToken> {
             return null;
         }
 
-        String[] userRoles = new String[0];
-        List<String> userRolesList = roleMapper.rolesMap.get(actualUser);
-        
-              
-        if(actualGroups != null){                
-            for(String group: actualGroups){
-                if(roleMapper.groupMap.containsKey(group)){
-                    for(String role:roleMapper.groupMap.get(group)){
-                        if(!userRolesList.contains(role)){
-                            userRolesList.add(role);
-                        }
-                    }
-                    logger.debug("User '{}' found in AD group {} mapping to shield role {}", actualUser, group, Arrays.toString(roleMapper.groupMap.get(group).toArray(new String[0])));
-                }
+        final String[] userRoles = token.roles() != null ? token.roles() : resolveRoles(actualUser, actualGroups, token.groupSids());
+
+        logger.debug("User '{}' with roles {} successully authenticated", actualUser, Arrays.toString(userRoles));
+        return new User(actualUser, userRoles);
+    }
+
+    /**
+     * Records the authenticator of the just established context in the replay cache. Only tokens which passed
+     * validation get here, so garbage tokens cannot push real ones out of the cache.
+     */
+    private void checkReplay(final GSSContext gssContext, final byte[] token, final int length) throws GSSException {
+        byte[] authenticator;
+        try {
+            authenticator = SpnegoUtil.authenticatorCipher(token, 0, length);
+        } catch (final IllegalArgumentException e) {
+            authenticator = null;
+        }
+        if (authenticator == null) {
+            // cannot happen for a token which established a Kerberos context, but without it there is no replay check
+            logger.warn("No authenticator found in an accepted Kerberos token");
+            throw new ElasticsearchException("Unable to check the 'Authorization' header for replays");
+        }
+
+        switch (replayCache.check(TokenFingerprint.ofAuthenticator(gssContext.getSrcName().toString(), authenticator))) {
+        case REPLAY:
+            logger.warn("Rejecting replayed Kerberos authenticator of {}", gssContext.getSrcName());
+            throw new ElasticsearchException("Replayed 'Authorization' header");
+        case FULL:
+            logger.warn("Kerberos replay cache is full, rejecting authentication of {}", gssContext.getSrcName());
+            throw new EsRejectedExecutionException("Kerberos replay cache is full");
+        default:
+        }
+    }
+
+    private List<Sid> getPacGroupSids(final GSSContext gssContext) {
+        try {
+            final List<Sid> sids = PacUtil.getGroupSids(gssContext);
+            if (sids != null) {
+                logger.debug("Found {} group SIDs in PAC", sids.size());
             }
+            return sids;
+        } catch (final IllegalArgumentException e) {
+            logger.warn("Unable to decode PAC, falling back to LDAP", e);
+            return null;
         }
-        
-        if(userRolesList != null && !userRolesList.isEmpty()) {
-            userRoles = userRolesList.toArray(new String[0]);
+    }
+
+    /**
+     * @return the roles of the user, shared with other users of the same roles and not to be modified
+     */
+    private String[] resolveRoles(final String actualUser, final List<String> actualGroups, final List<Sid> actualGroupSids) {
+        return roleMapper.snapshot().resolveRoles(actualUser, actualGroups, actualGroupSids);
+    }
+
+    /**
+     * @return the groups of the principal from the directory, cached, or null if the lookup failed
+     */
+    private UserGroupCache.UserGroups directoryGroups(final String principal) {
+        try {
+            return userGroupCache != null ? userGroupCache.get(principal) : loadUserGroups(principal);
+        } catch (final Exception e) {
+            logger.warn("Error occurred looking up the groups of {}", e, principal);
+            return null;
+        }
+    }
+
+    private UserGroupCache.UserGroups loadUserGroups(final String principal) throws NamingException {
+        return ldapHelper.loadUserGroups(principal, useTokenGroups);
+    }
+
+    /**
+     * Drops the cached directory groups of the principal, e.g. after its group membership changed.
+     */
+    public void invalidateUserGroups(final String principal) {
+        if (userGroupCache != null) {
+            userGroupCache.invalidate(principal);
+        }
+    }
+
+    public void invalidateAllUserGroups() {
+        if (userGroupCache != null) {
+            userGroupCache.invalidateAll();
         }
-        
-        logger.debug("User '{}' with roles {} successully authenticated", actualUser, Arrays.toString(userRoles));
-        return new User(actualUser, userRoles);
+    }
+
+    /**
+     * Closes the LDAP connections of the realm and stops its background threads, called when the node closes.
+     */
+    void close() {
+        cacheThread.interrupt();
+        fileWatcherThread.interrupt();
+        if (renewerThread != null) {
+            renewerThread.interrupt();
+        }
+        if (changeNotifications != null) {
+            changeNotifications.shutdown();
+        }
+        roleMapper.shutdown();
+        ldapHelper.shutdown();
+    }
+
+    @Override
+    public XContentBuilder toXContent(final XContentBuilder builder, final Params params) throws IOException {
+        builder.startObject(name());
+        builder.field("type", TYPE);
+        if (replayCache != null) {
+            replayCache.toXContent(builder, params);
+        }
+        if (continuations != null) {
+            continuations.toXContent(builder, params);
+        }
+        if (negativeCache != null) {
+            negativeCache.toXContent(builder, params);
+        }
+        if (userGroupCache != null) {
+            userGroupCache.toXContent(builder, params);
+        }
+        if (changeNotifications != null) {
+            changeNotifications.toXContent(builder, params);
+        }
+        roleMapper.toXContent(builder, params);
+        ldapHelper.endpoints().toXContent(builder, params);
+        ldapHelper.nestedGroupResolutionStats(builder, params);
+        builder.endObject();
+        return builder;
     }
 
     @Override
@@ -337,7 +715,8 @@ public class KerberosRealm extends Realm<KerberosAuthenticationToken> {
     }
 
     /**
-     * This class gets a gss credential via a privileged action.
+     * This class accepts a security context token. It is run directly, the shared acceptor credential already
+     * carries the keys so no Subject.doAs() is needed.
      */
     //borrowed from Apache Tomcat 8 http://svn.apache.org/repos/asf/tomcat/tc8.0.x/trunk/
     private static class AcceptAction implements PrivilegedExceptionAction<byte[]> {
@@ -346,14 +725,17 @@ public class KerberosRealm extends Realm<KerberosAuthenticationToken> {
 
         byte[] decoded;
 
-        AcceptAction(final GSSContext context, final byte[] decodedToken) {
+        int length;
+
+        AcceptAction(final GSSContext context, final byte[] decodedToken, final int length) {
             this.gssContext = context;
             this.decoded = decodedToken;
+            this.length = length;
         }
 
         @Override
         public byte[] run() throws GSSException {
-            return gssContext.acceptSecContext(decoded, 0, decoded.length);
+            return gssContext.acceptSecContext(decoded, 0, length);
         }
     }
 
@@ -410,6 +792,35 @@ public class KerberosRealm extends Realm<KerberosAuthenticationToken> {
         return name;
     }
 
+    /**
+     * Where an authentication attempt came from: the continuation id sent by the client (for resuming handshakes)
+     * and the remote host (for the negative cache).
+     */
+    private static final class RequestOrigin {
+        final String continuationId;
+        final String host;
+
+        private RequestOrigin(final String continuationId, final String host) {
+            this.continuationId = continuationId;
+            this.host = host;
+        }
+
+        static RequestOrigin of(final RestRequest request) {
+            final SocketAddress address = request.getRemoteAddress();
+            String host = null;
+            if (address instanceof InetSocketAddress && ((InetSocketAddress) address).getAddress() != null) {
+                host = ((InetSocketAddress) address).getAddress().getHostAddress();
+            }
+            return new RequestOrigin(request.header(KrbConstants.CONTINUATION_HEADER), host);
+        }
+
+        static RequestOrigin of(final TransportMessage<?> message) {
+            final TransportAddress address = message.remoteAddress();
+            return new RequestOrigin(message.<String>getHeader(KrbConstants.CONTINUATION_HEADER),
+                    address == null ? null : address.getAddress());
+        }
+    }
+
     private static class SimpleUserPrincipal implements Principal, Serializable {
 
         private static final long serialVersionUID = -1;
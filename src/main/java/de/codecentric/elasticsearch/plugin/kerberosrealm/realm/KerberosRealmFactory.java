@@ -21,23 +21,30 @@ import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.shield.ShieldSettingsFilter;
 import org.elasticsearch.shield.authc.Realm;
 import org.elasticsearch.shield.authc.RealmConfig;
+import org.elasticsearch.threadpool.ThreadPool;
 
 /**
  */
 public class KerberosRealmFactory extends Realm.Factory<KerberosRealm> {
 
     private final ShieldSettingsFilter settingsFilter;
+    private final ThreadPool threadPool;
+    private final KerberosRealms realms;
 
     @Inject
-    public KerberosRealmFactory(final ShieldSettingsFilter settingsFilter) {
+    public KerberosRealmFactory(final ShieldSettingsFilter settingsFilter, final ThreadPool threadPool, final KerberosRealms realms) {
         super(KerberosRealm.TYPE, false);
         this.settingsFilter = settingsFilter;
+        this.threadPool = threadPool;
+        this.realms = realms;
     }
 
     @Override
     public KerberosRealm create(final RealmConfig config) {
         settingsFilter.filterOut("shield.authc.realms." + config.name() + ".*");
-        return new KerberosRealm(config);
+        final KerberosRealm realm = new KerberosRealm(config, threadPool);
+        realms.add(realm);
+        return realm;
     }
 
     @Override
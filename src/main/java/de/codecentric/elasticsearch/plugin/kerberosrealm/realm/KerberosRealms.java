@@ -0,0 +1,67 @@
+/*
+   Copyright 2015 codecentric AG
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package de.codecentric.elasticsearch.plugin.kerberosrealm.realm;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.elasticsearch.common.component.AbstractLifecycleComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+
+/**
+ * The Kerberos realms created on this node. Bound as a singleton of the node injector, so the realm factory and
+ * the REST actions of a node share it. Registered as a node service, closing the node closes the realms.
+ */
+public class KerberosRealms extends AbstractLifecycleComponent<KerberosRealms> {
+
+    private final Map<String, KerberosRealm> realms = new ConcurrentHashMap<>();
+
+    @Inject
+    public KerberosRealms(final Settings settings) {
+        super(settings);
+    }
+
+    void add(final KerberosRealm realm) {
+        realms.put(realm.name(), realm);
+    }
+
+    public Collection<KerberosRealm> all() {
+        return Collections.unmodifiableCollection(realms.values());
+    }
+
+    @Override
+    protected void doStart() {
+    }
+
+    @Override
+    protected void doStop() {
+    }
+
+    @Override
+    protected void doClose() {
+        for (final KerberosRealm realm : realms.values()) {
+            try {
+                realm.close();
+            } catch (final RuntimeException e) {
+                logger.warn("Failed to close realm {}", e, realm.name());
+            }
+        }
+        realms.clear();
+    }
+}
@@ -0,0 +1,316 @@
+package de.codecentric.elasticsearch.plugin.kerberosrealm.realm;
+
+import org.elasticsearch.ElasticsearchTimeoutException;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import javax.naming.CommunicationException;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.ldap.InitialLdapContext;
+import javax.naming.ldap.LdapContext;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of bound LDAP connections shared by the authentication path and the role mapping refresh.
+ * <p>
+ * At most maxSize connections exist at any time, a borrower waits up to the borrow timeout for one to become free.
+ * Idle connections are handed out most recently used first, so surplus connections stay unused and are closed by the
+ * evictor once they were idle for longer than the idle timeout (never going below minSize). A connection which was
+ * idle for longer than the health check interval is verified with a root DSE read before it is handed out.
+ * <p>
+ * An operation which ran into the read timeout of the environment fails with a {@link CommunicationException}, like
+ * one which could not connect, so callers can tell an unresponsive server from an error the server returned.
+ */
+public class LDAPConnectionPool implements ToXContent {
+
+    static final String CONNECT_TIMEOUT_PROPERTY = "com.sun.jndi.ldap.connect.timeout";
+    static final String READ_TIMEOUT_PROPERTY = "com.sun.jndi.ldap.read.timeout";
+
+    private static final String[] HEALTH_CHECK_ATTRIBUTES = new String[] { "supportedLDAPVersion" };
+
+    private final Hashtable<String, Object> environment;
+    private final int minSize;
+    private final long idleTimeoutMillis;
+    private final long borrowTimeoutMillis;
+    private final long healthCheckIntervalMillis;
+    private final long readTimeoutMillis;
+    private final ESLogger logger;
+    private final Thread evictor;
+
+    private final Semaphore permits;
+    private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong closed = new AtomicLong();
+    private final AtomicLong borrowed = new AtomicLong();
+    private final AtomicLong borrowTimeouts = new AtomicLong();
+    private final AtomicLong failedHealthChecks = new AtomicLong();
+
+    private volatile boolean shutdown;
+
+    public LDAPConnectionPool(Hashtable<String, Object> environment, int minSize, int maxSize, int idleTimeoutSeconds,
+            int borrowTimeoutSeconds, int healthCheckIntervalSeconds, String name, ESLogger esLogger) {
+        this.environment = environment;
+        this.minSize = Math.max(0, Math.min(minSize, maxSize));
+        this.idleTimeoutMillis = idleTimeoutSeconds * 1000L;
+        this.borrowTimeoutMillis = borrowTimeoutSeconds * 1000L;
+        this.healthCheckIntervalMillis = healthCheckIntervalSeconds * 1000L;
+        this.readTimeoutMillis = readTimeoutMillis(environment);
+        this.permits = new Semaphore(Math.max(1, maxSize), true);
+        logger = esLogger;
+
+        evictor = new Thread(new Evictor(), "kerberos-ldap-pool-evictor[" + name + "]");
+        evictor.setDaemon(true);
+        evictor.start();
+    }
+
+    /**
+     * Borrows a connection, runs the operation and returns the connection to the pool. Connections which failed
+     * with a communication error or timed out are closed instead of being returned.
+     */
+    public <T> T execute(Operation<T> operation) throws NamingException {
+        final PooledConnection connection = borrow();
+        final long start = System.currentTimeMillis();
+        boolean broken = true;
+        try {
+            final T result = operation.run(connection.context);
+            broken = false;
+            return result;
+        } catch (final CommunicationException | ServiceUnavailableException e) {
+            throw e;
+        } catch (final NamingException e) {
+            if (isTimeout(e, System.currentTimeMillis() - start, readTimeoutMillis)) {
+                final CommunicationException timeout = new CommunicationException("No LDAP response within " + readTimeoutMillis + " ms");
+                timeout.setRootCause(e);
+                throw timeout;
+            }
+            // the server answered, so the connection itself is fine
+            broken = false;
+            throw e;
+        } finally {
+            release(connection, broken);
+        }
+    }
+
+    public void shutdown() {
+        shutdown = true;
+        evictor.interrupt();
+        PooledConnection connection;
+        while ((connection = idle.pollFirst()) != null) {
+            close(connection);
+        }
+    }
+
+    private PooledConnection borrow() throws NamingException {
+        try {
+            if (!permits.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                borrowTimeouts.incrementAndGet();
+                throw new ElasticsearchTimeoutException("No LDAP connection available within {} ms", borrowTimeoutMillis);
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NamingException("Interrupted while waiting for an LDAP connection");
+        }
+
+        try {
+            PooledConnection connection;
+            while ((connection = idle.pollFirst()) != null) {
+                if (isHealthy(connection)) {
+                    borrowed.incrementAndGet();
+                    return connection;
+                }
+                close(connection);
+            }
+            connection = create();
+            borrowed.incrementAndGet();
+            return connection;
+        } catch (final NamingException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    private void release(PooledConnection connection, boolean broken) {
+        try {
+            if (broken || shutdown) {
+                close(connection);
+            } else {
+                connection.lastUsedMillis = System.currentTimeMillis();
+                idle.offerFirst(connection);
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    private boolean isHealthy(PooledConnection connection) {
+        if (System.currentTimeMillis() - connection.lastUsedMillis < healthCheckIntervalMillis) {
+            return true;
+        }
+        try {
+            connection.context.getAttributes("", HEALTH_CHECK_ATTRIBUTES);
+            return true;
+        } catch (final NamingException e) {
+            failedHealthChecks.incrementAndGet();
+            logger.debug("Pooled LDAP connection failed health check: {}", e.toString());
+            return false;
+        }
+    }
+
+    private PooledConnection create() throws NamingException {
+        final PooledConnection connection = new PooledConnection(open());
+        created.incrementAndGet();
+        return connection;
+    }
+
+    LdapContext open() throws NamingException {
+        return connect(environment);
+    }
+
+    /**
+     * @return whether the operation failed because the server did not answer in time, JNDI reports a read timeout
+     * as a plain {@link NamingException} without a cause after the read timeout has passed
+     */
+    static boolean isTimeout(NamingException e, long elapsedMillis, long readTimeoutMillis) {
+        if (e.getRootCause() instanceof SocketTimeoutException) {
+            return true;
+        }
+        return readTimeoutMillis > 0 && e.getClass() == NamingException.class && e.getRootCause() == null
+                && elapsedMillis >= readTimeoutMillis;
+    }
+
+    static long readTimeoutMillis(Hashtable<String, Object> environment) {
+        final Object value = environment.get(READ_TIMEOUT_PROPERTY);
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(value.toString());
+        } catch (final NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Opens a connection which is not pooled.
+     */
+    static LdapContext connect(Hashtable<String, Object> environment) throws NamingException {
+        // the custom socket factory has to be loadable from the context classloader while connecting
+        final ClassLoader cl = Thread.currentThread().getContextClassLoader();
+        try {
+            Thread.currentThread().setContextClassLoader(TrustAllSSLSocketFactory.class.getClassLoader());
+            return new InitialLdapContext(environment, null);
+        } finally {
+            Thread.currentThread().setContextClassLoader(cl);
+        }
+    }
+
+    private void close(PooledConnection connection) {
+        closed.incrementAndGet();
+        try {
+            connection.context.close();
+        } catch (final NamingException e) {
+            // pass
+        }
+    }
+
+    /**
+     * Closes the connections idle for longer than the idle timeout at the given time, down to minSize.
+     *
+     * @return the number of closed connections
+     */
+    int evictIdle(long now) {
+        final List<PooledConnection> expired = new ArrayList<>();
+        // least recently used connections are at the tail
+        final Iterator<PooledConnection> it = idle.descendingIterator();
+        int surplus = idle.size() - minSize;
+        while (surplus > 0 && it.hasNext()) {
+            final PooledConnection connection = it.next();
+            if (now - connection.lastUsedMillis < idleTimeoutMillis) {
+                break;
+            }
+            if (idle.removeFirstOccurrence(connection)) {
+                expired.add(connection);
+                surplus--;
+            }
+        }
+        for (final PooledConnection connection : expired) {
+            close(connection);
+        }
+        if (!expired.isEmpty()) {
+            logger.debug("Closed {} idle LDAP connections", expired.size());
+        }
+        return expired.size();
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject("ldap_pool");
+        builder.field("idle", idle.size());
+        builder.field("created", created.get());
+        builder.field("closed", closed.get());
+        builder.field("borrowed", borrowed.get());
+        builder.field("borrow_timeouts", borrowTimeouts.get());
+        builder.field("failed_health_checks", failedHealthChecks.get());
+        builder.endObject();
+        return builder;
+    }
+
+    /**
+     * An LDAP operation run on a pooled connection. Results must be fully consumed and request controls reset
+     * before returning, the connection is handed to other threads afterwards.
+     */
+    public interface Operation<T> {
+        T run(LdapContext context) throws NamingException;
+    }
+
+    private static final class PooledConnection {
+        final LdapContext context;
+        volatile long lastUsedMillis = System.currentTimeMillis();
+
+        PooledConnection(LdapContext context) {
+            this.context = context;
+        }
+    }
+
+    private final class Evictor implements Runnable {
+
+        @Override
+        public void run() {
+            final long interval = Math.max(1000L, Math.min(idleTimeoutMillis, 30 * 1000L));
+            while (!shutdown && !Thread.currentThread().isInterrupted()) {
+                try {
+                    Thread.sleep(interval);
+                } catch (final InterruptedException e) {
+                    return;
+                }
+                evictIdle(System.currentTimeMillis());
+                fillToMinimum();
+            }
+        }
+
+        private void fillToMinimum() {
+            while (!shutdown && idle.size() < minSize && permits.tryAcquire()) {
+                try {
+                    idle.offerLast(create());
+                } catch (final NamingException e) {
+                    logger.debug("Unable to open LDAP connection for the pool: {}", e.toString());
+                    return;
+                } finally {
+                    permits.release();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package de.codecentric.elasticsearch.plugin.kerberosrealm.realm;
+
+import org.elasticsearch.ElasticsearchTimeoutException;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import javax.naming.CommunicationException;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.ldap.LdapContext;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Routes LDAP operations over several domain controllers, each with its own connection pool.
+ * <p>
+ * An operation goes to the healthy endpoint with the lowest exponentially weighted moving average latency, ties go
+ * to the endpoint configured first. The latency is sampled by a background prober which reads the root DSE of
+ * every endpoint periodically, operations themselves range from a single lookup to paging through all groups and
+ * would make whichever endpoint ran the large ones look slow. An endpoint which cannot be reached or does not answer
+ * within the read timeout is marked down and the operation is retried on the next one, the prober brings it back up
+ * once it answers again. An endpoint without a free connection in time is only busy: the operation moves on to the
+ * next endpoint, but the busy one stays up. If all endpoints are down they are tried anyway, in configured order.
+ */
+public class LDAPEndpointRouter implements ToXContent {
+
+    private static final String[] PROBE_ATTRIBUTES = new String[] { "supportedLDAPVersion" };
+    // weight of the latest sample in the moving average
+    private static final double ALPHA = 0.3;
+
+    private final List<Endpoint> endpoints;
+    private final long probeIntervalMillis;
+    private final ESLogger logger;
+    private final Thread prober;
+
+    private volatile boolean shutdown;
+
+    public LDAPEndpointRouter(List<String> urls, List<LDAPConnectionPool> pools, int probeIntervalSeconds, String name, ESLogger esLogger) {
+        final List<Endpoint> list = new ArrayList<>(urls.size());
+        for (int i = 0; i < urls.size(); i++) {
+            list.add(new Endpoint(urls.get(i), pools.get(i)));
+        }
+        this.endpoints = Collections.unmodifiableList(list);
+        this.probeIntervalMillis = Math.max(1, probeIntervalSeconds) * 1000L;
+        logger = esLogger;
+
+        prober = new Thread(new Prober(), "kerberos-ldap-prober[" + name + "]");
+        prober.setDaemon(true);
+        prober.start();
+    }
+
+    /**
+     * Runs the operation on the fastest healthy endpoint, failing over to the others if it cannot be reached or has
+     * no free connection. Errors returned by a reachable server (e.g. no such object) are not retried.
+     */
+    public <T> T execute(LDAPConnectionPool.Operation<T> operation) throws NamingException {
+        return execute(null, operation);
+    }
+
+    /**
+     * Like {@link #execute(LDAPConnectionPool.Operation)}, but runs the operation on the endpoint with the given
+     * URL as long as it is up, whatever the latencies. Used by work which depends on state local to one domain
+     * controller, e.g. update sequence numbers.
+     *
+     * @param preferredUrl the URL of the endpoint to use or null for the fastest one
+     */
+    public <T> T execute(String preferredUrl, LDAPConnectionPool.Operation<T> operation) throws NamingException {
+        final List<Endpoint> tried = new ArrayList<>(endpoints.size());
+        RuntimeException lastTimeout = null;
+        NamingException lastFailure = null;
+        Endpoint endpoint;
+        while ((endpoint = select(tried, preferredUrl)) != null) {
+            tried.add(endpoint);
+            endpoint.requests.incrementAndGet();
+            try {
+                return endpoint.pool.execute(operation);
+            } catch (final CommunicationException | ServiceUnavailableException e) {
+                lastFailure = e;
+                endpoint.errors.incrementAndGet();
+                markDown(endpoint, e);
+            } catch (final ElasticsearchTimeoutException e) {
+                // the pool is exhausted, the domain controller itself may be perfectly fine
+                lastTimeout = e;
+                endpoint.busy.incrementAndGet();
+            }
+        }
+        if (lastFailure != null) {
+            throw lastFailure;
+        }
+        if (lastTimeout != null) {
+            throw lastTimeout;
+        }
+        throw new ServiceUnavailableException("No LDAP endpoint configured");
+    }
+
+    public void shutdown() {
+        shutdown = true;
+        prober.interrupt();
+        for (final Endpoint endpoint : endpoints) {
+            endpoint.pool.shutdown();
+        }
+    }
+
+    private Endpoint select(List<Endpoint> tried, String preferredUrl) {
+        Endpoint best = null;
+        for (final Endpoint endpoint : endpoints) {
+            if (endpoint.url.equals(preferredUrl) && !endpoint.down.get() && !tried.contains(endpoint)) {
+                return endpoint;
+            }
+        }
+        for (final Endpoint endpoint : endpoints) {
+            if (!endpoint.down.get() && !tried.contains(endpoint) && (best == null || endpoint.latencyNanos() < best.latencyNanos())) {
+                best = endpoint;
+            }
+        }
+        if (best != null) {
+            return best;
+        }
+        for (final Endpoint endpoint : endpoints) {
+            if (!tried.contains(endpoint)) {
+                return endpoint;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return true if this call marked the endpoint down, false if it was down already
+     */
+    private boolean markDown(Endpoint endpoint, Exception e) {
+        if (!endpoint.down.compareAndSet(false, true)) {
+            return false;
+        }
+        endpoint.downSinceMillis = System.currentTimeMillis();
+        logger.warn("LDAP endpoint {} marked down: {}", endpoint.url, e.toString());
+        return true;
+    }
+
+    boolean isDown(int endpoint) {
+        return endpoints.get(endpoint).down.get();
+    }
+
+    /**
+     * Measures the latency of every endpoint and marks endpoints up or down accordingly.
+     */
+    void probeAll() {
+        for (final Endpoint endpoint : endpoints) {
+            probe(endpoint);
+        }
+    }
+
+    private void probe(Endpoint endpoint) {
+        final long start = System.nanoTime();
+        try {
+            endpoint.pool.execute(new LDAPConnectionPool.Operation<Void>() {
+                @Override
+                public Void run(LdapContext ctx) throws NamingException {
+                    ctx.getAttributes("", PROBE_ATTRIBUTES);
+                    return null;
+                }
+            });
+            endpoint.sample(System.nanoTime() - start);
+            if (endpoint.down.compareAndSet(true, false)) {
+                logger.info("LDAP endpoint {} is up again", endpoint.url);
+            }
+        } catch (final CommunicationException | ServiceUnavailableException e) {
+            if (!markDown(endpoint, e)) {
+                logger.debug("LDAP endpoint {} still down: {}", endpoint.url, e.toString());
+            }
+        } catch (final ElasticsearchTimeoutException e) {
+            logger.debug("LDAP endpoint {} busy, not probed: {}", endpoint.url, e.toString());
+        } catch (final NamingException | RuntimeException e) {
+            logger.warn("Probing LDAP endpoint {} failed: {}", endpoint.url, e.toString());
+        }
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startArray("ldap_endpoints");
+        for (final Endpoint endpoint : endpoints) {
+            builder.startObject();
+            builder.field("url", endpoint.url);
+            final boolean down = endpoint.down.get();
+            builder.field("state", down ? "down" : "up");
+            if (down) {
+                builder.field("down_since_millis", endpoint.downSinceMillis);
+            }
+            builder.field("requests", endpoint.requests.get());
+            builder.field("errors", endpoint.errors.get());
+            builder.field("busy", endpoint.busy.get());
+            builder.field("ewma_latency_in_millis", TimeUnit.NANOSECONDS.toMillis((long) endpoint.latencyNanos()));
+            endpoint.pool.toXContent(builder, params);
+            builder.endObject();
+        }
+        builder.endArray();
+        return builder;
+    }
+
+    private static final class Endpoint {
+        final String url;
+        final LDAPConnectionPool pool;
+        final AtomicLong requests = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong busy = new AtomicLong();
+        final AtomicBoolean down = new AtomicBoolean();
+        volatile long downSinceMillis;
+        private double ewmaNanos;
+
+        Endpoint(String url, LDAPConnectionPool pool) {
+            this.url = url;
+            this.pool = pool;
+        }
+
+        synchronized double latencyNanos() {
+            return ewmaNanos;
+        }
+
+        synchronized void sample(long nanos) {
+            ewmaNanos = ewmaNanos == 0 ? nanos : ALPHA * nanos + (1 - ALPHA) * ewmaNanos;
+        }
+    }
+
+    private final class Prober implements Runnable {
+
+        @Override
+        public void run() {
+            while (!shutdown && !Thread.currentThread().isInterrupted()) {
+                try {
+                    Thread.sleep(probeIntervalMillis);
+                } catch (final InterruptedException e) {
+                    return;
+                }
+                probeAll();
+            }
+        }
+    }
+}
@@ -2,64 +2,139 @@ package de.codecentric.elasticsearch.plugin.kerberosrealm.realm;
 
 import org.elasticsearch.common.logging.ESLogger;
 
-import java.util.Collection;
+import javax.naming.NamingException;
 import java.util.Collections;
 import java.util.HashSet;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
+/**
+ * Finds the groups nested in a group by querying the member groups of every group found, in parallel on an
+ * executor shared by all traversals.
+ * <p>
+ * Every group is queried once per traversal, at the lowest level it was reached on, so a group reached over
+ * several paths (diamonds) is not queried again and cycles end. A group first reached over a longer path is queried
+ * again if a shorter one turns up later, because its children may be within maxGroupDepth only over the shorter
+ * path. The result is the same as following every path up to maxGroupDepth levels.
+ * <p>
+ * If the member groups of any group cannot be read, the traversal fails instead of returning the groups found so
+ * far, which would silently drop the nesting below that group.
+ */
 public class LDAPGroupTraverser {
 
-    private final String distinguishedName;
-    public final LDAPHelper ldapHelper;
+    private final MemberGroupSource source;
+    private final Executor executor;
     public final int maxGroupDepth;
-    private ExecutorService execService;
-    public final Collection<String> groups = Collections.synchronizedSet(new HashSet<String>());
-    private final Collection<Future> futures = Collections.synchronizedSet(new HashSet<Future>());
     private final ESLogger logger;
 
-    public LDAPGroupTraverser(String groupDn, LDAPHelper LdapHelper, int maxGroupDepthToTraverse, int maxThreadsToUse, ESLogger esLogger){
-        distinguishedName = groupDn;
-        ldapHelper = LdapHelper;
+    public LDAPGroupTraverser(MemberGroupSource memberGroupSource, Executor sharedExecutor, int maxGroupDepthToTraverse, ESLogger esLogger){
+        source = memberGroupSource;
+        executor = sharedExecutor;
         maxGroupDepth = maxGroupDepthToTraverse;
-        execService = Executors.newFixedThreadPool(maxThreadsToUse, new LDAPGroupTraverserThreadFactory("LDAPGroupTraverser"));
         logger = esLogger;
     }
 
-    public void queueToTraverseChildGroup(String groupDn, int currentDepth){
-        if(currentDepth <= maxGroupDepth) {
-            startNewThread(groupDn, currentDepth);
+    /**
+     * @return the groups nested in the given group up to maxGroupDepth levels, including the group itself only if
+     * it is nested in one of them
+     * @throws NamingException the first failure reading the member groups of a group
+     */
+    public Set<String> traverse(String groupDn) throws InterruptedException, NamingException {
+        final Traversal traversal = new Traversal();
+        if (maxGroupDepth >= 1) {
+            traversal.depths.put(groupDn, 1);
+            traversal.submit(groupDn, 1);
+            traversal.done.await();
         }
+        if (traversal.failure.get() != null) {
+            throw traversal.failure.get();
+        }
+        return new HashSet<>(traversal.groups);
     }
 
-    private void startNewThread(String groupDn, int depth) {
-         futures.add(execService.submit(new LDAPGroupTraverserThread(groupDn, this, depth, logger)));
+    /**
+     * Returns the groups which are direct members of a group.
+     */
+    public interface MemberGroupSource {
+        List<String> getMemberGroups(String groupDn) throws NamingException;
     }
 
-    public void startTraversing() {
-        startNewThread(this.distinguishedName, 1);
-    }
+    private final class Traversal {
+        // the lowest level every group was queried on
+        final ConcurrentMap<String, Integer> depths = new ConcurrentHashMap<>();
+        final Set<String> groups = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        final AtomicInteger pending = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<NamingException> failure = new AtomicReference<>();
 
-    public void addGroupToList(String groupsDn){
-        groups.add(groupsDn);
-    }
+        void submit(final String groupDn, final int depth) {
+            pending.incrementAndGet();
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            expand(groupDn, depth);
+                        } finally {
+                            finished();
+                        }
+                    }
+                });
+            } catch (RuntimeException e) {
+                finished();
+                throw e;
+            }
+        }
 
-    public boolean isTraversingComplete(){
-        synchronized(futures) {
-            for (Future f : futures) {
-                if (!f.isDone() && !f.isCancelled()) {
-                    return false;
+        private void finished() {
+            if (pending.decrementAndGet() == 0) {
+                done.countDown();
+            }
+        }
+
+        private void expand(String groupDn, int depth) {
+            if (failure.get() != null) {
+                // the traversal failed anyway
+                return;
+            }
+            final List<String> memberGroups;
+            try {
+                memberGroups = source.getMemberGroups(groupDn);
+            } catch (NamingException e) {
+                failure.compareAndSet(null, e);
+                return;
+            }
+            for (String group : memberGroups) {
+                logger.debug("In group {} found nested group {}", groupDn, group);
+                groups.add(group);
+                if (depth < maxGroupDepth && lower(group, depth + 1)) {
+                    submit(group, depth + 1);
                 }
             }
         }
-        return true;
-    }
 
-    public void cleanUp(){
-        if(!execService.isShutdown() || !execService.isTerminated()){
-            execService.shutdown();
+        /**
+         * @return true if the group was not queried yet on the given or a lower level
+         */
+        private boolean lower(String group, int depth) {
+            while (true) {
+                final Integer current = depths.putIfAbsent(group, depth);
+                if (current == null) {
+                    return true;
+                }
+                if (current <= depth) {
+                    return false;
+                }
+                if (depths.replace(group, current, depth)) {
+                    return true;
+                }
+            }
         }
     }
-
 }
@@ -1,9 +1,10 @@
 package de.codecentric.elasticsearch.plugin.kerberosrealm.realm;
 
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class LDAPGroupTraverserThreadFactory implements ThreadFactory {
-    private int counter = 0;
+    private final AtomicInteger counter = new AtomicInteger();
     private String prefix = "";
 
     public LDAPGroupTraverserThreadFactory(String prefix){
@@ -12,6 +13,9 @@ public class LDAPGroupTraverserThreadFactory implements ThreadFactory {
 
     @Override
     public Thread newThread(Runnable r) {
-        return new Thread(r, prefix + "-" + counter++);
+        // the pool lives as long as the realm and must not keep the node from exiting
+        final Thread thread = new Thread(r, prefix + "-" + counter.getAndIncrement());
+        thread.setDaemon(true);
+        return thread;
     }
 }
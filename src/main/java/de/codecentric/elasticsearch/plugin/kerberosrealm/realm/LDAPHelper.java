@@ -1,31 +1,80 @@
 package de.codecentric.elasticsearch.plugin.kerberosrealm.realm;
 
+import de.codecentric.elasticsearch.plugin.kerberosrealm.support.Base64Util;
 import de.codecentric.elasticsearch.plugin.kerberosrealm.support.SettingConstants;
+import de.codecentric.elasticsearch.plugin.kerberosrealm.support.Sid;
 import org.elasticsearch.ElasticsearchException;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.shield.authc.RealmConfig;
 
+import javax.naming.CommunicationException;
 import javax.naming.Context;
+import javax.naming.InvalidNameException;
 import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
-import javax.naming.directory.DirContext;
-import javax.naming.directory.InitialDirContext;
+import javax.naming.ServiceUnavailableException;
 import javax.naming.directory.SearchControls;
 import javax.naming.directory.SearchResult;
+import javax.naming.ldap.BasicControl;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.PagedResultsResponseControl;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.List;
-
-public class LDAPHelper {
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+public class LDAPHelper implements LDAPGroupTraverser.MemberGroupSource, LDAPLevelBatchedResolver.BatchMemberGroupSource,
+        RoleMapper.Directory {
+
+    private static final String[] NO_ATTRIBUTES = new String[0];
+    private static final String[] MEMBER_OF_ATTRIBUTES = new String[] { "memberOf" };
+    private static final String[] TOKEN_GROUPS_ATTRIBUTES = new String[] { "tokenGroups" };
+    // everything the role mapping needs to tell users from groups and to match them
+    private static final String[] ROLE_MAPPING_ATTRIBUTES = new String[] { "objectClass", "objectSid", "userPrincipalName" };
+    private static final String[] ROOT_DSE_ATTRIBUTES = new String[] { "dsServiceName", "highestCommittedUSN" };
+    private static final String[] INVOCATION_ID_ATTRIBUTES = new String[] { "invocationId" };
+    private static final String CHANGE_NOTIFICATION_OID = "1.2.840.113556.1.4.528";
+    private static final String PERSISTENT_SEARCH_OID = "2.16.840.1.113730.3.4.3";
+    // PersistentSearch ::= SEQUENCE { changeTypes INTEGER (all: 15), changesOnly BOOLEAN (TRUE), returnECs BOOLEAN (FALSE) }
+    private static final byte[] PERSISTENT_SEARCH_VALUE = new byte[] { 0x30, 0x09, 0x02, 0x01, 0x0F, 0x01, 0x01, (byte) 0xFF, 0x01, 0x01, 0x00 };
+    private static final String MATCHING_RULE_IN_CHAIN = "1.2.840.113556.1.4.1941";
 
     private final String keyStorePath;
     private final String keyStorePassword;
     private final String ldapUser;
     private final String ldapPassword;
-    private final String ldapConnectionString;
+    private final String[] ldapUrls;
+    private final int connectTimeoutSeconds;
+    private final int readTimeoutSeconds;
     private final String ldapDomain;
+    private final String searchBase;
+    private final int pageSize;
+    private final int roleMappingBatchSize;
+    private final String nestedGroupResolution;
+    private final NestedGroupResolutionStats traverserStats =
+            new NestedGroupResolutionStats(SettingConstants.NESTED_GROUP_RESOLUTION_TRAVERSER);
+    private final NestedGroupResolutionStats inChainStats =
+            new NestedGroupResolutionStats(SettingConstants.NESTED_GROUP_RESOLUTION_IN_CHAIN);
+    private final NestedGroupResolutionStats levelBatchedStats =
+            new NestedGroupResolutionStats(SettingConstants.NESTED_GROUP_RESOLUTION_LEVEL_BATCHED);
+    private final int nestedGroupBatchSize;
+    private final LDAPEndpointRouter endpoints;
+    // shared by all traversals, so concurrent resolutions cannot open more than max_threads_to_use_to_find_nested_groups
+    private final ThreadPoolExecutor traverserExecutor;
 
     private final ESLogger logger;
 
@@ -33,14 +82,15 @@ public class LDAPHelper {
         Settings settings = config.settings();
         logger = esLogger;
 
-        ldapConnectionString = settings.get(SettingConstants.LDAP_URL);
+        // several domain controllers can be given, see LDAPEndpointRouter
+        ldapUrls = settings.getAsArray(SettingConstants.LDAP_URL);
         ldapDomain = settings.get(SettingConstants.LDAP_DOMAIN);
         ldapUser = settings.get(SettingConstants.LDAP_USER, null);
         ldapPassword = settings.get(SettingConstants.LDAP_PASSWORD, null);
 
         logger.debug("ldapDomain Path: {}", ldapDomain);
         //logger.debug("ldapGroupBase: {}", ldapGroupBase);
-        logger.debug("ldapConnectionString: {}", ldapConnectionString);
+        logger.debug("ldapUrls: {}", Arrays.toString(ldapUrls));
 
 
         keyStorePath = config.globalSettings().get(SettingConstants.KEYSTORE_PATH, null);
@@ -55,10 +105,72 @@ public class LDAPHelper {
         if (keyStorePassword == null) {
             throw new ElasticsearchException("Unconfigured (but required) property: {}", SettingConstants.KEYSTORE_PASSWORD);
         }
+
+        connectTimeoutSeconds = settings.getAsInt(SettingConstants.LDAP_CONNECT_TIMEOUT_SECONDS,
+                SettingConstants.DEFAULT_LDAP_CONNECT_TIMEOUT_SECONDS);
+        readTimeoutSeconds = settings.getAsInt(SettingConstants.LDAP_READ_TIMEOUT_SECONDS, SettingConstants.DEFAULT_LDAP_READ_TIMEOUT_SECONDS);
+
+        searchBase = ldapDomain == null ? null : toSearchBase(ldapDomain);
+        pageSize = settings.getAsInt(SettingConstants.LDAP_PAGE_SIZE, SettingConstants.DEFAULT_LDAP_PAGE_SIZE);
+        roleMappingBatchSize = Math.max(1, settings.getAsInt(SettingConstants.ROLE_MAPPING_BATCH_SIZE,
+                SettingConstants.DEFAULT_ROLE_MAPPING_BATCH_SIZE));
+
+        nestedGroupResolution = settings.get(SettingConstants.NESTED_GROUP_RESOLUTION, SettingConstants.NESTED_GROUP_RESOLUTION_TRAVERSER);
+        if (!SettingConstants.NESTED_GROUP_RESOLUTION_TRAVERSER.equals(nestedGroupResolution)
+                && !SettingConstants.NESTED_GROUP_RESOLUTION_IN_CHAIN.equals(nestedGroupResolution)
+                && !SettingConstants.NESTED_GROUP_RESOLUTION_LEVEL_BATCHED.equals(nestedGroupResolution)) {
+            throw new ElasticsearchException("Unknown {}: {}", SettingConstants.NESTED_GROUP_RESOLUTION, nestedGroupResolution);
+        }
+        nestedGroupBatchSize = Math.max(1, settings.getAsInt(SettingConstants.NESTED_GROUP_BATCH_SIZE,
+                SettingConstants.DEFAULT_NESTED_GROUP_BATCH_SIZE));
+        logger.debug("Search base {}", searchBase);
+
+        final int traverserThreads = Math.max(1, settings.getAsInt(SettingConstants.MAX_THREADS_TO_USE_TO_FIND_NESTED_GROUPS,
+                SettingConstants.DEFAULT_MAX_THREADS_TO_USE_TO_FIND_NESTED_GROUPS));
+        traverserExecutor = new ThreadPoolExecutor(traverserThreads, traverserThreads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new LDAPGroupTraverserThreadFactory("LDAPGroupTraverser[" + config.name() + "]"));
+        // no idle threads between role mapping refreshes
+        traverserExecutor.allowCoreThreadTimeOut(true);
+
+        final List<LDAPConnectionPool> pools = new ArrayList<>(ldapUrls.length);
+        for (int i = 0; i < ldapUrls.length; i++) {
+            pools.add(new LDAPConnectionPool(createEnvironment(ldapUrls[i]),
+                    settings.getAsInt(SettingConstants.LDAP_POOL_MIN_SIZE, SettingConstants.DEFAULT_LDAP_POOL_MIN_SIZE),
+                    settings.getAsInt(SettingConstants.LDAP_POOL_MAX_SIZE, SettingConstants.DEFAULT_LDAP_POOL_MAX_SIZE),
+                    settings.getAsInt(SettingConstants.LDAP_POOL_IDLE_TIMEOUT_SECONDS, SettingConstants.DEFAULT_LDAP_POOL_IDLE_TIMEOUT_SECONDS),
+                    settings.getAsInt(SettingConstants.LDAP_POOL_BORROW_TIMEOUT_SECONDS, SettingConstants.DEFAULT_LDAP_POOL_BORROW_TIMEOUT_SECONDS),
+                    settings.getAsInt(SettingConstants.LDAP_POOL_HEALTH_CHECK_INTERVAL_SECONDS,
+                            SettingConstants.DEFAULT_LDAP_POOL_HEALTH_CHECK_INTERVAL_SECONDS),
+                    config.name() + "/" + i, logger));
+        }
+        endpoints = new LDAPEndpointRouter(Arrays.asList(ldapUrls), pools,
+                settings.getAsInt(SettingConstants.LDAP_PROBE_INTERVAL_SECONDS, SettingConstants.DEFAULT_LDAP_PROBE_INTERVAL_SECONDS),
+                config.name(), logger);
+    }
+
+    public LDAPEndpointRouter endpoints() {
+        return endpoints;
     }
 
+    /**
+     * Closes the pooled connections and stops the background threads of the pools and the router.
+     */
+    public void shutdown() {
+        endpoints.shutdown();
+        traverserExecutor.shutdownNow();
+    }
 
-    public javax.naming.directory.Attributes getADObjectAttributes(String distinguishedName){
+    public XContentBuilder nestedGroupResolutionStats(XContentBuilder builder, ToXContent.Params params) throws IOException {
+        builder.startObject("nested_group_resolution");
+        builder.field("mode", nestedGroupResolution);
+        traverserStats.toXContent(builder, params);
+        inChainStats.toXContent(builder, params);
+        levelBatchedStats.toXContent(builder, params);
+        builder.endObject();
+        return builder;
+    }
+
+    private Hashtable<String, Object> createEnvironment(String ldapUrl) {
         Hashtable<String, Object> env = new Hashtable<>(11);
         env.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.ldap.LdapCtxFactory");
         env.put("java.naming.ldap.factory.socket", TrustAllSSLSocketFactory.class.getName());
@@ -75,44 +187,131 @@ public class LDAPHelper {
             logger.debug("Attempting anonymous bind");
         }
 
-        env.put(Context.PROVIDER_URL, ldapConnectionString);
-        env.put("java.naming.ldap.attributes.binary", "objectSID");
+        env.put(Context.PROVIDER_URL, ldapUrl);
+        env.put("java.naming.ldap.attributes.binary", "objectSID tokenGroups invocationId");
+        // without them an unresponsive domain controller blocks the calling thread for good
+        if (connectTimeoutSeconds > 0) {
+            env.put(LDAPConnectionPool.CONNECT_TIMEOUT_PROPERTY, String.valueOf(connectTimeoutSeconds * 1000L));
+        }
+        if (readTimeoutSeconds > 0) {
+            env.put(LDAPConnectionPool.READ_TIMEOUT_PROPERTY, String.valueOf(readTimeoutSeconds * 1000L));
+        }
+        return env;
+    }
+
+    private static String toSearchBase(String domain) {
+        StringBuilder searchBase = new StringBuilder();
+        for(String dc:(domain.split("\\."))){
+            if (searchBase.length() > 0) {
+                searchBase.append(',');
+            }
+            searchBase.append("DC=").append(dc);
+        }
+        return searchBase.toString();
+    }
 
-        // Grab the current classloader to restore after loading custom sockets in JNDI context
-        ClassLoader cl = Thread.currentThread().getContextClassLoader();
 
-        DirContext ctx = null;
+    public javax.naming.directory.Attributes getADObjectAttributes(final String distinguishedName){
         try {
+            return endpoints.execute(new LDAPConnectionPool.Operation<javax.naming.directory.Attributes>() {
+                @Override
+                public javax.naming.directory.Attributes run(LdapContext ctx) throws NamingException {
+                    return ctx.getAttributes(distinguishedName);
+                }
+            });
+        } catch (NamingException e) {
+            logger.error("Could not connect to LDAP with provided method", e);
+        }
+        return null;
+    }
 
-            Thread.currentThread().setContextClassLoader(TrustAllSSLSocketFactory.class.getClassLoader());
-            // Create initial context
-            ctx = new InitialDirContext(env);
+    /**
+     * Fetches the objectClass, objectSid and userPrincipalName of many objects with one search per
+     * role_mapping_batch_size distinguished names instead of one lookup per name. Objects outside of the search
+     * base (e.g. in another domain of the forest) are not found by the search and are read one by one.
+     *
+     * @return the attributes by distinguished name, objects which do not exist or could not be read are missing
+     * @throws NamingException if a batch search failed, the result would be missing a whole batch of objects
+     */
+    @Override
+    public Map<LdapName, javax.naming.directory.Attributes> getADObjectsAttributes(Collection<String> distinguishedNames)
+            throws NamingException {
+        final Map<LdapName, javax.naming.directory.Attributes> objects = new HashMap<>();
+        final List<String> names = new ArrayList<>(distinguishedNames);
+
+        for (int from = 0; from < names.size(); from += roleMappingBatchSize) {
+            final List<String> batch = names.subList(from, Math.min(names.size(), from + roleMappingBatchSize));
+            final StringBuilder query = new StringBuilder("(|");
+            for (String dn : batch) {
+                query.append("(distinguishedName=").append(escapeFilterValue(dn)).append(')');
+            }
+            query.append(')');
 
-            return ctx.getAttributes(distinguishedName);
+            search(query.toString(), ROLE_MAPPING_ATTRIBUTES, new SearchResultHandler() {
+                @Override
+                public boolean handle(SearchResult result) throws NamingException {
+                    objects.put(new LdapName(result.getNameInNamespace()), result.getAttributes());
+                    return true;
+                }
+            });
+        }
 
+        // every batch succeeded, so a missing object is not in the search base
 
-        } catch (NamingException e) {
-            logger.error("Could not connect to LDAP with provided method", e);
-        } finally {
-            if(ctx != null){
-                try {
-                    ctx.close();
-                } catch (NamingException e) {
-                    // pass
+        for (String dn : names) {
+            final LdapName name;
+            try {
+                name = new LdapName(dn);
+            } catch (InvalidNameException e) {
+                continue;
+            }
+            if (!objects.containsKey(name)) {
+                javax.naming.directory.Attributes attributes = getADObjectAttributes(dn, ROLE_MAPPING_ATTRIBUTES);
+                if (attributes != null) {
+                    objects.put(name, attributes);
                 }
             }
-            Thread.currentThread().setContextClassLoader(cl);
+        }
+        logger.debug("Read {} of {} role mapping objects", objects.size(), names.size());
+        return objects;
+    }
+
+    private javax.naming.directory.Attributes getADObjectAttributes(final String distinguishedName, final String[] attributes) {
+        try {
+            return endpoints.execute(new LDAPConnectionPool.Operation<javax.naming.directory.Attributes>() {
+                @Override
+                public javax.naming.directory.Attributes run(LdapContext ctx) throws NamingException {
+                    return ctx.getAttributes(distinguishedName, attributes);
+                }
+            });
+        } catch (NamingException e) {
+            logger.debug("Could not read {}: {}", distinguishedName, e);
         }
         return null;
     }
 
-    public String getSidFromGroup(String distinguishedName){
+    // RFC 4515 escaping of an assertion value
+    static String escapeFilterValue(String value) {
+        final StringBuilder escaped = new StringBuilder(value.length() + 8);
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+                case '\\': escaped.append("\\5c"); break;
+                case '*': escaped.append("\\2a"); break;
+                case '(': escaped.append("\\28"); break;
+                case ')': escaped.append("\\29"); break;
+                case '\0': escaped.append("\\00"); break;
+                default: escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    public Sid getSidFromGroup(String distinguishedName){
         try {
             javax.naming.directory.Attributes attributes = getADObjectAttributes(distinguishedName);
             if(attributes != null) {
-                byte[] sidbytes = null;
-                sidbytes = (byte[])attributes.get("objectSid").get();
-                return decodeSID(sidbytes);
+                return Sid.wrap((byte[]) attributes.get("objectSid").get());
             }
         } catch (NamingException e) {
             logger.error("Error retrieving sid from distinguished name '{}' : {}", distinguishedName, e);
@@ -120,187 +319,427 @@ public class LDAPHelper {
         return null;
     }
 
-    public ArrayList<String> getMemberGroups(String groupDistinguishedName){
+    @Override
+    public ArrayList<String> getMemberGroups(String groupDistinguishedName) throws NamingException {
                         logger.debug("Getting member groups in Group " + groupDistinguishedName);
-        ArrayList<String> nestedGroups = new ArrayList();
+        final ArrayList<String> nestedGroups = new ArrayList<>();
 
-        String query = "(&(objectClass=group)(memberOf=" + groupDistinguishedName + "))";
+        String query = "(&(objectClass=group)(memberOf=" + escapeFilterValue(groupDistinguishedName) + "))";
 
-        try{
-            NamingEnumeration<SearchResult> result = queryLdap(query);
-            //javax.naming.directory.Attributes
-            if(result != null && result.hasMore()){
-                SearchResult group = result.nextElement();
-                String nestedGroupDistinguishedName = group.getAttributes().get("distinguishedname").get().toString();
-                nestedGroups.add(nestedGroupDistinguishedName);
+        traverserStats.query();
+        search(query, NO_ATTRIBUTES, new SearchResultHandler() {
+            @Override
+            public boolean handle(SearchResult group) throws NamingException {
+                nestedGroups.add(group.getNameInNamespace());
+                return true;
             }
-        }catch (Exception e){
-                        logger.warn("Error occurred filtering user groups " + e);
-        }
+        });
 
         return nestedGroups;
     }
 
-    public String[] getNestedGroupsInGroup(String groupDistinguishedName, int maxDepth, int maxThreads) throws InterruptedException {
-        LDAPGroupTraverser traverser = new LDAPGroupTraverser(groupDistinguishedName, this,maxDepth,maxThreads,logger);
-        traverser.startTraversing();
-        while (!traverser.isTraversingComplete()) {
-            // do nothing
-            Thread.sleep(50);
+    /**
+     * @return all groups nested (transitively) in the given group, resolved by the client side traverser or level by
+     * level with batched queries (both limited to maxDepth levels) or with a single matching rule in chain query
+     * @throws NamingException if any of the queries failed, the groups found up to then are incomplete
+     */
+    @Override
+    public String[] getNestedGroupsInGroup(String groupDistinguishedName, int maxDepth) throws InterruptedException, NamingException {
+        final long start = System.nanoTime();
+        final String[] groups;
+        final NestedGroupResolutionStats stats;
+        if (SettingConstants.NESTED_GROUP_RESOLUTION_IN_CHAIN.equals(nestedGroupResolution)) {
+            groups = getNestedGroupsInChain(groupDistinguishedName);
+            stats = inChainStats;
+        } else if (SettingConstants.NESTED_GROUP_RESOLUTION_LEVEL_BATCHED.equals(nestedGroupResolution)) {
+            groups = getNestedGroupsByLevel(groupDistinguishedName, maxDepth);
+            stats = levelBatchedStats;
+        } else {
+            groups = traverseNestedGroups(groupDistinguishedName, maxDepth);
+            stats = traverserStats;
         }
-        traverser.cleanUp();
-        return Arrays.copyOf(traverser.groups.toArray(), traverser.groups.toArray().length, String[].class);
+        stats.resolved(groups.length, System.nanoTime() - start);
+        return groups;
     }
 
-    public ArrayList<String> getUserRoles(String sAMAccountName){
-        ArrayList<String> groups = new ArrayList();
-        String query = "(&(objectClass=user)(sAMAccountName=" + sAMAccountName + "))";
-
-        try{
-            NamingEnumeration<SearchResult> result = queryLdap(query);
-            //javax.naming.directory.Attributes
-            if(result != null && result.hasMore()){
-                SearchResult user = result.nextElement();
-                javax.naming.directory.Attributes userAttributes = user.getAttributes();
-                javax.naming.directory.Attribute memberobAttribute =  userAttributes.get("memberof");
-
-                NamingEnumeration memberGroups = memberobAttribute.getAll();
-                while (memberGroups.hasMore() ) {
-                    String group = memberGroups.next().toString();
-                    if(!groups.contains(group)){
-                        logger.debug("User {} in LDAP group {}", sAMAccountName, group);
-                        groups.add(group);
-                    }
-                }
+    private String[] getNestedGroupsInChain(String groupDistinguishedName) throws NamingException {
+        final ArrayList<String> nestedGroups = new ArrayList<>();
+        inChainStats.query();
+        search(inChainFilter(groupDistinguishedName), NO_ATTRIBUTES, new SearchResultHandler() {
+            @Override
+            public boolean handle(SearchResult group) {
+                nestedGroups.add(group.getNameInNamespace());
+                return true;
             }
-        }catch (Exception e){
-            logger.warn("Error occurred filtering user groups", e);
-        }
+        });
+        return nestedGroups.toArray(new String[nestedGroups.size()]);
+    }
 
-        return groups;
+    /**
+     * @return the filter for all groups nested in the given group with LDAP_MATCHING_RULE_IN_CHAIN, the DC walks
+     * the whole nesting
+     */
+    static String inChainFilter(String groupDistinguishedName) {
+        return "(&(objectClass=group)(memberOf:" + MATCHING_RULE_IN_CHAIN + ":=" + escapeFilterValue(groupDistinguishedName) + "))";
     }
 
-    private NamingEnumeration<SearchResult> queryLdap(String query){
-        Hashtable<String, Object> env = new Hashtable(11);
-        env.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.ldap.LdapCtxFactory");
-        env.put("java.naming.ldap.factory.socket", TrustAllSSLSocketFactory.class.getName());
-        env.put("javax.net.ssl.keyStore", keyStorePath);
-        env.put("javax.net.ssl.keyStorePassword", keyStorePassword);
+    private String[] getNestedGroupsByLevel(String groupDistinguishedName, int maxDepth) throws NamingException {
+        return new LDAPLevelBatchedResolver(this, nestedGroupBatchSize, maxDepth, logger).resolve(groupDistinguishedName);
+    }
 
-        if(ldapUser != null && ldapPassword != null){
-            env.put(Context.SECURITY_AUTHENTICATION, "simple");
-            env.put(Context.SECURITY_PRINCIPAL, ldapUser);
-            env.put(Context.SECURITY_CREDENTIALS, ldapPassword);
-            logger.debug("Connecting to LDAP with username: {}", ldapUser);
-        }else{
-            env.put(Context.SECURITY_AUTHENTICATION, "none");
-            logger.debug("Attempting anonymous bind");
+    /**
+     * @return the groups which are direct members of any of the given groups, found with a single
+     * {@code (|(memberOf=a)(memberOf=b)...)} query
+     */
+    @Override
+    public List<String> getMemberGroupsOfAny(List<String> groupDistinguishedNames) throws NamingException {
+        final List<String> memberGroups = new ArrayList<>();
+        final StringBuilder query = new StringBuilder("(&(objectClass=group)(|");
+        for (String dn : groupDistinguishedNames) {
+            query.append("(memberOf=").append(escapeFilterValue(dn)).append(')');
         }
+        query.append("))");
+
+        levelBatchedStats.query();
+        search(query.toString(), NO_ATTRIBUTES, new SearchResultHandler() {
+            @Override
+            public boolean handle(SearchResult group) {
+                memberGroups.add(group.getNameInNamespace());
+                return true;
+            }
+        });
+        return memberGroups;
+    }
 
-        env.put(Context.PROVIDER_URL, ldapConnectionString);
-        env.put("java.naming.ldap.attributes.binary", "objectSID");
+    private String[] traverseNestedGroups(String groupDistinguishedName, int maxDepth) throws InterruptedException, NamingException {
+        final Set<String> groups = new LDAPGroupTraverser(this, traverserExecutor, maxDepth, logger).traverse(groupDistinguishedName);
+        return groups.toArray(new String[groups.size()]);
+    }
+
+    public ArrayList<String> getUserRoles(final String sAMAccountName) throws NamingException {
+        return new ArrayList<>(loadUserGroups(sAMAccountName, false).groups);
+    }
 
-        List<String> formatedDomain = new ArrayList();
-        for(String dc:(ldapDomain.split("\\."))){
-            formatedDomain.add("DC=" + dc + ",");
+    /**
+     * Reads the groups of the user, lookup failures are thrown instead of being reported as no groups. tokenGroups
+     * can only be read with a base scope lookup, so it is read after the user was found.
+     *
+     * @param tokenGroups if true the SIDs of all transitive groups are read from tokenGroups, otherwise the DNs of
+     *                    the direct groups from memberOf
+     */
+    public UserGroupCache.UserGroups loadUserGroups(final String sAMAccountName, final boolean tokenGroups) throws NamingException {
+        final List<String> groups = new ArrayList<>();
+        final List<Sid> sids = new ArrayList<>();
+        final String[] userDn = new String[1];
+        String query = "(&(objectClass=user)(sAMAccountName=" + escapeFilterValue(sAMAccountName) + "))";
+
+        search(query, tokenGroups ? NO_ATTRIBUTES : MEMBER_OF_ATTRIBUTES, new SearchResultHandler() {
+            @Override
+            public boolean handle(SearchResult user) throws NamingException {
+                userDn[0] = user.getNameInNamespace();
+                javax.naming.directory.Attribute memberobAttribute = user.getAttributes().get("memberof");
+                if (memberobAttribute != null) {
+                    NamingEnumeration<?> memberGroups = memberobAttribute.getAll();
+                    while (memberGroups.hasMore() ) {
+                        String group = memberGroups.next().toString();
+                        if(!groups.contains(group)){
+                            logger.debug("User {} in LDAP group {}", sAMAccountName, group);
+                            groups.add(group);
+                        }
+                    }
+                }
+                // sAMAccountName is unique within the domain
+                return false;
+            }
+        });
+
+        if (tokenGroups && userDn[0] != null) {
+            endpoints.execute(new LDAPConnectionPool.Operation<Void>() {
+                @Override
+                public Void run(LdapContext ctx) throws NamingException {
+                    javax.naming.directory.Attribute tokenGroups = ctx.getAttributes(userDn[0], TOKEN_GROUPS_ATTRIBUTES).get("tokenGroups");
+                    if (tokenGroups != null) {
+                        NamingEnumeration<?> values = tokenGroups.getAll();
+                        while (values.hasMore()) {
+                            sids.add(Sid.wrap((byte[]) values.next()));
+                        }
+                    }
+                    return null;
+                }
+            });
+            logger.debug("User {} has {} token groups", sAMAccountName, sids.size());
         }
-        String searchBase = "";
-        for (String aFormatedDomain : formatedDomain) {
-            searchBase += aFormatedDomain;
+
+        return new UserGroupCache.UserGroups(userDn[0], groups, sids);
+    }
+
+    /**
+     * Subscribes to changes of the objects directly below the container and hands every changed object to the
+     * handler until the handler returns false, nothing changed within timeoutSeconds or the connection fails. The
+     * subscription blocks its connection for its whole lifetime, so it gets a dedicated one instead of a pooled one.
+     *
+     * @param persistentSearch if true the generic persistent search control is used, otherwise the Active Directory
+     *                         change notification control
+     * @param watch            receives the connection and the search, closing it ends the subscription from another
+     *                         thread
+     */
+    public void watch(String container, boolean persistentSearch, int timeoutSeconds, String[] attributes, SearchResultHandler handler,
+            Watch watch) throws NamingException {
+        NamingException lastFailure = null;
+        for (String url : ldapUrls) {
+            final Hashtable<String, Object> env = createEnvironment(url);
+            env.put(LDAPConnectionPool.READ_TIMEOUT_PROPERTY, String.valueOf(timeoutSeconds * 1000L));
+            final LdapContext ctx;
+            try {
+                ctx = LDAPConnectionPool.connect(env);
+            } catch (CommunicationException | ServiceUnavailableException e) {
+                lastFailure = e;
+                continue;
+            }
+            watch.context = ctx;
+            try {
+                if (watch.closed) {
+                    return;
+                }
+                ctx.setRequestControls(new Control[] { persistentSearch
+                        ? new BasicControl(PERSISTENT_SEARCH_OID, true, PERSISTENT_SEARCH_VALUE)
+                        : new BasicControl(CHANGE_NOTIFICATION_OID, true, null) });
+                final SearchControls searchControls = new SearchControls();
+                // Active Directory only supports base and one level scope for notifications
+                searchControls.setSearchScope(SearchControls.ONELEVEL_SCOPE);
+                searchControls.setReturningAttributes(attributes);
+                final NamingEnumeration<SearchResult> changes = ctx.search(container, "(objectClass=*)", searchControls);
+                watch.changes = changes;
+                try {
+                    while (!watch.closed && changes.hasMore()) {
+                        if (!handler.handle(changes.next())) {
+                            return;
+                        }
+                    }
+                } finally {
+                    changes.close();
+                }
+                return;
+            } finally {
+                ctx.close();
+            }
         }
-        searchBase = searchBase.substring(0,  searchBase.length()-1);
-        logger.debug("Search base {}", searchBase);
+        throw lastFailure != null ? lastFailure : new ServiceUnavailableException("No LDAP endpoint configured");
+    }
 
-        // Grab the current classloader to restore after loading custom sockets in JNDI context
-        ClassLoader cl = Thread.currentThread().getContextClassLoader();
+    /**
+     * Reads the groups changed on a domain controller since the given update sequence number. USNs are local to a
+     * domain controller, so the root DSE and the changes are read over the same connection and nothing is searched
+     * if it is not the domain controller the USN came from. The LDAP URL of the last sync is used while it is up,
+     * so consecutive syncs stay on one domain controller instead of following the fastest one.
+     *
+     * @param ldapUrl the LDAP URL the last sync used or null for the fastest one
+     * @param domainController the identity of the domain controller of sinceUsn or null to only read the current
+     *                         position of the domain controller
+     * @return the LDAP URL used, the identity and highest committed USN of the domain controller and the DNs of the
+     * groups with a higher uSNChanged, groups is null if domainController was null or is a different one
+     */
+    @Override
+    public ChangedGroups getChangedGroups(final String ldapUrl, final String domainController, final long sinceUsn)
+            throws NamingException {
+        return endpoints.execute(ldapUrl, new LDAPConnectionPool.Operation<ChangedGroups>() {
+            @Override
+            public ChangedGroups run(LdapContext ctx) throws NamingException {
+                final String url = (String) ctx.getEnvironment().get(Context.PROVIDER_URL);
+                final javax.naming.directory.Attributes rootDse = ctx.getAttributes("", ROOT_DSE_ATTRIBUTES);
+                final String dsServiceName = rootDse.get("dsServiceName").get().toString();
+                final long highestCommittedUsn = Long.parseLong(rootDse.get("highestCommittedUSN").get().toString());
+                // the invocation id changes when the database of the domain controller is restored, which
+                // invalidates its USNs
+                final javax.naming.directory.Attribute invocationId = ctx.getAttributes(dsServiceName, INVOCATION_ID_ATTRIBUTES).get("invocationId");
+                final String identity = invocationId == null ? dsServiceName
+                        : dsServiceName + "#" + Base64Util.encode((byte[]) invocationId.get());
+
+                if (domainController == null || !domainController.equals(identity)) {
+                    return new ChangedGroups(url, identity, highestCommittedUsn, null);
+                }
 
-        DirContext ctx = null;
-        try {
+                final List<String> groups = new ArrayList<>();
+                search(ctx, "(&(objectClass=group)(uSNChanged>=" + (sinceUsn + 1) + "))", NO_ATTRIBUTES, new SearchResultHandler() {
+                    @Override
+                    public boolean handle(SearchResult group) {
+                        groups.add(group.getNameInNamespace());
+                        return true;
+                    }
+                });
+                return new ChangedGroups(url, identity, highestCommittedUsn, groups);
+            }
+        });
+    }
 
-            Thread.currentThread().setContextClassLoader(TrustAllSSLSocketFactory.class.getClassLoader());
-            // Create initial context
-            ctx = new InitialDirContext(env);
+    /**
+     * Runs a subtree search below the domain using the Simple Paged Results control (RFC 2696) and hands every
+     * result to the handler as soon as its page arrives. The pooled connection is held until the search is
+     * drained or the handler stops it, results are never collected.
+     */
+    public void search(final String query, final String[] attributes, final SearchResultHandler handler) throws NamingException {
+        endpoints.execute(new LDAPConnectionPool.Operation<Void>() {
+            @Override
+            public Void run(LdapContext ctx) throws NamingException {
+                search(ctx, query, attributes, handler);
+                return null;
+            }
+        });
+    }
 
+    private void search(LdapContext ctx, String query, String[] attributes, SearchResultHandler handler) throws NamingException {
+        pagedSearch(ctx, searchBase, query, attributes, pageSize, handler);
+    }
 
-            SearchControls searchControls = new SearchControls();
-            searchControls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+    /**
+     * Reads the results page by page until they are drained or the handler stops, then releases the paged search
+     * on the server and resets the request controls of the connection.
+     */
+    static void pagedSearch(LdapContext ctx, String searchBase, String query, String[] attributes, int pageSize,
+            SearchResultHandler handler) throws NamingException {
+        final SearchControls searchControls = new SearchControls();
+        searchControls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        searchControls.setReturningAttributes(attributes);
 
-            return ctx.search(searchBase, query, searchControls);
+        try {
+            byte[] cookie = null;
+            boolean proceed = true;
+            do {
+                ctx.setRequestControls(new Control[] { pagedResultsControl(pageSize, cookie) });
+                final NamingEnumeration<SearchResult> page = ctx.search(searchBase, query, searchControls);
+                try {
+                    while (proceed && page.hasMore()) {
+                        proceed = handler.handle(page.next());
+                    }
+                } finally {
+                    page.close();
+                }
+                cookie = responseCookie(ctx);
+            } while (proceed && cookie != null);
 
-        } catch (NamingException e) {
-            logger.error("Could not connect to LDAP with provided method", e);
+            if (cookie != null) {
+                // stopped early, a page size of 0 tells the server to release the paged search
+                ctx.setRequestControls(new Control[] { pagedResultsControl(0, cookie) });
+                ctx.search(searchBase, query, searchControls).close();
+            }
         } finally {
-            if(ctx != null){
+            // the connection goes back to the pool
+            ctx.setRequestControls(null);
+        }
+    }
+
+    private static Control pagedResultsControl(int size, byte[] cookie) throws NamingException {
+        try {
+            // non critical, so servers without paging support simply return everything at once
+            return new PagedResultsControl(size, cookie, Control.NONCRITICAL);
+        } catch (IOException e) {
+            throw new NamingException("Unable to encode paged results control: " + e);
+        }
+    }
+
+    private static byte[] responseCookie(LdapContext ctx) throws NamingException {
+        final Control[] controls = ctx.getResponseControls();
+        if (controls != null) {
+            for (Control control : controls) {
+                if (control instanceof PagedResultsResponseControl) {
+                    final byte[] cookie = ((PagedResultsResponseControl) control).getCookie();
+                    return cookie == null || cookie.length == 0 ? null : cookie;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A running {@link #watch} subscription.
+     */
+    public static final class Watch {
+        private volatile LdapContext context;
+        private volatile NamingEnumeration<SearchResult> changes;
+        private volatile boolean closed;
+
+        /**
+         * Ends the subscription: abandons the search, which wakes up the thread waiting for changes, and closes the
+         * connection. Safe to call from any thread, at any time and more than once.
+         */
+        public void close() {
+            closed = true;
+            final NamingEnumeration<SearchResult> pending = changes;
+            if (pending != null) {
+                try {
+                    pending.close();
+                } catch (NamingException e) {
+                    // pass
+                }
+            }
+            final LdapContext ctx = context;
+            if (ctx != null) {
                 try {
                     ctx.close();
                 } catch (NamingException e) {
                     // pass
                 }
             }
-            Thread.currentThread().setContextClassLoader(cl);
         }
-        return null;
-    }
 
-    public boolean isInRole(String group, String principal){
-        String query = "(&(objectClass=user)(sAMAccountName=" + principal + ")(memberOf:1.2.840.113556.1.4.1941:=" + group + "))";
-        logger.debug("isInRole query: " + query);
-        NamingEnumeration<SearchResult> results = queryLdap(query);
-        try{
-            logger.debug("isInRole hasMoreElements: " + results.hasMoreElements());
-            return results.hasMoreElements();
-        } catch(Exception e){
-            return false;
+        public boolean isClosed() {
+            return closed;
+        }
+
+        /**
+         * @return true once the search was sent and until the subscription is closed
+         */
+        public boolean isOpen() {
+            return changes != null && !closed;
         }
     }
 
-    /*
-      * The binary data is in the form:
-      * byte[0] - revision level
-      * byte[1] - count of sub-authorities
-      * byte[2-7] - 48 bit authority (big-endian)
-      * and then count x 32 bit sub authorities (little-endian)
-      *
-      * The String value is: S-Revision-Authority-SubAuthority[n]...
-      *
-      * Based on code from here - http://forums.oracle.com/forums/thread.jspa?threadID=1155740&tstart=0
-      */
-    private String decodeSID(byte[] sid) {
-
-        final StringBuilder strSid = new StringBuilder("S-");
-
-        // get version
-        final int revision = sid[0];
-        strSid.append(Integer.toString(revision));
-
-        //next byte is the count of sub-authorities
-        final int countSubAuths = sid[1] & 0xFF;
-
-        //get the authority
-        long authority = 0;
-        //String rid = "";
-        for(int i = 2; i <= 7; i++) {
-            authority |= ((long)sid[i]) << (8 * (5 - (i - 2)));
+    /**
+     * Position of a domain controller in its change history and the groups changed since a previous position.
+     */
+    public static final class ChangedGroups {
+        public final String ldapUrl;
+        public final String domainController;
+        public final long highestCommittedUsn;
+        public final List<String> groups;
+
+        ChangedGroups(String ldapUrl, String domainController, long highestCommittedUsn, List<String> groups) {
+            this.ldapUrl = ldapUrl;
+            this.domainController = domainController;
+            this.highestCommittedUsn = highestCommittedUsn;
+            this.groups = groups;
         }
-        strSid.append("-");
-        strSid.append(Long.toHexString(authority));
-
-        //iterate all the sub-auths
-        int offset = 8;
-        int size = 4; //4 bytes for each sub auth
-        for(int j = 0; j < countSubAuths; j++) {
-            long subAuthority = 0;
-            for(int k = 0; k < size; k++) {
-                subAuthority |= (long)(sid[offset + k] & 0xFF) << (8 * k);
-            }
+    }
 
-            strSid.append("-");
-            strSid.append(subAuthority);
+    /**
+     * Receives the results of a streaming {@link #search}.
+     */
+    public interface SearchResultHandler {
 
-            offset += size;
-        }
+        /**
+         * @return true to receive further results, false to stop the search
+         */
+        boolean handle(SearchResult result) throws NamingException;
+    }
 
-        return strSid.toString();
+    public boolean isInRole(String group, String principal){
+        String query = "(&(objectClass=user)(sAMAccountName=" + escapeFilterValue(principal) + ")(memberOf:" + MATCHING_RULE_IN_CHAIN
+                + ":=" + escapeFilterValue(group) + "))";
+        logger.debug("isInRole query: " + query);
+        final boolean[] found = new boolean[1];
+        try {
+            search(query, NO_ATTRIBUTES, new SearchResultHandler() {
+                @Override
+                public boolean handle(SearchResult result) {
+                    found[0] = true;
+                    return false;
+                }
+            });
+        } catch (NamingException e) {
+            logger.error("Could not connect to LDAP with provided method", e);
+        }
+        logger.debug("isInRole hasMoreElements: " + found[0]);
+        return found[0];
     }
 
 }
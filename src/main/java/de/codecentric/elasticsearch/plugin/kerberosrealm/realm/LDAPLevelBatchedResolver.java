@@ -0,0 +1,81 @@
+package de.codecentric.elasticsearch.plugin.kerberosrealm.realm;
+
+import org.elasticsearch.common.logging.ESLogger;
+
+import javax.naming.NamingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finds the groups nested in a group one level at a time: the member groups of all groups found on a level are
+ * searched with one {@code (|(memberOf=a)(memberOf=b)...)} query per batchSize groups, so a hierarchy costs a few
+ * queries per level instead of one per group.
+ * <p>
+ * DNs are compared case-insensitively like the directory does, so a group returned with a different case over
+ * another path is neither expanded nor returned twice, and cycles end. If any query fails, the resolution fails
+ * instead of returning the groups found so far.
+ */
+public class LDAPLevelBatchedResolver {
+
+    private final BatchMemberGroupSource source;
+    private final int batchSize;
+    public final int maxGroupDepth;
+    private final ESLogger logger;
+
+    public LDAPLevelBatchedResolver(BatchMemberGroupSource memberGroupSource, int batchSize, int maxGroupDepth, ESLogger logger) {
+        this.source = memberGroupSource;
+        this.batchSize = batchSize;
+        this.maxGroupDepth = maxGroupDepth;
+        this.logger = logger;
+    }
+
+    /**
+     * @return the groups nested in the given group up to maxGroupDepth levels in the order they were found,
+     * including the group itself only if it is nested in one of them
+     * @throws NamingException the failure of the first query which failed
+     */
+    public String[] resolve(String groupDn) throws NamingException {
+        final List<String> nestedGroups = new ArrayList<>();
+        // lower case DNs of the groups returned
+        final Set<String> found = new HashSet<>();
+        // lower case DNs of the groups expanded or about to be expanded
+        final Set<String> expanded = new HashSet<>();
+        expanded.add(groupDn.toLowerCase(Locale.ROOT));
+        List<String> level = Collections.singletonList(groupDn);
+
+        for (int depth = 1; depth <= maxGroupDepth && !level.isEmpty(); depth++) {
+            final long start = System.nanoTime();
+            final List<String> nextLevel = new ArrayList<>();
+            int queries = 0;
+            for (int from = 0; from < level.size(); from += batchSize) {
+                final List<String> batch = level.subList(from, Math.min(level.size(), from + batchSize));
+                queries++;
+                for (String dn : source.getMemberGroupsOfAny(batch)) {
+                    final String lowerCaseDn = dn.toLowerCase(Locale.ROOT);
+                    if (found.add(lowerCaseDn)) {
+                        nestedGroups.add(dn);
+                    }
+                    if (expanded.add(lowerCaseDn)) {
+                        nextLevel.add(dn);
+                    }
+                }
+            }
+            logger.debug("Level {} of {}: {} groups in {} queries, {} new groups, took {} ms", depth, groupDn,
+                    level.size(), queries, nextLevel.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            level = nextLevel;
+        }
+        return nestedGroups.toArray(new String[nestedGroups.size()]);
+    }
+
+    /**
+     * Returns the groups which are direct members of any of the given groups, with one query.
+     */
+    public interface BatchMemberGroupSource {
+        List<String> getMemberGroupsOfAny(List<String> groupDns) throws NamingException;
+    }
+}
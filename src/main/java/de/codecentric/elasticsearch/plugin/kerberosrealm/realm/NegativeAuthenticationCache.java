@@ -0,0 +1,91 @@
+package de.codecentric.elasticsearch.plugin.kerberosrealm.realm;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers tokens which failed validation for a short time, so that a client looping with a bad or stale token is
+ * rejected without doing the GSS work again.
+ * <p>
+ * Failed tokens are keyed by their fingerprint and the host they came from and are checked before the token is
+ * accepted. Only tokens the acceptor rejected are remembered, failures which are not caused by the token (an expired
+ * service credential, an unreachable directory) are not.
+ */
+public class NegativeAuthenticationCache implements ToXContent {
+
+    private final Cache<TokenKey, Boolean> failures;
+    private final AtomicLong tokenHits = new AtomicLong();
+
+    public NegativeAuthenticationCache(int maxEntries, int ttlSeconds) {
+        failures = CacheBuilder.newBuilder()
+                .maximumSize(maxEntries)
+                .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                .build();
+    }
+
+    void checkToken(TokenFingerprint fingerprint, String host) {
+        if (failures.getIfPresent(new TokenKey(fingerprint, host)) != null) {
+            tokenHits.incrementAndGet();
+            throw new NegativeCacheHitException();
+        }
+    }
+
+    void tokenFailed(TokenFingerprint fingerprint, String host) {
+        failures.put(new TokenKey(fingerprint, host), Boolean.TRUE);
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject("negative_cache");
+        builder.field("size", failures.size());
+        builder.field("token_hits", tokenHits.get());
+        builder.endObject();
+        return builder;
+    }
+
+    /**
+     * Thrown on a cache hit. It is expected on every looping request, so it carries no stack trace.
+     */
+    static final class NegativeCacheHitException extends ElasticsearchException {
+
+        NegativeCacheHitException() {
+            super("Authentication failed recently, not retrying yet");
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+
+    private static final class TokenKey {
+        final TokenFingerprint fingerprint;
+        final String host;
+
+        TokenKey(TokenFingerprint fingerprint, String host) {
+            this.fingerprint = fingerprint;
+            this.host = host;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * fingerprint.hashCode() + (host == null ? 0 : host.hashCode());
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof TokenKey)) {
+                return false;
+            }
+            final TokenKey other = (TokenKey) obj;
+            return fingerprint.equals(other.fingerprint) && (host == null ? other.host == null : host.equals(other.host));
+        }
+    }
+}
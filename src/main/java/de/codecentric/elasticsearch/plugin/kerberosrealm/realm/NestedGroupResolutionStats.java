@@ -0,0 +1,48 @@
+package de.codecentric.elasticsearch.plugin.kerberosrealm.realm;
+
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Query count and latency of the nested group resolution of one mode, so that the client side traversal and the
+ * server side matching rule in chain can be compared on a given directory.
+ */
+public class NestedGroupResolutionStats implements ToXContent {
+
+    private final String mode;
+    private final AtomicLong resolutions = new AtomicLong();
+    private final AtomicLong queries = new AtomicLong();
+    private final AtomicLong groups = new AtomicLong();
+    private final AtomicLong nanos = new AtomicLong();
+
+    public NestedGroupResolutionStats(String mode) {
+        this.mode = mode;
+    }
+
+    void query() {
+        queries.incrementAndGet();
+    }
+
+    void resolved(int groupCount, long elapsedNanos) {
+        resolutions.incrementAndGet();
+        groups.addAndGet(groupCount);
+        nanos.addAndGet(elapsedNanos);
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        final long count = resolutions.get();
+        final long millis = nanos.get() / 1000000L;
+        builder.startObject(mode);
+        builder.field("resolutions", count);
+        builder.field("queries", queries.get());
+        builder.field("groups", groups.get());
+        builder.field("time_in_millis", millis);
+        builder.field("avg_time_in_millis", count == 0 ? 0 : millis / count);
+        builder.endObject();
+        return builder;
+    }
+}
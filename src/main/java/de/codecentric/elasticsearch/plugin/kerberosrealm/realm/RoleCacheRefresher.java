@@ -15,7 +15,7 @@ public class RoleCacheRefresher implements Runnable{
         long cacheMilliseconds = _cacheMinutes * 60 * 1000;
         while(!Thread.interrupted()) {
            try{
-                _roleMapper.LoadRoles();
+                _roleMapper.syncRoles();
                 Thread.sleep(cacheMilliseconds);
            } catch (InterruptedException e) {
                 // We've been interrupted: no more messages.
@@ -2,77 +2,252 @@ package de.codecentric.elasticsearch.plugin.kerberosrealm.realm;
 
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ListMultimap;
+import de.codecentric.elasticsearch.plugin.kerberosrealm.support.Sid;
 import org.elasticsearch.common.SuppressForbidden;
+import de.codecentric.elasticsearch.plugin.kerberosrealm.support.SettingConstants;
 import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.yaml.snakeyaml.Yaml;
 
+import javax.naming.InvalidNameException;
 import javax.naming.NamingException;
-import java.io.File;
-import java.io.FileInputStream;
+import javax.naming.ldap.LdapName;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 @SuppressForbidden(
-        reason = "Loading Shiled role_mapping.yml file with io.File"
+        reason = "Loading Shield role_mapping.yml file with Paths.get()"
 )
-public class RoleMapper {
+public class RoleMapper implements ToXContent {
     private final ESLogger logger;
     private final boolean _stripRealmFromPrincipalName;
-    // maps principal string to shield role
-    public ListMultimap<String, String> rolesMap = ArrayListMultimap.create();
-    // maps group string to shield role
-    public ListMultimap<String, String> groupMap = ArrayListMultimap.create();
 
     private final int maxNestedGroupDepth;
-    private final int maxThreadsToUseToFindNestedGroups;
 
     private final String _roleMappingFilePath;
-    private LDAPHelper _ldapHelper;
-    private Object rolesLock = new Object();
-    private Object groupLock = new Object();
+    private Directory _ldapHelper;
+    // LoadRoles and syncRoles may be called by the file watcher and the refresher at the same time
+    private final Object refreshLock = new Object();
 
-    public RoleMapper(String roleMappingFilePath, LDAPHelper ldapHelper, boolean stripRealmFromPrincipalName, int maxGroupDepth, int maxThreads, ESLogger esLogger){
+    // the published mapping, replaced as a whole and only while holding refreshLock
+    private volatile RoleMappingSnapshot snapshot = RoleMappingSnapshot.EMPTY;
+
+    private final boolean incrementalSync;
+    // null if the sync state is only kept in memory
+    private final Path syncStateFile;
+    private RoleMappingSyncState syncState;
+    private final long fullSyncMillis;
+    // guarded by refreshLock
+    private long lastFullSyncMillis;
+    // the mapping in use lacks entries of role_mapping.yml or the last reload was discarded, an incremental sync
+    // would never pick them up, guarded by refreshLock
+    private boolean fullSyncPending;
+
+    // a reload which read less of the mapped users and groups keeps the previous mapping
+    private final double minSuccessRatio;
+    private volatile long lastReloadMillis;
+    private volatile double lastReloadSuccessRatio = 1;
+    private volatile long lastSuccessMillis;
+    private final AtomicLong rejectedReloads = new AtomicLong();
+    // mapped groups of the published mapping whose nested groups could not be resolved, they keep their former
+    // nested groups until the next sync resolves them again, guarded by refreshLock
+    private final Set<String> retryGroups = new HashSet<>();
+
+    // resolves the nested groups of role_mapping_parallelism mapped groups at a time
+    private final ThreadPoolExecutor resolver;
+    private final int parallelism;
+
+    public RoleMapper(String roleMappingFilePath, Directory ldapHelper, boolean stripRealmFromPrincipalName, int maxGroupDepth, ESLogger esLogger){
+        this(roleMappingFilePath, ldapHelper, stripRealmFromPrincipalName, maxGroupDepth, false, null,
+                SettingConstants.DEFAULT_ROLE_MAPPING_MIN_SUCCESS_RATIO, 0, SettingConstants.DEFAULT_ROLE_MAPPING_PARALLELISM, esLogger);
+    }
+
+    /**
+     * @param incrementalSync if true {@link #syncRoles()} only re-resolves the mapped groups affected by directory
+     *                        changes since the last sync
+     * @param syncStateFile where the state of the incremental sync is persisted, may be null
+     * @param minSuccessRatio the share of the users and groups of role_mapping.yml a reload must find in the
+     *                        directory to replace the current mapping
+     * @param fullSyncMillis with incremental sync the whole role mapping is resolved again at least this often, 0
+     *                       to only do so when needed
+     * @param parallelism the number of mapped groups whose nested groups are resolved at the same time
+     */
+    public RoleMapper(String roleMappingFilePath, Directory ldapHelper, boolean stripRealmFromPrincipalName, int maxGroupDepth,
+            boolean incrementalSync, Path syncStateFile, double minSuccessRatio, long fullSyncMillis, int parallelism, ESLogger esLogger){
         _roleMappingFilePath = roleMappingFilePath;
         _ldapHelper = ldapHelper;
         _stripRealmFromPrincipalName = stripRealmFromPrincipalName;
         maxNestedGroupDepth = maxGroupDepth;
-        maxThreadsToUseToFindNestedGroups = maxThreads;
+        this.incrementalSync = incrementalSync;
+        this.syncStateFile = syncStateFile;
+        this.minSuccessRatio = minSuccessRatio;
+        this.fullSyncMillis = fullSyncMillis;
+        this.parallelism = Math.max(1, parallelism);
+        resolver = new ThreadPoolExecutor(this.parallelism, this.parallelism, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new LDAPGroupTraverserThreadFactory("RoleMapper"));
+        // no idle threads between reloads
+        resolver.allowCoreThreadTimeOut(true);
         logger = esLogger;
     }
 
+    /**
+     * Stops resolving nested groups, a reload or sync which is running fails.
+     */
+    public void shutdown() {
+        resolver.shutdownNow();
+    }
 
+    /**
+     * @return the current role mapping, it does not change when the mapping is reloaded
+     */
+    public RoleMappingSnapshot snapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Resolves the whole role_mapping.yml against the directory.
+     */
     public void LoadRoles(){
+        synchronized (refreshLock) {
+            loadRoles();
+        }
+    }
+
+    /**
+     * Brings the role mapping up to date. With incremental sync only the mapped groups which contain a group that
+     * changed in the directory since the last sync are resolved again, everything else needs a full
+     * {@link #LoadRoles()}. So do mappings with users or groups which were not found or whose nested groups could
+     * not be resolved, and every fullSyncMillis a full resolution catches whatever the USNs did not show.
+     */
+    public void syncRoles(){
+        synchronized (refreshLock) {
+            if (!incrementalSync) {
+                loadRoles();
+                return;
+            }
+            try {
+                if (fullSyncPending) {
+                    logger.info("The role mapping in use is incomplete, resolving the whole role mapping");
+                    loadRoles();
+                    return;
+                }
+                if (syncState == null && !restoreSyncState()) {
+                    loadRoles();
+                    return;
+                }
+                if (fullSyncMillis > 0 && System.currentTimeMillis() - lastFullSyncMillis >= fullSyncMillis) {
+                    logger.debug("Resolving the whole role mapping, the last full resolution was {} ms ago",
+                            System.currentTimeMillis() - lastFullSyncMillis);
+                    loadRoles();
+                    return;
+                }
+                final LDAPHelper.ChangedGroups changes = _ldapHelper.getChangedGroups(syncState.ldapUrl, syncState.domainController,
+                        syncState.usn);
+                if (changes.groups == null) {
+                    logger.info("Domain controller changed from {} ({}) to {} ({}), resolving the whole role mapping",
+                            syncState.domainController, syncState.ldapUrl, changes.domainController, changes.ldapUrl);
+                    loadRoles();
+                    return;
+                }
+                applyChanges(changes);
+            } catch (NamingException | IOException | RuntimeException e) {
+                logger.warn("Incremental role mapping sync failed, resolving the whole role mapping", e);
+                loadRoles();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Resolves role_mapping.yml into a new mapping off to the side. It replaces the current one only if at least
+     * minSuccessRatio of the distinct users and groups of the file were found, e.g. a reload while the domain
+     * controllers are unreachable keeps the last good mapping instead of taking everybody's roles away.
+     */
+    private void loadRoles(){
         // maps principal string to shield role
         ListMultimap<String, String> tempRolesMap = ArrayListMultimap.create();
-        // maps group string to shield role
-        ListMultimap<String, String> tempGroupMap = ArrayListMultimap.create();
+        // mapped groups in file order, each resolved once even if it is mapped to several roles
+        Map<String, MappedGroup> tempGroups = new LinkedHashMap<>();
         Yaml yaml = new Yaml();
-        InputStream in = null;
+        String mappingHash = null;
+        LDAPHelper.ChangedGroups position = null;
+        // distinct users and groups in the file and how many of them were found
+        int entries = 0;
+        int found = 0;
+        boolean complete = false;
+        final Set<String> failedGroups = new HashSet<>();
+        lastFullSyncMillis = System.currentTimeMillis();
         try {
-            in = new FileInputStream(new File(_roleMappingFilePath));
-            Map<String, ArrayList<String>> roleGroups = (Map<String, ArrayList<String>>) yaml.load(in);
+            if (incrementalSync) {
+                // read before resolving, changes made while resolving are picked up by the next sync
+                try {
+                    position = _ldapHelper.getChangedGroups(syncState == null ? null : syncState.ldapUrl, null, 0);
+                } catch (NamingException | RuntimeException e) {
+                    logger.warn("Unable to read the update sequence number of the domain controller", e);
+                }
+            }
+            byte[] content = Files.readAllBytes(Paths.get(_roleMappingFilePath));
+            mappingHash = sha256(content);
+            Map<String, ArrayList<String>> roleGroups = (Map<String, ArrayList<String>>) yaml.load(new ByteArrayInputStream(content));
 
             if(roleGroups != null) {
                 logger.debug("Starting, add roles");
+                // read every distinct AD object once, in batches
+                Set<String> principalsAndGroups = new LinkedHashSet<>();
+                for(String roleGroup:roleGroups.keySet()) {
+                    for(String principalOrGroup:roleGroups.get(roleGroup)) {
+                        principalsAndGroups.add(principalOrGroup.replace("\"", ""));
+                    }
+                }
+                Map<LdapName, javax.naming.directory.Attributes> adObjects = _ldapHelper.getADObjectsAttributes(principalsAndGroups);
+                entries = principalsAndGroups.size();
+                for (String principalOrGroup : principalsAndGroups) {
+                    if (adObjects.containsKey(toLdapName(principalOrGroup))) {
+                        found++;
+                    }
+                }
+
+                // the roles of every mapped group in file order, the nested groups are resolved for all of them at once
+                Map<String, javax.naming.directory.Attributes> groupAttributes = new LinkedHashMap<>();
+                Map<String, List<String>> groupRoles = new HashMap<>();
                 for(String roleGroup:roleGroups.keySet()) {
                     logger.debug("Found Elastic role: " + roleGroup);
                     for(String principalOrGroup:roleGroups.get(roleGroup)) {
                         String cleanPrincipalOrGroup = principalOrGroup.replace("\"", "");
                         logger.debug("Found AD object in role Role: " + roleGroup + " AD Object: " + cleanPrincipalOrGroup);
-                        String groupSid;
-                        javax.naming.directory.Attributes atts = _ldapHelper.getADObjectAttributes(cleanPrincipalOrGroup);
+                        javax.naming.directory.Attributes atts = adObjects.get(toLdapName(cleanPrincipalOrGroup));
                         if(atts != null){
                         if (atts.get("objectClass").contains("group")) {
-                            groupSid = _ldapHelper.getSidFromGroup(cleanPrincipalOrGroup);
                             logger.debug("Adding group to Role: " + roleGroup + " Group: " + cleanPrincipalOrGroup);
-                            tempGroupMap.put(cleanPrincipalOrGroup, roleGroup);
-                            for (String nestedGroup : _ldapHelper.getNestedGroupsInGroup(cleanPrincipalOrGroup, maxNestedGroupDepth, maxThreadsToUseToFindNestedGroups)) {
-                                logger.debug("Adding nested group to Role: " + roleGroup + " Group: " + nestedGroup);
-                                tempGroupMap.put(nestedGroup, roleGroup);
+                            if (!groupAttributes.containsKey(cleanPrincipalOrGroup)) {
+                                groupAttributes.put(cleanPrincipalOrGroup, atts);
+                                groupRoles.put(cleanPrincipalOrGroup, new ArrayList<String>());
                             }
-                            logger.debug("Found group " + cleanPrincipalOrGroup + ":" + groupSid);
+                            groupRoles.get(cleanPrincipalOrGroup).add(roleGroup);
                         } else {
                             logger.debug("Adding User to Role: " + roleGroup + " User: " + cleanPrincipalOrGroup);
                             try {
@@ -87,29 +262,293 @@ public class RoleMapper {
                         }
                     }
                 }
-            }
 
-        } catch (IOException e) {
+                Map<String, String[]> nestedGroups = resolveNestedGroups(groupAttributes.keySet());
+                for (Map.Entry<String, javax.naming.directory.Attributes> entry : groupAttributes.entrySet()) {
+                    final String dn = entry.getKey();
+                    String[] nested = nestedGroups.get(dn);
+                    if (nested == null) {
+                        // a query of the expansion failed, the direct members keep the roles of the group and the
+                        // groups nested in it those of the last mapping, but it counts as not found
+                        found--;
+                        failedGroups.add(dn);
+                        nested = snapshot.nestedGroups(dn);
+                        if (nested == null) {
+                            nested = new String[0];
+                        }
+                    }
+                    MappedGroup group = new MappedGroup(dn, getSid(entry.getValue()), groupRoles.get(dn), nested);
+                    tempGroups.put(dn, group);
+                    logger.debug("Found group " + dn + ":" + group.sid + " with " + group.nested.length + " nested groups");
+                }
+            }
+            complete = true;
+        } catch (IOException | NamingException | RuntimeException e) {
                         logger.warn("RoleMapper had issues mapping roles", e);
         } catch (InterruptedException e) {
                         logger.warn("RoleMapper had issues mapping roles", e);
-        } finally {
-            if (in != null) {
+        }
+
+        final double successRatio = !complete ? 0 : entries == 0 ? 1 : (double) found / entries;
+        lastReloadMillis = System.currentTimeMillis();
+        lastReloadSuccessRatio = successRatio;
+        if (successRatio < minSuccessRatio) {
+            if (snapshot.generation() > 0) {
+                // the sync state still describes the mapping in use, but the changes of the discarded reload, e.g. of
+                // role_mapping.yml, are not in it
+                rejectedReloads.incrementAndGet();
+                fullSyncPending = true;
+                logger.warn("Keeping role mapping generation {}, the reload found only {} of {} users and groups of {}",
+                        snapshot.generation(), found, entries, _roleMappingFilePath);
+                return;
+            }
+            logger.warn("Using an incomplete role mapping, found only {} of {} users and groups of {}", found, entries, _roleMappingFilePath);
+        } else {
+            lastSuccessMillis = lastReloadMillis;
+        }
+        retryGroups.clear();
+        retryGroups.addAll(failedGroups);
+        fullSyncPending = !complete || found < entries;
+        final RoleMappingSnapshot published = publish(tempRolesMap, tempGroups);
+
+        // an incomplete mapping is not persisted, a restart would otherwise take it up and sync it incrementally
+        if (position != null && mappingHash != null && !fullSyncPending) {
+            updateSyncState(new RoleMappingSyncState(position.ldapUrl, position.domainController, position.highestCommittedUsn, mappingHash,
+                    published.users, published.groups()));
+        } else {
+            syncState = null;
+        }
+    }
+
+    private boolean restoreSyncState() throws IOException {
+        if (syncStateFile == null) {
+            return false;
+        }
+        final String mappingHash = sha256(Files.readAllBytes(Paths.get(_roleMappingFilePath)));
+        final RoleMappingSyncState state;
+        try {
+            state = RoleMappingSyncState.read(syncStateFile, mappingHash);
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Ignoring unreadable role mapping sync state {}", e, syncStateFile);
+            return false;
+        }
+        if (state == null) {
+            return false;
+        }
+        syncState = state.position();
+        lastFullSyncMillis = System.currentTimeMillis();
+        publish(state.users, state.groups);
+        logger.info("Restored role mapping of {} groups at USN {} of {}", state.groups.size(), state.usn, state.domainController);
+        return true;
+    }
+
+    private void applyChanges(LDAPHelper.ChangedGroups changes) throws InterruptedException {
+        final int resolved = changes.groups.isEmpty() && retryGroups.isEmpty() ? 0 : resolveAffected(changes.groups);
+        logger.debug("{} groups changed since USN {}, resolved {} of {} mapped groups again", changes.groups.size(), syncState.usn,
+                resolved, snapshot.mappedGroupCount());
+        updateSyncState(syncState.withUsn(changes.highestCommittedUsn, snapshot));
+        // the mapping is up to date with the directory again
+        lastReloadMillis = System.currentTimeMillis();
+        lastSuccessMillis = lastReloadMillis;
+    }
+
+    /**
+     * Resolves the mapped groups affected by changes of the given groups again, e.g. when the directory notified
+     * about the changes.
+     *
+     * @return the number of mapped groups resolved again
+     */
+    public int groupsChanged(Collection<String> changedGroups) {
+        synchronized (refreshLock) {
+            try {
+                final int resolved = resolveAffected(changedGroups);
+                if (resolved > 0 && syncState != null) {
+                    updateSyncState(syncState.withUsn(syncState.usn, snapshot));
+                }
+                return resolved;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * @return the containers of the mapped groups followed by those of the groups nested in them, at most max
+     */
+    public Set<String> watchedContainers(int max) {
+        final Set<String> containers = new LinkedHashSet<>();
+        // the mapped groups have the lowest ids
+        final GroupGraph graph = snapshot.graph();
+        for (int id = 0; id < graph.size(); id++) {
+            addContainer(containers, graph.dn(id), max);
+        }
+        return containers;
+    }
+
+    private static void addContainer(Set<String> containers, String distinguishedName, int max) {
+        final LdapName name = toLdapName(distinguishedName);
+        if (name != null && name.size() > 1 && containers.size() < max) {
+            containers.add(name.getPrefix(name.size() - 1).toString());
+        }
+    }
+
+    // a membership change of the mapped group or of any group nested in it changes its nested groups, groups which
+    // failed before are resolved again as well
+    private int resolveAffected(Collection<String> changedGroups) throws InterruptedException {
+        final Set<LdapName> changed = new HashSet<>();
+        for (String group : changedGroups) {
+            final LdapName name = toLdapName(group);
+            if (name != null) {
+                changed.add(name);
+            }
+        }
+
+        final RoleMappingSnapshot current = snapshot;
+        final Map<String, MappedGroup> currentGroups = current.groups();
+        final List<String> affected = new ArrayList<>();
+        for (MappedGroup group : currentGroups.values()) {
+            if (group.isAffectedBy(changed) || retryGroups.contains(group.dn)) {
+                affected.add(group.dn);
+            }
+        }
+        if (affected.isEmpty()) {
+            return 0;
+        }
+        final Map<String, String[]> nestedGroups = resolveNestedGroups(affected);
+        final Map<String, MappedGroup> groups = new LinkedHashMap<>(currentGroups);
+        int resolved = 0;
+        for (MappedGroup group : currentGroups.values()) {
+            final String[] nested = nestedGroups.get(group.dn);
+            // a group which failed keeps its former nested groups
+            if (nested != null) {
+                groups.put(group.dn, new MappedGroup(group.dn, group.sid, group.roles, nested));
+                retryGroups.remove(group.dn);
+                resolved++;
+            } else if (affected.contains(group.dn)) {
+                retryGroups.add(group.dn);
+            }
+        }
+        if (resolved > 0) {
+            publish(current.users, groups);
+        }
+        return resolved;
+    }
+
+    /**
+     * Resolves the nested groups of the mapped groups, parallelism of them at a time. The time of every group is
+     * logged at debug level and the slowest one with the total, so that slow entries of role_mapping.yml can be found.
+     *
+     * @return the nested groups by mapped group DN, groups whose resolution failed are missing
+     */
+    private Map<String, String[]> resolveNestedGroups(Collection<String> groupDns) throws InterruptedException {
+        final long start = System.nanoTime();
+        final Map<String, Future<Resolution>> futures = new LinkedHashMap<>();
+        try {
+            for (final String dn : groupDns) {
+                futures.put(dn, resolver.submit(new Callable<Resolution>() {
+                    @Override
+                    public Resolution call() throws Exception {
+                        final long groupStart = System.nanoTime();
+                        final String[] nested = _ldapHelper.getNestedGroupsInGroup(dn, maxNestedGroupDepth);
+                        final long nanos = System.nanoTime() - groupStart;
+                        logger.debug("Resolved {} nested groups of {} in {} ms", nested.length, dn, TimeUnit.NANOSECONDS.toMillis(nanos));
+                        return new Resolution(nested, nanos);
+                    }
+                }));
+            }
+
+            final Map<String, String[]> nestedGroups = new HashMap<>();
+            String slowest = null;
+            long slowestNanos = 0;
+            for (Map.Entry<String, Future<Resolution>> future : futures.entrySet()) {
                 try {
-                    in.close();
-                } catch (Exception e) {
-                    // no-op
+                    final Resolution resolution = future.getValue().get();
+                    nestedGroups.put(future.getKey(), resolution.nested);
+                    if (slowest == null || resolution.nanos > slowestNanos) {
+                        slowest = future.getKey();
+                        slowestNanos = resolution.nanos;
+                    }
+                } catch (ExecutionException e) {
+                    logger.warn("Unable to resolve the nested groups of {}", e.getCause(), future.getKey());
                 }
             }
+            if (slowest != null) {
+                logger.info("Resolved the nested groups of {} mapped groups in {} ms ({} at a time), slowest {} took {} ms",
+                        nestedGroups.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), parallelism, slowest,
+                        TimeUnit.NANOSECONDS.toMillis(slowestNanos));
+            }
+            return nestedGroups;
+        } finally {
+            // only running or queued ones if interrupted
+            for (Future<Resolution> future : futures.values()) {
+                future.cancel(true);
+            }
         }
-        synchronized(rolesLock) {
-            rolesMap = tempRolesMap;
+    }
+
+    private void updateSyncState(RoleMappingSyncState state) {
+        syncState = state.position();
+        // a restart continues from the last complete state and reads the changes since then again
+        if (syncStateFile != null && retryGroups.isEmpty()) {
+            try {
+                state.write(syncStateFile);
+            } catch (IOException e) {
+                logger.warn("Unable to persist the role mapping sync state to {}", e, syncStateFile);
+            }
         }
+    }
+
+    private RoleMappingSnapshot publish(ListMultimap<String, String> users, Map<String, MappedGroup> groups) {
+        final RoleMappingSnapshot published = RoleMappingSnapshot.create(snapshot.generation() + 1, users, groups);
+        snapshot = published;
+        logger.debug("Published role mapping generation {}: {}, {} groups mapped to {} roles", published.generation(), published.users,
+                published.graph().size(), published.graph().roleCount());
+        return published;
+    }
 
-        synchronized(groupLock) {
-            groupMap = tempGroupMap;
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        final long successMillis = lastSuccessMillis;
+        builder.startObject("role_mapping");
+        snapshot.toXContent(builder, params);
+        builder.field("last_reload_millis", lastReloadMillis);
+        builder.field("last_reload_success_ratio", lastReloadSuccessRatio);
+        builder.field("last_success_millis", successMillis);
+        builder.field("stale_millis", successMillis == 0 ? -1 : System.currentTimeMillis() - successMillis);
+        builder.field("rejected_reloads", rejectedReloads.get());
+        builder.endObject();
+        return builder;
+    }
+
+    private static String sha256(byte[] content) {
+        try {
+            final StringBuilder hex = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(content)) {
+                hex.append(String.format(Locale.ROOT, "%02x", b & 0xFF));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static LdapName toLdapName(String distinguishedName) {
+        try {
+            return new LdapName(distinguishedName);
+        } catch (InvalidNameException e) {
+            return null;
+        }
+    }
+
+    private Sid getSid(javax.naming.directory.Attributes atts) {
+        try {
+            javax.naming.directory.Attribute objectSid = atts.get("objectSid");
+            return objectSid == null ? null : Sid.wrap((byte[]) objectSid.get());
+        } catch (NamingException e) {
+            logger.debug("Failed to get group SID " + e);
+            return null;
         }
-        logger.debug("Parsed roles: {}", rolesMap);
     }
 
     private String stripRealmName(String name, boolean strip){
@@ -124,4 +563,65 @@ public class RoleMapper {
         return name;
     }
 
+    /**
+     * What the role mapping is resolved from, implemented by {@link LDAPHelper}.
+     */
+    public interface Directory {
+
+        /**
+         * @see LDAPHelper#getADObjectsAttributes(Collection)
+         */
+        Map<LdapName, javax.naming.directory.Attributes> getADObjectsAttributes(Collection<String> distinguishedNames)
+                throws NamingException;
+
+        /**
+         * @throws NamingException if the nested groups could not be resolved completely
+         */
+        String[] getNestedGroupsInGroup(String groupDistinguishedName, int maxDepth) throws InterruptedException, NamingException;
+
+        /**
+         * @see LDAPHelper#getChangedGroups(String, String, long)
+         */
+        LDAPHelper.ChangedGroups getChangedGroups(String ldapUrl, String domainController, long sinceUsn) throws NamingException;
+    }
+
+    private static final class Resolution {
+        final String[] nested;
+        final long nanos;
+
+        Resolution(String[] nested, long nanos) {
+            this.nested = nested;
+            this.nanos = nanos;
+        }
+    }
+
+    /**
+     * A group of role_mapping.yml with the roles it is mapped to and the groups nested in it. nested is null in the
+     * groups of a published snapshot, whose graph holds them, see {@link RoleMappingSnapshot#groups()}.
+     */
+    static final class MappedGroup {
+        final String dn;
+        final Sid sid;
+        final List<String> roles;
+        final String[] nested;
+
+        MappedGroup(String dn, Sid sid, List<String> roles, String[] nested) {
+            this.dn = dn;
+            this.sid = sid;
+            this.roles = roles;
+            this.nested = nested;
+        }
+
+        boolean isAffectedBy(Set<LdapName> changedGroups) {
+            if (changedGroups.contains(toLdapName(dn))) {
+                return true;
+            }
+            for (String group : nested) {
+                if (changedGroups.contains(toLdapName(group))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
 }
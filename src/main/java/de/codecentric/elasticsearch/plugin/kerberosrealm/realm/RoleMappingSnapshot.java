@@ -0,0 +1,114 @@
+package de.codecentric.elasticsearch.plugin.kerberosrealm.realm;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ListMultimap;
+import de.codecentric.elasticsearch.plugin.kerberosrealm.support.Sid;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One published state of the role mapping: the mapped users, the mapped groups and the {@link GroupGraph} built from
+ * them, which holds the groups nested in the mapped groups. A snapshot never changes, a reload publishes a new one
+ * with the next generation, so readers see either the old or the new mapping as a whole without locking.
+ */
+public final class RoleMappingSnapshot implements ToXContent {
+
+    static final RoleMappingSnapshot EMPTY = create(0, ImmutableListMultimap.<String, String>of(),
+            ImmutableMap.<String, RoleMapper.MappedGroup>of());
+
+    private final long generation;
+    private final long publishedMillis;
+    // principal name -> shield roles
+    final ListMultimap<String, String> users;
+    // the mapped groups in file order without their nested groups, which are only kept by the graph
+    private final Map<String, RoleMapper.MappedGroup> groups;
+    private final GroupGraph graph;
+
+    private RoleMappingSnapshot(long generation, ListMultimap<String, String> users, Map<String, RoleMapper.MappedGroup> groups,
+            GroupGraph graph) {
+        this.generation = generation;
+        this.publishedMillis = System.currentTimeMillis();
+        this.users = users;
+        this.groups = groups;
+        this.graph = graph;
+    }
+
+    /**
+     * Copies the users and groups, they may be changed afterwards without affecting the snapshot.
+     */
+    static RoleMappingSnapshot create(long generation, ListMultimap<String, String> users, Map<String, RoleMapper.MappedGroup> groups) {
+        final ImmutableListMultimap<String, String> frozenUsers = ImmutableListMultimap.copyOf(users);
+        final GroupGraph graph = GroupGraph.build(frozenUsers, groups.values());
+        final ImmutableMap.Builder<String, RoleMapper.MappedGroup> frozen = ImmutableMap.builder();
+        for (RoleMapper.MappedGroup group : groups.values()) {
+            frozen.put(group.dn, new RoleMapper.MappedGroup(group.dn, group.sid, ImmutableList.copyOf(group.roles), null));
+        }
+        return new RoleMappingSnapshot(generation, frozenUsers, frozen.build(), graph);
+    }
+
+    /**
+     * @return the mapped groups in file order with their nested groups, new instances which may be changed
+     */
+    Map<String, RoleMapper.MappedGroup> groups() {
+        final Map<String, RoleMapper.MappedGroup> expanded = new LinkedHashMap<>();
+        int id = 0;
+        for (RoleMapper.MappedGroup group : groups.values()) {
+            expanded.put(group.dn, new RoleMapper.MappedGroup(group.dn, group.sid, group.roles, graph.nestedGroups(id++)));
+        }
+        return expanded;
+    }
+
+    /**
+     * @return the groups nested in the mapped group, null if the group is not mapped
+     */
+    String[] nestedGroups(String mappedGroupDn) {
+        final int id = graph.id(mappedGroupDn);
+        return id < 0 || id >= graph.mappedGroups() ? null : graph.nestedGroups(id);
+    }
+
+    int mappedGroupCount() {
+        return groups.size();
+    }
+
+    /**
+     * @return the roles of the user, shared with other users of the same roles and not to be modified
+     * @see GroupGraph#resolveRoles(String, List, List)
+     */
+    public String[] resolveRoles(String user, List<String> groups, List<Sid> groupSids) {
+        return graph.resolveRoles(user, groups, groupSids);
+    }
+
+    public long generation() {
+        return generation;
+    }
+
+    public long publishedMillis() {
+        return publishedMillis;
+    }
+
+    public GroupGraph graph() {
+        return graph;
+    }
+
+    /**
+     * Adds the generation and the sizes of the mapping to the current object.
+     */
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.field("generation", generation);
+        builder.field("published_millis", publishedMillis);
+        builder.field("users", users.keySet().size());
+        builder.field("mapped_groups", groups.size());
+        builder.field("groups", graph.size());
+        builder.field("roles", graph.roleCount());
+        builder.field("cached_role_sets", graph.cachedRoleSets());
+        return builder;
+    }
+}
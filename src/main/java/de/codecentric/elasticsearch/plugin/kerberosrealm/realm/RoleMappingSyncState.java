@@ -0,0 +1,151 @@
+package de.codecentric.elasticsearch.plugin.kerberosrealm.realm;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ListMultimap;
+import de.codecentric.elasticsearch.plugin.kerberosrealm.support.Base64Util;
+import de.codecentric.elasticsearch.plugin.kerberosrealm.support.Sid;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.json.JsonXContent;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The role mapping as resolved from the directory, together with the domain controller and update sequence number
+ * it was resolved at. It is persisted as JSON so that an incremental sync continues where it stopped after a
+ * restart instead of resolving the whole mapping again. Between syncs only the {@link #position()} is kept in
+ * memory, the mapping itself is taken from the published {@link RoleMappingSnapshot} when the state is written.
+ */
+final class RoleMappingSyncState {
+
+    // the LDAP URL of the domain controller, the next sync goes there again while it is up
+    final String ldapUrl;
+    final String domainController;
+    final long usn;
+    // SHA-256 of role_mapping.yml, the state is useless once the file changed
+    final String mappingHash;
+    final ListMultimap<String, String> users;
+    final Map<String, RoleMapper.MappedGroup> groups;
+
+    RoleMappingSyncState(String ldapUrl, String domainController, long usn, String mappingHash, ListMultimap<String, String> users,
+            Map<String, RoleMapper.MappedGroup> groups) {
+        this.ldapUrl = ldapUrl;
+        this.domainController = domainController;
+        this.usn = usn;
+        this.mappingHash = mappingHash;
+        this.users = users;
+        this.groups = groups;
+    }
+
+    /**
+     * @return the state of the same domain controller at the given USN with the mapping of the snapshot
+     */
+    RoleMappingSyncState withUsn(long newUsn, RoleMappingSnapshot snapshot) {
+        return new RoleMappingSyncState(ldapUrl, domainController, newUsn, mappingHash, snapshot.users, snapshot.groups());
+    }
+
+    /**
+     * @return the state without the users and groups
+     */
+    RoleMappingSyncState position() {
+        return new RoleMappingSyncState(ldapUrl, domainController, usn, mappingHash, ImmutableListMultimap.<String, String>of(),
+                ImmutableMap.<String, RoleMapper.MappedGroup>of());
+    }
+
+    void write(Path file) throws IOException {
+        Files.createDirectories(file.getParent());
+        final Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(tmp)) {
+            final XContentBuilder builder = XContentFactory.jsonBuilder(out);
+            builder.startObject();
+            if (ldapUrl != null) {
+                builder.field("ldap_url", ldapUrl);
+            }
+            builder.field("domain_controller", domainController);
+            builder.field("usn", usn);
+            builder.field("role_mapping_sha256", mappingHash);
+            builder.startObject("users");
+            for (String user : users.keySet()) {
+                builder.field(user, users.get(user));
+            }
+            builder.endObject();
+            builder.startArray("groups");
+            for (RoleMapper.MappedGroup group : groups.values()) {
+                builder.startObject();
+                builder.field("dn", group.dn);
+                if (group.sid != null) {
+                    builder.field("sid", Base64Util.encode(group.sid.toByteArray()));
+                }
+                builder.field("roles", group.roles);
+                builder.field("nested", group.nested);
+                builder.endObject();
+            }
+            builder.endArray();
+            builder.endObject();
+            builder.close();
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return the state persisted in the file or null if there is none or it was resolved from a role mapping file
+     * with a different hash
+     */
+    static RoleMappingSyncState read(Path file, String mappingHash) throws IOException {
+        final RoleMappingSyncState state = read(file);
+        return state == null || !state.mappingHash.equals(mappingHash) ? null : state;
+    }
+
+    /**
+     * @return the state persisted in the file or null if there is none
+     */
+    @SuppressWarnings("unchecked")
+    static RoleMappingSyncState read(Path file) throws IOException {
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        final Map<String, Object> map;
+        try (InputStream in = Files.newInputStream(file); XContentParser parser = JsonXContent.jsonXContent.createParser(in)) {
+            map = parser.map();
+        }
+
+        final ListMultimap<String, String> users = ArrayListMultimap.create();
+        for (Map.Entry<String, Object> user : ((Map<String, Object>) map.get("users")).entrySet()) {
+            users.putAll(user.getKey(), (List<String>) user.getValue());
+        }
+
+        final Map<String, RoleMapper.MappedGroup> groups = new LinkedHashMap<>();
+        for (Map<String, Object> group : (List<Map<String, Object>>) map.get("groups")) {
+            final String dn = (String) group.get("dn");
+            final String encodedSid = (String) group.get("sid");
+            Sid sid = null;
+            if (encodedSid != null) {
+                final byte[] buffer = new byte[Base64Util.maxDecodedLength(encodedSid.length())];
+                final int length = Base64Util.decode(encodedSid, 0, encodedSid.length(), buffer);
+                if (length < 0) {
+                    throw new IOException("Invalid SID of " + dn + " in " + file);
+                }
+                sid = Sid.wrap(Arrays.copyOf(buffer, length));
+            }
+            final List<String> nested = (List<String>) group.get("nested");
+            groups.put(dn, new RoleMapper.MappedGroup(dn, sid, new ArrayList<>((List<String>) group.get("roles")),
+                    nested.toArray(new String[nested.size()])));
+        }
+
+        return new RoleMappingSyncState((String) map.get("ldap_url"), (String) map.get("domain_controller"), ((Number) map.get("usn")).longValue(),
+                (String) map.get("role_mapping_sha256"), users, groups);
+    }
+}
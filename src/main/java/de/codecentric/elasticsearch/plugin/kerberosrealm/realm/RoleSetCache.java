@@ -0,0 +1,134 @@
+package de.codecentric.elasticsearch.plugin.kerberosrealm.realm;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The role names of every distinct set of roles, so that users with the same roles share one array and resolving
+ * the roles of a user does not allocate once its set of roles was seen.
+ * <p>
+ * Role sets are bitsets of role ids. Lookups probe a lock free open addressing table; entries are added with a
+ * compare and set and never removed, once maxEntries sets are cached new sets get a fresh array on every lookup.
+ * The returned arrays are shared and must not be modified.
+ */
+final class RoleSetCache {
+
+    private static final String[] NO_ROLES = new String[0];
+
+    private final String[] roles;
+    private final int words;
+    private final int maxEntries;
+    private final AtomicReferenceArray<Entry> table;
+    private final int mask;
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * @param roles the role names by role id
+     * @param words the number of longs of a role set
+     */
+    RoleSetCache(String[] roles, int words, int maxEntries) {
+        this.roles = roles;
+        this.words = words;
+        this.maxEntries = maxEntries;
+        int capacity = 2;
+        while (capacity < maxEntries * 2) {
+            capacity <<= 1;
+        }
+        table = new AtomicReferenceArray<>(capacity);
+        mask = capacity - 1;
+    }
+
+    /**
+     * @param bits the role set, only the first words longs are read
+     * @return the names of the roles in the set, ordered by role id
+     */
+    String[] get(long[] bits) {
+        final int hash = hash(bits);
+        if (hash == 0 && isEmpty(bits)) {
+            return NO_ROLES;
+        }
+        int slot = hash & mask;
+        for (int probes = 0; probes <= mask; ) {
+            final Entry entry = table.get(slot);
+            if (entry == null) {
+                final Entry created = new Entry(hash, Arrays.copyOf(bits, words), names(bits));
+                if (size.get() >= maxEntries) {
+                    return created.roles;
+                }
+                if (table.compareAndSet(slot, null, created)) {
+                    size.incrementAndGet();
+                    return created.roles;
+                }
+                // another thread took the slot, look at it again
+                continue;
+            }
+            if (entry.hash == hash && entry.matches(bits, words)) {
+                return entry.roles;
+            }
+            slot = (slot + 1) & mask;
+            probes++;
+        }
+        return names(bits);
+    }
+
+    int size() {
+        return size.get();
+    }
+
+    private String[] names(long[] bits) {
+        int count = 0;
+        for (int w = 0; w < words; w++) {
+            count += Long.bitCount(bits[w]);
+        }
+        final String[] names = new String[count];
+        int i = 0;
+        for (int w = 0; w < words; w++) {
+            long word = bits[w];
+            while (word != 0) {
+                names[i++] = roles[w * 64 + Long.numberOfTrailingZeros(word)];
+                word &= word - 1;
+            }
+        }
+        return names;
+    }
+
+    private boolean isEmpty(long[] bits) {
+        for (int w = 0; w < words; w++) {
+            if (bits[w] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int hash(long[] bits) {
+        long h = 0;
+        for (int w = 0; w < words; w++) {
+            h = 31 * h + bits[w];
+        }
+        final int hash = (int) (h ^ (h >>> 32));
+        return hash ^ (hash >>> 16);
+    }
+
+    private static final class Entry {
+        final int hash;
+        final long[] bits;
+        final String[] roles;
+
+        Entry(int hash, long[] bits, String[] roles) {
+            this.hash = hash;
+            this.bits = bits;
+            this.roles = roles;
+        }
+
+        boolean matches(long[] other, int words) {
+            for (int w = 0; w < words; w++) {
+                if (bits[w] != other[w]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package de.codecentric.elasticsearch.plugin.kerberosrealm.realm;
+
+import de.codecentric.elasticsearch.plugin.kerberosrealm.support.KrbConstants;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.common.logging.ESLogger;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.xml.bind.DatatypeConverter;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+/**
+ * Issues and verifies HMAC signed session cookies which carry the principal and the resolved roles of a user
+ * who already authenticated via SPNEGO. A valid cookie lets the realm skip GSS and LDAP for subsequent REST requests.
+ * <p>
+ * The cookie value is {@code base64(principal).expiry.base64(roles).base64(hmac)}. Cookies are always signed with
+ * the first configured key, all other keys are only accepted for verification so keys can be rotated across the
+ * cluster without invalidating sessions.
+ */
+public class SessionCookieManager {
+
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final int MIN_KEY_LENGTH = 32;
+    private static final String[] NO_ROLES = new String[0];
+
+    private final SecretKeySpec[] keys;
+    private final long ttlMillis;
+    private final ESLogger logger;
+
+    private final ThreadLocal<Mac[]> macs = new ThreadLocal<Mac[]>() {
+        @Override
+        protected Mac[] initialValue() {
+            final Mac[] result = new Mac[keys.length];
+            try {
+                for (int i = 0; i < keys.length; i++) {
+                    result[i] = Mac.getInstance(MAC_ALGORITHM);
+                    result[i].init(keys[i]);
+                }
+            } catch (GeneralSecurityException e) {
+                throw new ElasticsearchException("Unable to initialize session cookie MAC", e);
+            }
+            return result;
+        }
+    };
+
+    public SessionCookieManager(String[] keys, int ttlMinutes, ESLogger esLogger) {
+        if (keys == null || keys.length == 0) {
+            throw new ElasticsearchException("Session cookies are enabled but no signing keys are configured");
+        }
+        this.keys = new SecretKeySpec[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] == null || keys[i].length() < MIN_KEY_LENGTH) {
+                throw new ElasticsearchException("Session cookie keys must be at least {} characters long", MIN_KEY_LENGTH);
+            }
+            this.keys[i] = new SecretKeySpec(keys[i].getBytes(StandardCharsets.UTF_8), MAC_ALGORITHM);
+        }
+        this.ttlMillis = ttlMinutes * 60L * 1000L;
+        logger = esLogger;
+    }
+
+    /**
+     * @return the value of a new session cookie for the given principal and roles, signed with the primary key
+     */
+    public String issue(String principal, String[] roles) {
+        final StringBuilder payload = new StringBuilder();
+        payload.append(encode(principal)).append('.');
+        payload.append(System.currentTimeMillis() + ttlMillis).append('.');
+        payload.append(encode(join(roles)));
+
+        final byte[] mac = macs.get()[0].doFinal(payload.toString().getBytes(StandardCharsets.UTF_8));
+        return payload.append('.').append(DatatypeConverter.printBase64Binary(mac)).toString();
+    }
+
+    /**
+     * Verifies the session cookie contained in a Cookie request header.
+     *
+     * @return a token carrying the principal and roles of the session or null if there is no valid, unexpired cookie
+     */
+    public KerberosAuthenticationToken verify(String cookieHeader) {
+        final String cookie = findCookie(cookieHeader);
+        if (cookie == null) {
+            return null;
+        }
+
+        final int macSeparator = cookie.lastIndexOf('.');
+        final int principalSeparator = cookie.indexOf('.');
+        final int expirySeparator = principalSeparator < 0 ? -1 : cookie.indexOf('.', principalSeparator + 1);
+        if (principalSeparator <= 0 || expirySeparator < 0 || expirySeparator >= macSeparator) {
+            logger.debug("Malformed session cookie");
+            return null;
+        }
+
+        final byte[] payload = cookie.substring(0, macSeparator).getBytes(StandardCharsets.UTF_8);
+        final byte[] presentedMac;
+        try {
+            presentedMac = DatatypeConverter.parseBase64Binary(cookie.substring(macSeparator + 1));
+        } catch (IllegalArgumentException e) {
+            logger.debug("Malformed session cookie signature");
+            return null;
+        }
+
+        // check all keys without short circuit so that timing does not reveal which key matched
+        boolean valid = false;
+        for (final Mac mac : macs.get()) {
+            valid |= MessageDigest.isEqual(mac.doFinal(payload), presentedMac);
+        }
+        if (!valid) {
+            logger.debug("Session cookie signature does not match");
+            return null;
+        }
+
+        final long expiresAt;
+        try {
+            expiresAt = Long.parseLong(cookie.substring(principalSeparator + 1, expirySeparator));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (System.currentTimeMillis() >= expiresAt) {
+            logger.debug("Session cookie expired");
+            return null;
+        }
+
+        final String principal = decode(cookie.substring(0, principalSeparator));
+        final String roles = decode(cookie.substring(expirySeparator + 1, macSeparator));
+        return new KerberosAuthenticationToken(new byte[0], principal, roles.isEmpty() ? NO_ROLES : roles.split(","));
+    }
+
+    private static String findCookie(String cookieHeader) {
+        if (cookieHeader == null) {
+            return null;
+        }
+        for (String cookie : cookieHeader.split(";")) {
+            final String trimmed = cookie.trim();
+            if (trimmed.startsWith(KrbConstants.SESSION_COOKIE_NAME + "=")) {
+                return trimmed.substring(KrbConstants.SESSION_COOKIE_NAME.length() + 1);
+            }
+        }
+        return null;
+    }
+
+    private static String join(String[] roles) {
+        final StringBuilder joined = new StringBuilder();
+        for (int i = 0; roles != null && i < roles.length; i++) {
+            if (i > 0) {
+                joined.append(',');
+            }
+            joined.append(roles[i]);
+        }
+        return joined.toString();
+    }
+
+    private static String encode(String value) {
+        return DatatypeConverter.printBase64Binary(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String decode(String value) {
+        return new String(DatatypeConverter.parseBase64Binary(value), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,78 @@
+package de.codecentric.elasticsearch.plugin.kerberosrealm.realm;
+
+import org.elasticsearch.ElasticsearchException;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Identifies a Kerberos token or authenticator by the first 128 bit of a SHA-256 digest.
+ */
+final class TokenFingerprint {
+
+    private static final ThreadLocal<MessageDigest> DIGEST = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new ElasticsearchException("SHA-256 not available", e);
+            }
+        }
+    };
+
+    private final long high;
+    private final long low;
+
+    private TokenFingerprint(byte[] digest) {
+        long h = 0;
+        long l = 0;
+        for (int i = 0; i < 8; i++) {
+            h = (h << 8) | (digest[i] & 0xFF);
+            l = (l << 8) | (digest[i + 8] & 0xFF);
+        }
+        this.high = h;
+        this.low = l;
+    }
+
+    /**
+     * @return the fingerprint of the whole token as sent by the client
+     */
+    static TokenFingerprint of(byte[] token, int offset, int length) {
+        final MessageDigest md = DIGEST.get();
+        md.update(token, offset, length);
+        return new TokenFingerprint(md.digest());
+    }
+
+    /**
+     * @return the fingerprint of an authenticator, independent of the SPNEGO wrapping of the AP-REQ it came in.
+     * The cipher encrypts ctime, cusec and the client under the session key, so it cannot be changed without the
+     * session key and a replayed authenticator has the same cipher.
+     */
+    static TokenFingerprint ofAuthenticator(String client, byte[] authenticatorCipher) {
+        final MessageDigest md = DIGEST.get();
+        md.update(client.getBytes(StandardCharsets.UTF_8));
+        md.update((byte) 0);
+        md.update(authenticatorCipher);
+        return new TokenFingerprint(md.digest());
+    }
+
+    int stripe(int stripes) {
+        return (int) ((low & 0x7fffffffL) % stripes);
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (high ^ (high >>> 32));
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof TokenFingerprint)) {
+            return false;
+        }
+        final TokenFingerprint other = (TokenFingerprint) obj;
+        return high == other.high && low == other.low;
+    }
+}
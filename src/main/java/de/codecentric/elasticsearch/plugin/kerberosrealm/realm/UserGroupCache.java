@@ -0,0 +1,152 @@
+package de.codecentric.elasticsearch.plugin.kerberosrealm.realm;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import de.codecentric.elasticsearch.plugin.kerberosrealm.support.Sid;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caches the groups found in the directory for a principal, so that tickets without a PAC do not cost an LDAP
+ * lookup on every request.
+ * <p>
+ * Entries expire ttlSeconds after they were loaded. An entry which is read within the last refreshAheadSeconds of
+ * its lifetime is reloaded in the background while the cached groups are still returned, so frequently
+ * authenticating principals never wait for LDAP. Failed lookups are not cached.
+ */
+public class UserGroupCache implements ToXContent {
+
+    private final LoadingCache<String, UserGroups> cache;
+
+    public UserGroupCache(final Loader loader, final int maxEntries, final int ttlSeconds, final int refreshAheadSeconds,
+            final Executor reloadExecutor) {
+        this(loader, maxEntries, ttlSeconds, refreshAheadSeconds, reloadExecutor, Ticker.systemTicker());
+    }
+
+    UserGroupCache(final Loader loader, final int maxEntries, final int ttlSeconds, final int refreshAheadSeconds,
+            final Executor reloadExecutor, final Ticker ticker) {
+        final CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder()
+                .ticker(ticker)
+                .maximumSize(maxEntries)
+                .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                .recordStats();
+        if (refreshAheadSeconds > 0 && refreshAheadSeconds < ttlSeconds) {
+            builder.refreshAfterWrite(ttlSeconds - refreshAheadSeconds, TimeUnit.SECONDS);
+        }
+        cache = builder.build(CacheLoader.asyncReloading(new CacheLoader<String, UserGroups>() {
+            @Override
+            public UserGroups load(final String principal) throws Exception {
+                return loader.load(principal);
+            }
+        }, reloadExecutor));
+    }
+
+    /**
+     * @return the cached groups of the principal, loaded from the directory if they are not cached
+     */
+    public UserGroups get(final String principal) {
+        try {
+            return cache.get(principal);
+        } catch (final ExecutionException | UncheckedExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw ExceptionsHelper.convertToRuntime((Exception) cause);
+        }
+    }
+
+    public void invalidate(final String principal) {
+        cache.invalidate(principal);
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    /**
+     * Drops the cached groups of the principals affected by a change of a directory object: the changed object
+     * itself, the members of a changed group and the principals whose cached groups contain the changed group.
+     *
+     * @param changedGroupSid the SID of the changed group, may be null
+     * @param memberDns the lower case DNs of the members of the changed group
+     * @return the number of dropped principals
+     */
+    public int invalidateAffected(final String changedDn, final Sid changedGroupSid, final Set<String> memberDns) {
+        int invalidated = 0;
+        final Iterator<UserGroups> it = cache.asMap().values().iterator();
+        while (it.hasNext()) {
+            if (it.next().isAffectedBy(changedDn, changedGroupSid, memberDns)) {
+                it.remove();
+                invalidated++;
+            }
+        }
+        return invalidated;
+    }
+
+    @Override
+    public XContentBuilder toXContent(final XContentBuilder builder, final Params params) throws IOException {
+        final CacheStats stats = cache.stats();
+        builder.startObject("user_group_cache");
+        builder.field("size", cache.size());
+        builder.field("hits", stats.hitCount());
+        builder.field("misses", stats.missCount());
+        builder.field("loads", stats.loadSuccessCount());
+        builder.field("load_failures", stats.loadExceptionCount());
+        builder.field("evictions", stats.evictionCount());
+        builder.field("load_time_in_millis", TimeUnit.NANOSECONDS.toMillis(stats.totalLoadTime()));
+        builder.field("avg_load_time_in_millis", TimeUnit.NANOSECONDS.toMillis((long) stats.averageLoadPenalty()));
+        builder.endObject();
+        return builder;
+    }
+
+    /**
+     * Looks up the groups of a principal in the directory. Failures must be thrown, not reported as no groups.
+     */
+    public interface Loader {
+        UserGroups load(String principal) throws Exception;
+    }
+
+    /**
+     * The DN of a principal and its group DNs (memberOf) or group SIDs (tokenGroups).
+     */
+    public static final class UserGroups {
+        // null if the principal was not found
+        final String dn;
+        final List<String> groups;
+        final List<Sid> groupSids;
+
+        public UserGroups(final String dn, final List<String> groups, final List<Sid> groupSids) {
+            this.dn = dn;
+            this.groups = Collections.unmodifiableList(groups);
+            this.groupSids = Collections.unmodifiableList(groupSids);
+        }
+
+        boolean isAffectedBy(final String changedDn, final Sid changedGroupSid, final Set<String> memberDns) {
+            if (dn != null && (dn.equalsIgnoreCase(changedDn) || memberDns.contains(dn.toLowerCase(Locale.ROOT)))) {
+                return true;
+            }
+            for (final String group : groups) {
+                if (group.equalsIgnoreCase(changedDn)) {
+                    return true;
+                }
+            }
+            return changedGroupSid != null && groupSids.contains(changedGroupSid);
+        }
+    }
+}
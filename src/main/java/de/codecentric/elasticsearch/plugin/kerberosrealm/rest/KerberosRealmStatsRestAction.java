@@ -0,0 +1,71 @@
+/*
+   Copyright 2015 codecentric AG
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package de.codecentric.elasticsearch.plugin.kerberosrealm.rest;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestRequest.Method;
+import org.elasticsearch.rest.RestStatus;
+
+import de.codecentric.elasticsearch.plugin.kerberosrealm.realm.KerberosRealm;
+import de.codecentric.elasticsearch.plugin.kerberosrealm.realm.KerberosRealms;
+
+/**
+ * Reports the caches and counters of the Kerberos realms of the local node.
+ */
+public class KerberosRealmStatsRestAction extends BaseRestHandler {
+
+    private final KerberosRealms realms;
+
+    @Inject
+    public KerberosRealmStatsRestAction(final Settings settings, final RestController controller, final Client client,
+            final KerberosRealms realms) {
+        super(settings, controller, client);
+        this.realms = realms;
+        controller.registerHandler(Method.GET, "/_kerberos/stats", this);
+    }
+
+    @Override
+    protected void handleRequest(final RestRequest request, final RestChannel channel, final Client client) throws Exception {
+        BytesRestResponse response = null;
+        final XContentBuilder builder = channel.newBuilder();
+        try {
+            builder.startObject();
+            builder.startObject("realms");
+            for (final KerberosRealm realm : realms.all()) {
+                realm.toXContent(builder, ToXContent.EMPTY_PARAMS);
+            }
+            builder.endObject();
+            builder.endObject();
+            response = new BytesRestResponse(RestStatus.OK, builder);
+        } catch (final Exception e1) {
+            builder.startObject();
+            builder.field("error", e1.toString());
+            builder.endObject();
+            response = new BytesRestResponse(RestStatus.INTERNAL_SERVER_ERROR, builder);
+        }
+
+        channel.sendResponse(response);
+    }
+}
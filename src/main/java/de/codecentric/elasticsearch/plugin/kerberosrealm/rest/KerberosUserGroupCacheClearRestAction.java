@@ -0,0 +1,69 @@
+/*
+   Copyright 2015 codecentric AG
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package de.codecentric.elasticsearch.plugin.kerberosrealm.rest;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestRequest.Method;
+import org.elasticsearch.rest.RestStatus;
+
+import de.codecentric.elasticsearch.plugin.kerberosrealm.realm.KerberosRealm;
+import de.codecentric.elasticsearch.plugin.kerberosrealm.realm.KerberosRealms;
+
+/**
+ * Drops the cached directory groups of the given principals (or of all principals) in the Kerberos realms of the
+ * local node.
+ */
+public class KerberosUserGroupCacheClearRestAction extends BaseRestHandler {
+
+    private final KerberosRealms realms;
+
+    @Inject
+    public KerberosUserGroupCacheClearRestAction(final Settings settings, final RestController controller, final Client client,
+            final KerberosRealms realms) {
+        super(settings, controller, client);
+        this.realms = realms;
+        controller.registerHandler(Method.POST, "/_kerberos/user_group_cache/_clear", this);
+    }
+
+    @Override
+    protected void handleRequest(final RestRequest request, final RestChannel channel, final Client client) throws Exception {
+        final String[] principals = request.paramAsStringArray("principals", new String[0]);
+        final XContentBuilder builder = channel.newBuilder();
+        builder.startObject();
+        builder.startArray("realms");
+        for (final KerberosRealm realm : realms.all()) {
+            if (principals.length == 0) {
+                realm.invalidateAllUserGroups();
+            } else {
+                for (final String principal : principals) {
+                    realm.invalidateUserGroups(principal);
+                }
+            }
+            builder.value(realm.name());
+        }
+        builder.endArray();
+        builder.endObject();
+        channel.sendResponse(new BytesRestResponse(RestStatus.OK, builder));
+    }
+}
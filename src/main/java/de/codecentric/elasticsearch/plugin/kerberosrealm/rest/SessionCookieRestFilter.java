@@ -0,0 +1,68 @@
+/*
+   Copyright 2015 codecentric AG
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package de.codecentric.elasticsearch.plugin.kerberosrealm.rest;
+
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestFilter;
+import org.elasticsearch.rest.RestFilterChain;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestResponse;
+
+import de.codecentric.elasticsearch.plugin.kerberosrealm.support.KrbConstants;
+
+/**
+ * Adds the session cookie issued by the Kerberos realm during authentication to the response. The realm itself
+ * has no access to the response, so it leaves the cookie value in the request context.
+ */
+public class SessionCookieRestFilter extends RestFilter {
+
+    private final boolean secure;
+
+    @Inject
+    public SessionCookieRestFilter(final Settings settings, final RestController controller) {
+        this.secure = settings.getAsBoolean("shield.http.ssl", false);
+        controller.registerFilter(this);
+    }
+
+    @Override
+    public void process(final RestRequest request, final RestChannel channel, final RestFilterChain filterChain) throws Exception {
+        final String cookieValue = request.getFromContext(KrbConstants.SESSION_COOKIE_CONTEXT_KEY);
+        if (cookieValue == null) {
+            filterChain.continueProcessing(request, channel);
+            return;
+        }
+
+        filterChain.continueProcessing(request, new RestChannel(request, channel.detailedErrorsEnabled()) {
+            @Override
+            public void sendResponse(final RestResponse response) {
+                response.addHeader("Set-Cookie", setCookieHeader(cookieValue, secure));
+                channel.sendResponse(response);
+            }
+        });
+    }
+
+    static String setCookieHeader(final String cookieValue, final boolean secure) {
+        final StringBuilder header = new StringBuilder(KrbConstants.SESSION_COOKIE_NAME).append('=').append(cookieValue);
+        header.append("; Path=/; HttpOnly");
+        if (secure) {
+            header.append("; Secure");
+        }
+        return header.toString();
+    }
+}
@@ -0,0 +1,158 @@
+/*
+   Copyright 2015 codecentric AG
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package de.codecentric.elasticsearch.plugin.kerberosrealm.support;
+
+/**
+ * Base64 (RFC 4648, standard alphabet) codec which works on regions of strings and arrays and reuses per thread
+ * buffers, so decoding a Negotiate token does not create garbage proportional to the token size.
+ */
+public final class Base64Util {
+
+    private static final char[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+    private static final byte[] DECODE = new byte[128];
+
+    // buffers up to this size are kept per thread, larger ones are allocated per call
+    private static final int MAX_RETAINED_BUFFER = 64 * 1024;
+    private static final int INITIAL_BUFFER = 4 * 1024;
+
+    private static final ThreadLocal<byte[]> BYTE_BUFFER = new ThreadLocal<>();
+    private static final ThreadLocal<char[]> CHAR_BUFFER = new ThreadLocal<>();
+
+    static {
+        for (int i = 0; i < DECODE.length; i++) {
+            DECODE[i] = -1;
+        }
+        for (int i = 0; i < ALPHABET.length; i++) {
+            DECODE[ALPHABET[i]] = (byte) i;
+        }
+    }
+
+    private Base64Util() {
+    }
+
+    /**
+     * @return the maximum number of bytes the given number of base64 characters decode to
+     */
+    public static int maxDecodedLength(final int encodedLength) {
+        return (encodedLength + 3) / 4 * 3;
+    }
+
+    /**
+     * @return a buffer of at least the given capacity owned by the calling thread. Its content is only valid until
+     * the next call on the same thread.
+     */
+    public static byte[] threadLocalBuffer(final int minCapacity) {
+        if (minCapacity > MAX_RETAINED_BUFFER) {
+            return new byte[minCapacity];
+        }
+        byte[] buffer = BYTE_BUFFER.get();
+        if (buffer == null || buffer.length < minCapacity) {
+            buffer = new byte[Math.max(minCapacity, INITIAL_BUFFER)];
+            BYTE_BUFFER.set(buffer);
+        }
+        return buffer;
+    }
+
+    /**
+     * Decodes src[from, to) into dst starting at index 0. Padding is optional, whitespace is not allowed.
+     *
+     * @return the number of decoded bytes or -1 if the input is not valid base64
+     */
+    public static int decode(final CharSequence src, final int from, final int to, final byte[] dst) {
+        int bits = 0;
+        int count = 0;
+        int out = 0;
+        int i = from;
+
+        for (; i < to; i++) {
+            final char c = src.charAt(i);
+            if (c == '=') {
+                break;
+            }
+            final int value = c < DECODE.length ? DECODE[c] : -1;
+            if (value < 0) {
+                return -1;
+            }
+            bits = (bits << 6) | value;
+            if (++count == 4) {
+                dst[out++] = (byte) (bits >> 16);
+                dst[out++] = (byte) (bits >> 8);
+                dst[out++] = (byte) bits;
+                bits = 0;
+                count = 0;
+            }
+        }
+
+        // only padding may follow the first '='
+        for (; i < to; i++) {
+            if (src.charAt(i) != '=') {
+                return -1;
+            }
+        }
+
+        switch (count) {
+        case 0:
+            break;
+        case 2:
+            dst[out++] = (byte) (bits >> 4);
+            break;
+        case 3:
+            dst[out++] = (byte) (bits >> 10);
+            dst[out++] = (byte) (bits >> 2);
+            break;
+        default:
+            return -1;
+        }
+        return out;
+    }
+
+    /**
+     * @return the padded base64 encoding of src[offset, offset + length)
+     */
+    public static String encode(final byte[] src, final int offset, final int length) {
+        final int encodedLength = (length + 2) / 3 * 4;
+        char[] out = CHAR_BUFFER.get();
+        if (out == null || out.length < encodedLength) {
+            out = new char[Math.max(encodedLength, INITIAL_BUFFER)];
+            if (encodedLength <= MAX_RETAINED_BUFFER) {
+                CHAR_BUFFER.set(out);
+            }
+        }
+
+        final int end = offset + length;
+        int i = offset;
+        int o = 0;
+        for (; i + 2 < end; i += 3) {
+            final int bits = (src[i] & 0xFF) << 16 | (src[i + 1] & 0xFF) << 8 | (src[i + 2] & 0xFF);
+            out[o++] = ALPHABET[bits >>> 18];
+            out[o++] = ALPHABET[(bits >>> 12) & 0x3F];
+            out[o++] = ALPHABET[(bits >>> 6) & 0x3F];
+            out[o++] = ALPHABET[bits & 0x3F];
+        }
+        if (i < end) {
+            final int bits = (src[i] & 0xFF) << 16 | (i + 1 < end ? (src[i + 1] & 0xFF) << 8 : 0);
+            out[o++] = ALPHABET[bits >>> 18];
+            out[o++] = ALPHABET[(bits >>> 12) & 0x3F];
+            out[o++] = i + 1 < end ? ALPHABET[(bits >>> 6) & 0x3F] : '=';
+            out[o++] = '=';
+        }
+        return new String(out, 0, o);
+    }
+
+    public static String encode(final byte[] src) {
+        return encode(src, 0, src.length);
+    }
+}
@@ -0,0 +1,138 @@
+/*
+   Copyright 2015 codecentric AG
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package de.codecentric.elasticsearch.plugin.kerberosrealm.support;
+
+/**
+ * Minimal DER reader, just enough for the Kerberos and SPNEGO structures read by this plugin. Only single byte
+ * tags and lengths of up to three bytes are supported, anything else or a value running past the end of the
+ * enclosing element is rejected with an {@link IllegalArgumentException}.
+ */
+final class DerReader {
+    private final byte[] buf;
+    private final int limit;
+    private int pos;
+
+    DerReader(final byte[] buf, final int pos, final int limit) {
+        if (pos < 0 || limit > buf.length || pos > limit) {
+            throw new IllegalArgumentException("DER value out of bounds");
+        }
+        this.buf = buf;
+        this.pos = pos;
+        this.limit = limit;
+    }
+
+    boolean hasMore() {
+        return pos < limit;
+    }
+
+    int peekTag() {
+        if (pos >= limit) {
+            throw new IllegalArgumentException("Truncated DER value");
+        }
+        return buf[pos] & 0xFF;
+    }
+
+    DerReader enter(final int expectedTag) {
+        final int length = header(expectedTag);
+        final DerReader inner = new DerReader(buf, pos, pos + length);
+        pos += length;
+        return inner;
+    }
+
+    /**
+     * @return the element with the given tag among the remaining elements (e.g. an optional field of a SEQUENCE)
+     * or null if there is none
+     */
+    DerReader find(final int tag) {
+        while (hasMore()) {
+            if (peekTag() == tag) {
+                return enter(tag);
+            }
+            skip();
+        }
+        return null;
+    }
+
+    void skip() {
+        final int length = header(peekTag());
+        pos += length;
+    }
+
+    /**
+     * Reads raw bytes which are not DER encoded, e.g. the token id of a GSS-API token.
+     */
+    byte[] readRaw(final int length) {
+        if (length < 0 || length > limit - pos) {
+            throw new IllegalArgumentException("Truncated DER value");
+        }
+        final byte[] value = new byte[length];
+        System.arraycopy(buf, pos, value, 0, length);
+        pos += length;
+        return value;
+    }
+
+    long readInteger() {
+        final int length = header(0x02);
+        if (length < 1 || length > 8) {
+            throw new IllegalArgumentException("Unsupported DER integer");
+        }
+        long value = buf[pos];
+        for (int i = 1; i < length; i++) {
+            value = (value << 8) | (buf[pos + i] & 0xFF);
+        }
+        pos += length;
+        return value;
+    }
+
+    byte[] readOctetString() {
+        return readRaw(header(0x04));
+    }
+
+    /**
+     * @return the encoded value of an OBJECT IDENTIFIER, without tag and length
+     */
+    byte[] readOid() {
+        return readRaw(header(0x06));
+    }
+
+    private int header(final int expectedTag) {
+        if (pos >= limit || (buf[pos] & 0xFF) != expectedTag) {
+            throw new IllegalArgumentException("Unexpected DER tag");
+        }
+        if ((expectedTag & 0x1F) == 0x1F) {
+            throw new IllegalArgumentException("Unsupported DER tag");
+        }
+        pos++;
+        if (pos >= limit) {
+            throw new IllegalArgumentException("Truncated DER length");
+        }
+        int length = buf[pos++] & 0xFF;
+        if (length >= 0x80) {
+            final int bytes = length & 0x7F;
+            if (bytes < 1 || bytes > 3 || pos + bytes > limit) {
+                throw new IllegalArgumentException("Unsupported DER length");
+            }
+            length = 0;
+            for (int i = 0; i < bytes; i++) {
+                length = (length << 8) | (buf[pos++] & 0xFF);
+            }
+        }
+        if (length > limit - pos) {
+            throw new IllegalArgumentException("Truncated DER value");
+        }
+        return length;
+    }
+}
@@ -0,0 +1,60 @@
+/*
+   Copyright 2015 codecentric AG
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package de.codecentric.elasticsearch.plugin.kerberosrealm.support;
+
+/**
+ * Single pass parsing of "Authorization: Negotiate &lt;token&gt;" headers without trimming or case converting copies.
+ */
+public final class HeaderUtil {
+
+    private HeaderUtil() {
+    }
+
+    /**
+     * @return the index where the token of a Negotiate header starts or -1 if the header does not use the
+     * Negotiate scheme (case insensitive, leading whitespace is ignored)
+     */
+    public static int negotiateTokenStart(final String header) {
+        final int length = header.length();
+        int i = skipWhitespace(header, 0, length);
+        if (!header.regionMatches(true, i, KrbConstants.NEGOTIATE, 0, KrbConstants.NEGOTIATE.length())) {
+            return -1;
+        }
+        i += KrbConstants.NEGOTIATE.length();
+        if (i >= length || header.charAt(i) != ' ') {
+            return -1;
+        }
+        return skipWhitespace(header, i, length);
+    }
+
+    /**
+     * @return the end index of the header without trailing whitespace
+     */
+    public static int trimmedEnd(final String header, final int from) {
+        int end = header.length();
+        while (end > from && header.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        return end;
+    }
+
+    private static int skipWhitespace(final String header, int i, final int length) {
+        while (i < length && header.charAt(i) <= ' ') {
+            i++;
+        }
+        return i;
+    }
+}
@@ -36,8 +36,12 @@ public class KrbConstants {
     public static final String KRB5_CONF_PROP = "java.security.krb5.conf";
     public static final String JAAS_LOGIN_CONF_PROP = "java.security.auth.login.config";
     public static final String USE_SUBJECT_CREDS_ONLY_PROP = "javax.security.auth.useSubjectCredsOnly";
+    public static final String REPLAY_CACHE_PROP = "sun.security.krb5.rcache";
     public static final String NEGOTIATE = "Negotiate";
     public static final String WWW_AUTHENTICATE = "WWW-Authenticate";
+    public static final String CONTINUATION_HEADER = "X-Kerberos-Continuation";
+    public static final String SESSION_COOKIE_NAME = "es_kerberos_session";
+    public static final String SESSION_COOKIE_CONTEXT_KEY = "_kerberos_session_cookie";
 
     private KrbConstants() {
     }
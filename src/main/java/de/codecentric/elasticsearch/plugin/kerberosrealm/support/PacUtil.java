@@ -0,0 +1,317 @@
+/*
+   Copyright 2015 codecentric AG
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package de.codecentric.elasticsearch.plugin.kerberosrealm.support;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.ietf.jgss.GSSContext;
+import org.ietf.jgss.GSSException;
+
+import com.sun.security.jgss.AuthorizationDataEntry;
+import com.sun.security.jgss.ExtendedGSSContext;
+import com.sun.security.jgss.InquireType;
+
+/**
+ * Extracts the group SIDs of the logon info from the Microsoft PAC (MS-PAC) of an accepted service ticket.
+ * <p>
+ * Active Directory puts the complete, already transitively expanded group membership of a user into the PAC,
+ * so no directory lookup is needed to find the groups of a user authenticated by an AD KDC. The ticket (and with
+ * it the PAC) has been decrypted with the acceptor keys while the security context was established.
+ */
+public final class PacUtil {
+
+    private static final int AD_IF_RELEVANT = 1;
+    private static final int AD_WIN2K_PAC = 128;
+    private static final int PAC_LOGON_INFO = 1;
+
+    private PacUtil() {
+    }
+
+    /**
+     * @return the group SIDs from the PAC of the ticket accepted by the context or null if the ticket contains
+     * no PAC, e.g. because it was issued by a non AD KDC
+     * @throws IllegalArgumentException if the PAC is malformed
+     */
+    public static List<Sid> getGroupSids(final GSSContext context) {
+        if (!(context instanceof ExtendedGSSContext) || !context.isEstablished()) {
+            return null;
+        }
+
+        final Object authzData;
+        try {
+            authzData = ((ExtendedGSSContext) context).inquireSecContext(InquireType.KRB5_GET_AUTHZ_DATA);
+        } catch (final GSSException e) {
+            return null;
+        }
+
+        if (!(authzData instanceof AuthorizationDataEntry[])) {
+            return null;
+        }
+        return getGroupSids((AuthorizationDataEntry[]) authzData);
+    }
+
+    /**
+     * @return the group SIDs from the PAC among the authorization data of a ticket or null if there is no PAC
+     * @throws IllegalArgumentException if the PAC is malformed
+     */
+    static List<Sid> getGroupSids(final AuthorizationDataEntry[] authzData) {
+        for (final AuthorizationDataEntry entry : authzData) {
+            final List<Sid> sids = decodeAuthorizationData(entry.getType(), entry.getData(), 0);
+            if (sids != null) {
+                return sids;
+            }
+        }
+        return null;
+    }
+
+    private static List<Sid> decodeAuthorizationData(final int type, final byte[] data, final int nesting) {
+        if (type == AD_WIN2K_PAC) {
+            return decodePac(data);
+        }
+
+        if (type == AD_IF_RELEVANT && nesting < 4) {
+            // AD-IF-RELEVANT wraps a DER encoded AuthorizationData:
+            // SEQUENCE OF SEQUENCE { ad-type [0] Int32, ad-data [1] OCTET STRING }
+            final DerReader outer = new DerReader(data, 0, data.length);
+            final DerReader entries = outer.enter(0x30);
+            while (entries.hasMore()) {
+                final DerReader entry = entries.enter(0x30);
+                final int adType = (int) entry.enter(0xA0).readInteger();
+                final byte[] adData = entry.enter(0xA1).readOctetString();
+                final List<Sid> sids = decodeAuthorizationData(adType, adData, nesting + 1);
+                if (sids != null) {
+                    return sids;
+                }
+            }
+        }
+        return null;
+    }
+
+    // PACTYPE: cBuffers, Version, then cBuffers PAC_INFO_BUFFERs (ulType, cbBufferSize, 64 bit Offset)
+    private static List<Sid> decodePac(final byte[] pac) {
+        final NdrReader header = new NdrReader(pac, 0, pac.length);
+        final long buffers = header.u32();
+        header.u32();
+        for (long i = 0; i < buffers; i++) {
+            final long type = header.u32();
+            final long size = header.u32();
+            final long offset = header.u32() | (header.u32() << 32);
+            if (type == PAC_LOGON_INFO) {
+                if (offset < 0 || offset > pac.length || size > pac.length - offset) {
+                    throw new IllegalArgumentException("PAC logon info buffer out of bounds");
+                }
+                return decodeLogonInfo(new NdrReader(pac, (int) offset, (int) (offset + size)));
+            }
+        }
+        return null;
+    }
+
+    // KERB_VALIDATION_INFO, NDR encoded (MS-PAC 2.5)
+    private static List<Sid> decodeLogonInfo(final NdrReader r) {
+        // common type header and private header
+        r.skip(16);
+        // referent id of the top level pointer
+        r.u32();
+
+        // LogonTime, LogoffTime, KickOffTime, PasswordLastSet, PasswordCanChange, PasswordMustChange
+        r.skip(6 * 8);
+        // EffectiveName, FullName, LogonScript, ProfilePath, HomeDirectory, HomeDirectoryDrive
+        final long[] names = new long[6];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = r.unicodeStringPointer();
+        }
+        // LogonCount, BadPasswordCount
+        r.u16();
+        r.u16();
+        r.u32(); // UserId
+        final long primaryGroupId = r.u32();
+        r.u32(); // GroupCount
+        final long groupIds = r.u32();
+        r.u32(); // UserFlags
+        r.skip(16); // UserSessionKey
+        final long logonServer = r.unicodeStringPointer();
+        final long logonDomainName = r.unicodeStringPointer();
+        final long logonDomainId = r.u32();
+        r.skip(8); // Reserved1
+        r.u32(); // UserAccountControl
+        r.u32(); // SubAuthStatus
+        r.skip(16); // LastSuccessfulILogon, LastFailedILogon
+        r.u32(); // FailedILogonCount
+        r.u32(); // Reserved3
+        r.u32(); // SidCount
+        final long extraSids = r.u32();
+        final long resourceGroupDomainSid = r.u32();
+        r.u32(); // ResourceGroupCount
+        final long resourceGroupIds = r.u32();
+
+        // the referents follow in the order of their pointers
+        for (final long name : names) {
+            r.skipUnicodeString(name);
+        }
+        final long[] groupRids = r.groupMembershipRids(groupIds);
+        r.skipUnicodeString(logonServer);
+        r.skipUnicodeString(logonDomainName);
+        final Sid domainSid = logonDomainId != 0 ? r.sid() : null;
+
+        final Set<Sid> sids = new LinkedHashSet<>();
+        if (domainSid != null) {
+            sids.add(Sid.append(domainSid, primaryGroupId));
+            for (final long rid : groupRids) {
+                sids.add(Sid.append(domainSid, rid));
+            }
+        }
+
+        if (extraSids != 0) {
+            r.align(4);
+            final long count = r.u32();
+            final long[] pointers = new long[r.checkedCount(count, 8)];
+            for (int i = 0; i < pointers.length; i++) {
+                pointers[i] = r.u32();
+                r.u32(); // Attributes
+            }
+            for (final long pointer : pointers) {
+                if (pointer != 0) {
+                    sids.add(r.sid());
+                }
+            }
+        }
+
+        final Sid resourceDomainSid = resourceGroupDomainSid != 0 ? r.sid() : null;
+        final long[] resourceRids = r.groupMembershipRids(resourceGroupIds);
+        if (resourceDomainSid != null) {
+            for (final long rid : resourceRids) {
+                sids.add(Sid.append(resourceDomainSid, rid));
+            }
+        }
+
+        return Collections.unmodifiableList(new ArrayList<>(sids));
+    }
+
+    /**
+     * Little endian reader for the NDR (RPC) encoding used inside the PAC.
+     */
+    private static final class NdrReader {
+        private final byte[] buf;
+        private final int start;
+        private final int limit;
+        private int pos;
+
+        NdrReader(final byte[] buf, final int start, final int limit) {
+            this.buf = buf;
+            this.start = start;
+            this.limit = limit;
+            this.pos = start;
+        }
+
+        void skip(final int bytes) {
+            require(bytes);
+            pos += bytes;
+        }
+
+        // alignment is relative to the start of the buffer
+        void align(final int alignment) {
+            final int mod = (pos - start) % alignment;
+            if (mod != 0) {
+                skip(alignment - mod);
+            }
+        }
+
+        int u8() {
+            require(1);
+            return buf[pos++] & 0xFF;
+        }
+
+        int u16() {
+            align(2);
+            require(2);
+            final int value = (buf[pos] & 0xFF) | (buf[pos + 1] & 0xFF) << 8;
+            pos += 2;
+            return value;
+        }
+
+        long u32() {
+            align(4);
+            require(4);
+            final long value = (buf[pos] & 0xFFL) | (buf[pos + 1] & 0xFFL) << 8 | (buf[pos + 2] & 0xFFL) << 16
+                    | (buf[pos + 3] & 0xFFL) << 24;
+            pos += 4;
+            return value;
+        }
+
+        // RPC_UNICODE_STRING: Length, MaximumLength, pointer to the buffer
+        long unicodeStringPointer() {
+            u16();
+            u16();
+            return u32();
+        }
+
+        // conformant varying array of WCHAR: MaxCount, Offset, ActualCount, data
+        void skipUnicodeString(final long pointer) {
+            if (pointer == 0) {
+                return;
+            }
+            u32();
+            u32();
+            final long actualCount = u32();
+            skip(checkedCount(actualCount, 2) * 2);
+        }
+
+        // conformant array of GROUP_MEMBERSHIP: MaxCount, then RelativeId and Attributes per entry
+        long[] groupMembershipRids(final long pointer) {
+            if (pointer == 0) {
+                return new long[0];
+            }
+            final long count = u32();
+            final long[] rids = new long[checkedCount(count, 8)];
+            for (int i = 0; i < rids.length; i++) {
+                rids[i] = u32();
+                u32(); // Attributes
+            }
+            return rids;
+        }
+
+        // RPC_SID: conformant array of sub authorities. Apart from the leading MaxCount it has the layout of a
+        // binary SID as in objectSid, so the SID is used in place
+        Sid sid() {
+            final long maxCount = u32();
+            final int sidStart = pos;
+            u8(); // Revision
+            final int subAuthorityCount = u8();
+            if (subAuthorityCount != maxCount || subAuthorityCount > 15) {
+                throw new IllegalArgumentException("Malformed SID in PAC");
+            }
+            skip(6 + subAuthorityCount * 4);
+            return Sid.wrap(buf, sidStart, 8 + subAuthorityCount * 4);
+        }
+
+        int checkedCount(final long count, final int elementSize) {
+            if (count < 0 || count * elementSize > limit - pos) {
+                throw new IllegalArgumentException("Malformed array in PAC");
+            }
+            return (int) count;
+        }
+
+        private void require(final int bytes) {
+            if (bytes < 0 || pos + bytes > limit) {
+                throw new IllegalArgumentException("Truncated PAC logon info");
+            }
+        }
+    }
+}
@@ -26,6 +26,7 @@ public class SettingConstants {
     public static final String STRIP_REALM_FROM_PRINCIPAL = "strip_realm_from_principal";
     public static final String ACCEPTOR_KEYTAB_PATH = "acceptor_keytab_path";
     public static final String ACCEPTOR_PRINCIPAL = "acceptor_principal";
+    public static final String ACCEPTOR_RELOGIN_MINUTES = "acceptor_relogin_minutes";
     public static final String ROLES = "roles";
 
     public static final String KRB_DEBUG = PREFIX + "krb_debug";
@@ -36,10 +37,91 @@ public class SettingConstants {
     public static final String LDAP_USER = "ldap_user";
     public static final String LDAP_PASSWORD = "ldap_password";
     public static final String LDAP_CACHE_MINUTES = "ldap_cache_minutes";
+    public static final String LDAP_PAGE_SIZE = "ldap_page_size";
+    public static final String ROLE_MAPPING_BATCH_SIZE = "role_mapping_batch_size";
+    public static final String ROLE_MAPPING_SYNC = "role_mapping_sync";
+    public static final String ROLE_MAPPING_MIN_SUCCESS_RATIO = "role_mapping_min_success_ratio";
+    public static final String ROLE_MAPPING_PARALLELISM = "role_mapping_parallelism";
+    public static final String ROLE_MAPPING_FULL_SYNC_MINUTES = "role_mapping_full_sync_minutes";
+    public static final String CHANGE_NOTIFICATION = "change_notification.type";
+    public static final String CHANGE_NOTIFICATION_MAX_CONTAINERS = "change_notification.max_containers";
+    public static final String CHANGE_NOTIFICATION_RESUBSCRIBE_SECONDS = "change_notification.resubscribe_seconds";
+    public static final String CHANGE_NOTIFICATION_RETRY_SECONDS = "change_notification.retry_seconds";
+    public static final String NESTED_GROUP_RESOLUTION = "nested_group_resolution";
+    public static final String NESTED_GROUP_BATCH_SIZE = "nested_group_batch_size";
+    public static final String LDAP_POOL_MIN_SIZE = "ldap_pool.min_size";
+    public static final String LDAP_POOL_MAX_SIZE = "ldap_pool.max_size";
+    public static final String LDAP_POOL_IDLE_TIMEOUT_SECONDS = "ldap_pool.idle_timeout_seconds";
+    public static final String LDAP_POOL_BORROW_TIMEOUT_SECONDS = "ldap_pool.borrow_timeout_seconds";
+    public static final String LDAP_POOL_HEALTH_CHECK_INTERVAL_SECONDS = "ldap_pool.health_check_interval_seconds";
+    public static final String LDAP_PROBE_INTERVAL_SECONDS = "ldap_probe_interval_seconds";
+    public static final String LDAP_CONNECT_TIMEOUT_SECONDS = "ldap_connect_timeout_seconds";
+    public static final String LDAP_READ_TIMEOUT_SECONDS = "ldap_read_timeout_seconds";
     public static final String MAX_NESTED_GROUP_DEPTH = "max_nested_group_depth";
     public static final String MAX_THREADS_TO_USE_TO_FIND_NESTED_GROUPS = "max_threads_to_use_to_find_nested_groups";
+    public static final String SESSION_COOKIE_ENABLED = "session_cookie.enabled";
+    public static final String SESSION_COOKIE_TTL_MINUTES = "session_cookie.ttl_minutes";
+    public static final String SESSION_COOKIE_KEYS = "session_cookie.keys";
+    public static final String USE_PAC_GROUPS = "use_pac_groups";
+    public static final String USER_GROUP_RESOLUTION = "user_group_resolution";
+    public static final String REPLAY_CACHE_TYPE = "replay_cache.type";
+    public static final String REPLAY_CACHE_MAX_ENTRIES = "replay_cache.max_entries";
+    public static final String REPLAY_CACHE_SKEW_SECONDS = "replay_cache.skew_seconds";
+    public static final String REPLAY_CACHE_DISABLE_JDK = "replay_cache.disable_jdk";
+    public static final String AUTH_TIMEOUT_SECONDS = "auth_timeout_seconds";
+    public static final String CONTINUATION_ENABLED = "continuation.enabled";
+    public static final String CONTINUATION_MAX_ENTRIES = "continuation.max_entries";
+    public static final String CONTINUATION_TTL_SECONDS = "continuation.ttl_seconds";
+    public static final String NEGATIVE_CACHE_ENABLED = "negative_cache.enabled";
+    public static final String NEGATIVE_CACHE_MAX_ENTRIES = "negative_cache.max_entries";
+    public static final String NEGATIVE_CACHE_TTL_SECONDS = "negative_cache.ttl_seconds";
+    public static final String USER_GROUP_CACHE_ENABLED = "user_group_cache.enabled";
+    public static final String USER_GROUP_CACHE_MAX_ENTRIES = "user_group_cache.max_entries";
+    public static final String USER_GROUP_CACHE_TTL_SECONDS = "user_group_cache.ttl_seconds";
+    public static final String USER_GROUP_CACHE_REFRESH_AHEAD_SECONDS = "user_group_cache.refresh_ahead_seconds";
 
     public static final int DEFAULT_LDAP_CACHE_MINUTES = 60;
+    public static final int DEFAULT_LDAP_PAGE_SIZE = 500;
+    public static final int DEFAULT_ROLE_MAPPING_BATCH_SIZE = 100;
+    public static final double DEFAULT_ROLE_MAPPING_MIN_SUCCESS_RATIO = 0.8;
+    public static final int DEFAULT_ROLE_MAPPING_PARALLELISM = 4;
+    public static final int DEFAULT_ROLE_MAPPING_FULL_SYNC_MINUTES = 1440;
+    public static final String ROLE_MAPPING_SYNC_FULL = "full";
+    public static final String ROLE_MAPPING_SYNC_INCREMENTAL = "incremental";
+    public static final String CHANGE_NOTIFICATION_NONE = "none";
+    public static final String CHANGE_NOTIFICATION_AD = "ad";
+    public static final String CHANGE_NOTIFICATION_PERSISTENT_SEARCH = "persistent_search";
+    public static final int DEFAULT_CHANGE_NOTIFICATION_MAX_CONTAINERS = 5;
+    public static final int DEFAULT_CHANGE_NOTIFICATION_RESUBSCRIBE_SECONDS = 600;
+    public static final int DEFAULT_CHANGE_NOTIFICATION_RETRY_SECONDS = 30;
+    public static final String USER_GROUP_RESOLUTION_MEMBER_OF = "member_of";
+    public static final String USER_GROUP_RESOLUTION_TOKEN_GROUPS = "token_groups";
+    public static final String NESTED_GROUP_RESOLUTION_TRAVERSER = "traverser";
+    public static final String NESTED_GROUP_RESOLUTION_IN_CHAIN = "matching_rule_in_chain";
+    public static final String NESTED_GROUP_RESOLUTION_LEVEL_BATCHED = "level_batched";
+    public static final int DEFAULT_NESTED_GROUP_BATCH_SIZE = 50;
+    public static final int DEFAULT_LDAP_POOL_MIN_SIZE = 1;
+    public static final int DEFAULT_LDAP_POOL_MAX_SIZE = 10;
+    public static final int DEFAULT_LDAP_POOL_IDLE_TIMEOUT_SECONDS = 300;
+    public static final int DEFAULT_LDAP_POOL_BORROW_TIMEOUT_SECONDS = 10;
+    public static final int DEFAULT_LDAP_POOL_HEALTH_CHECK_INTERVAL_SECONDS = 60;
+    public static final int DEFAULT_LDAP_PROBE_INTERVAL_SECONDS = 10;
+    public static final int DEFAULT_LDAP_CONNECT_TIMEOUT_SECONDS = 5;
+    public static final int DEFAULT_LDAP_READ_TIMEOUT_SECONDS = 30;
+    public static final int DEFAULT_ACCEPTOR_RELOGIN_MINUTES = 60;
+    public static final int DEFAULT_SESSION_COOKIE_TTL_MINUTES = 60;
+    public static final String REPLAY_CACHE_TYPE_JDK = "jdk";
+    public static final String REPLAY_CACHE_TYPE_MEMORY = "memory";
+    public static final int DEFAULT_REPLAY_CACHE_MAX_ENTRIES = 100000;
+    public static final int DEFAULT_REPLAY_CACHE_SKEW_SECONDS = 300;
+    public static final int DEFAULT_AUTH_TIMEOUT_SECONDS = 30;
+    public static final int DEFAULT_CONTINUATION_MAX_ENTRIES = 10000;
+    public static final int DEFAULT_CONTINUATION_TTL_SECONDS = 60;
+    public static final int DEFAULT_NEGATIVE_CACHE_MAX_ENTRIES = 10000;
+    public static final int DEFAULT_NEGATIVE_CACHE_TTL_SECONDS = 5;
+    public static final int DEFAULT_USER_GROUP_CACHE_MAX_ENTRIES = 10000;
+    public static final int DEFAULT_USER_GROUP_CACHE_TTL_SECONDS = 300;
+    public static final int DEFAULT_USER_GROUP_CACHE_REFRESH_AHEAD_SECONDS = 60;
     public static final int DEFAULT_MAX_NESTED_GROUP_DEPTH = 15;
     public static final int DEFAULT_MAX_THREADS_TO_USE_TO_FIND_NESTED_GROUPS = 50;
 
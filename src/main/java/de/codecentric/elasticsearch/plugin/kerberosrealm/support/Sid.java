@@ -0,0 +1,117 @@
+/*
+   Copyright 2015 codecentric AG
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package de.codecentric.elasticsearch.plugin.kerberosrealm.support;
+
+/**
+ * A binary Windows security identifier, used as key to match group SIDs (from a PAC or from tokenGroups) against
+ * the SIDs of the mapped groups. It wraps the bytes it was created from without copying them, equality is a plain
+ * byte comparison so no string form is ever built on the authentication path.
+ */
+public final class Sid {
+
+    private final byte[] bytes;
+    private final int offset;
+    private final int length;
+    private int hash;
+
+    private Sid(final byte[] bytes, final int offset, final int length) {
+        if (length < 8 || offset < 0 || offset + length > bytes.length || length != 8 + (bytes[offset + 1] & 0xFF) * 4) {
+            throw new IllegalArgumentException("Malformed SID");
+        }
+        this.bytes = bytes;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * @return a SID backed by the given array, which must not be modified afterwards
+     */
+    public static Sid wrap(final byte[] bytes) {
+        return new Sid(bytes, 0, bytes.length);
+    }
+
+    /**
+     * @return a SID backed by the given region of the array, which must not be modified afterwards
+     */
+    public static Sid wrap(final byte[] bytes, final int offset, final int length) {
+        return new Sid(bytes, offset, length);
+    }
+
+    /**
+     * @return the SID of domainSid extended by the relative id rid
+     */
+    public static Sid append(final Sid domainSid, final long rid) {
+        final byte[] sid = new byte[domainSid.length + 4];
+        System.arraycopy(domainSid.bytes, domainSid.offset, sid, 0, domainSid.length);
+        sid[1] = (byte) ((sid[1] & 0xFF) + 1);
+        sid[domainSid.length] = (byte) rid;
+        sid[domainSid.length + 1] = (byte) (rid >>> 8);
+        sid[domainSid.length + 2] = (byte) (rid >>> 16);
+        sid[domainSid.length + 3] = (byte) (rid >>> 24);
+        return new Sid(sid, 0, sid.length);
+    }
+
+    /**
+     * @return a copy of the binary form
+     */
+    public byte[] toByteArray() {
+        final byte[] copy = new byte[length];
+        System.arraycopy(bytes, offset, copy, 0, length);
+        return copy;
+    }
+
+    @Override
+    public int hashCode() {
+        int h = hash;
+        if (h == 0) {
+            h = 1;
+            for (int i = offset; i < offset + length; i++) {
+                h = 31 * h + bytes[i];
+            }
+            hash = h;
+        }
+        return h;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof Sid)) {
+            return false;
+        }
+        final Sid other = (Sid) obj;
+        if (length != other.length || hashCode() != other.hashCode()) {
+            return false;
+        }
+        // the sub authorities at the end differ most often
+        for (int i = length - 1; i >= 0; i--) {
+            if (bytes[offset + i] != other.bytes[other.offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the string form, e.g. S-1-5-21-...; only meant for logging
+     */
+    @Override
+    public String toString() {
+        return SidUtil.toString(bytes, offset);
+    }
+}
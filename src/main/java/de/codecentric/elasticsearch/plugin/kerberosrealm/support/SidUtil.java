@@ -0,0 +1,84 @@
+/*
+   Copyright 2015 codecentric AG
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package de.codecentric.elasticsearch.plugin.kerberosrealm.support;
+
+/**
+ * Conversion of binary Windows security identifiers (as stored in objectSid or contained in a PAC).
+ */
+public final class SidUtil {
+
+    private SidUtil() {
+    }
+
+    /*
+      * The binary data is in the form:
+      * byte[0] - revision level
+      * byte[1] - count of sub-authorities
+      * byte[2-7] - 48 bit authority (big-endian)
+      * and then count x 32 bit sub authorities (little-endian)
+      *
+      * The String value is: S-Revision-Authority-SubAuthority[n]...
+      *
+      * Based on code from here - http://forums.oracle.com/forums/thread.jspa?threadID=1155740&tstart=0
+      */
+    public static String toString(final byte[] sid) {
+        return toString(sid, 0);
+    }
+
+    /**
+     * @return the string form of the binary SID starting at offset
+     */
+    public static String toString(final byte[] bytes, final int offset) {
+        final StringBuilder strSid = new StringBuilder("S-");
+
+        // get version
+        final int revision = bytes[offset];
+        strSid.append(Integer.toString(revision));
+
+        //next byte is the count of sub-authorities
+        final int countSubAuths = bytes[offset + 1] & 0xFF;
+
+        //get the authority
+        long authority = 0;
+        for (int i = 2; i <= 7; i++) {
+            authority |= ((long) bytes[offset + i] & 0xFF) << (8 * (5 - (i - 2)));
+        }
+        strSid.append("-");
+        // same representation as Windows, decimal unless the authority does not fit into 32 bit
+        if (authority < (1L << 32)) {
+            strSid.append(authority);
+        } else {
+            strSid.append("0x").append(Long.toHexString(authority).toUpperCase(java.util.Locale.ROOT));
+        }
+
+        //iterate all the sub-auths
+        int position = offset + 8;
+        final int size = 4; //4 bytes for each sub auth
+        for (int j = 0; j < countSubAuths; j++) {
+            long subAuthority = 0;
+            for (int k = 0; k < size; k++) {
+                subAuthority |= (long) (bytes[position + k] & 0xFF) << (8 * k);
+            }
+
+            strSid.append("-");
+            strSid.append(subAuthority);
+
+            position += size;
+        }
+
+        return strSid.toString();
+    }
+}
@@ -0,0 +1,107 @@
+/*
+   Copyright 2015 codecentric AG
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package de.codecentric.elasticsearch.plugin.kerberosrealm.support;
+
+import java.util.Arrays;
+
+/**
+ * Locates the Kerberos AP-REQ in a Negotiate token, which may be a SPNEGO NegTokenInit or NegTokenResp, a plain
+ * Kerberos GSS-API token or a bare AP-REQ.
+ */
+public final class SpnegoUtil {
+
+    // 1.3.6.1.5.5.2
+    private static final byte[] SPNEGO_OID = { 0x2B, 0x06, 0x01, 0x05, 0x05, 0x02 };
+    // 1.2.840.113554.1.2.2
+    private static final byte[] KRB5_OID = { 0x2A, (byte) 0x86, 0x48, (byte) 0x86, (byte) 0xF7, 0x12, 0x01, 0x02, 0x02 };
+    // 1.2.840.48018.1.2.2, sent by older Windows clients
+    private static final byte[] MS_KRB5_OID = { 0x2A, (byte) 0x86, 0x48, (byte) 0x82, (byte) 0xF7, 0x12, 0x01, 0x02, 0x02 };
+    private static final byte[] AP_REQ_TOKEN_ID = { 0x01, 0x00 };
+
+    private static final int GSS_INITIAL_CONTEXT_TOKEN = 0x60;
+    private static final int NEG_TOKEN_INIT = 0xA0;
+    private static final int NEG_TOKEN_RESP = 0xA1;
+    private static final int AP_REQ = 0x6E;
+    private static final int SEQUENCE = 0x30;
+
+    private SpnegoUtil() {
+    }
+
+    /**
+     * @return the cipher of the encrypted authenticator of the AP-REQ in the token or null if the token contains
+     * no AP-REQ, e.g. a NegTokenResp without response token
+     * @throws IllegalArgumentException if the token is malformed
+     */
+    public static byte[] authenticatorCipher(final byte[] token, final int offset, final int length) {
+        return authenticatorCipher(new DerReader(token, offset, offset + length), 0);
+    }
+
+    private static byte[] authenticatorCipher(final DerReader reader, final int nesting) {
+        if (nesting > 2) {
+            throw new IllegalArgumentException("Negotiate token nested too deeply");
+        }
+        switch (reader.peekTag()) {
+        case GSS_INITIAL_CONTEXT_TOKEN: {
+            // InitialContextToken ::= [APPLICATION 0] IMPLICIT SEQUENCE { thisMech MechType, innerContextToken ANY }
+            final DerReader gss = reader.enter(GSS_INITIAL_CONTEXT_TOKEN);
+            final byte[] mech = gss.readOid();
+            if (Arrays.equals(mech, SPNEGO_OID)) {
+                return authenticatorCipher(gss, nesting + 1);
+            }
+            if (Arrays.equals(mech, KRB5_OID) || Arrays.equals(mech, MS_KRB5_OID)) {
+                if (!Arrays.equals(gss.readRaw(2), AP_REQ_TOKEN_ID)) {
+                    return null;
+                }
+                return apReqAuthenticatorCipher(gss);
+            }
+            return null;
+        }
+        case NEG_TOKEN_INIT:
+            // NegTokenInit ::= SEQUENCE { mechTypes [0], reqFlags [1], mechToken [2] OCTET STRING, mechListMIC [3] }
+            return innerToken(reader.enter(NEG_TOKEN_INIT).enter(SEQUENCE), nesting);
+        case NEG_TOKEN_RESP:
+            // NegTokenResp ::= SEQUENCE { negState [0], supportedMech [1], responseToken [2] OCTET STRING, mechListMIC [3] }
+            return innerToken(reader.enter(NEG_TOKEN_RESP).enter(SEQUENCE), nesting);
+        case AP_REQ:
+            return apReqAuthenticatorCipher(reader);
+        default:
+            return null;
+        }
+    }
+
+    private static byte[] innerToken(final DerReader negToken, final int nesting) {
+        final DerReader field = negToken.find(0xA2);
+        if (field == null) {
+            return null;
+        }
+        final byte[] inner = field.readOctetString();
+        return authenticatorCipher(new DerReader(inner, 0, inner.length), nesting + 1);
+    }
+
+    // AP-REQ ::= [APPLICATION 14] SEQUENCE { pvno [0], msg-type [1], ap-options [2], ticket [3], authenticator [4] }
+    // EncryptedData ::= SEQUENCE { etype [0], kvno [1] OPTIONAL, cipher [2] OCTET STRING }
+    private static byte[] apReqAuthenticatorCipher(final DerReader reader) {
+        final DerReader authenticator = reader.enter(AP_REQ).enter(SEQUENCE).find(0xA4);
+        if (authenticator == null) {
+            throw new IllegalArgumentException("AP-REQ without authenticator");
+        }
+        final DerReader cipher = authenticator.enter(SEQUENCE).find(0xA2);
+        if (cipher == null) {
+            throw new IllegalArgumentException("Authenticator without cipher");
+        }
+        return cipher.readOctetString();
+    }
+}
@@ -0,0 +1,166 @@
+/*
+   Copyright 2015 codecentric AG
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package de.codecentric.elasticsearch.plugin.kerberosrealm.realm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.security.auth.Subject;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.ietf.jgss.GSSCredential;
+import org.ietf.jgss.GSSException;
+import org.junit.Test;
+
+import de.codecentric.elasticsearch.plugin.kerberosrealm.realm.AcceptorSubjectRenewerTests.ScriptedSubjectHolder;
+
+/**
+ * Checks when {@link AcceptorCredentialCache} shares its credential and when it acquires a new one, with credentials
+ * which are not backed by a keytab.
+ */
+public class AcceptorCredentialCacheTests {
+
+    private final ESLogger logger = Loggers.getLogger(getClass());
+    private final ScriptedSubjectHolder subjectHolder = new ScriptedSubjectHolder(null, logger);
+
+    @Test
+    public void testCredentialIsShared() throws Exception {
+        final ScriptedCredentialCache cache = new ScriptedCredentialCache(GSSCredential.INDEFINITE_LIFETIME);
+        final GSSCredential credential = cache.getCredential();
+        assertSame(credential, cache.getCredential());
+        assertEquals(1, cache.acquired.get());
+    }
+
+    @Test
+    public void testConcurrentCallersShareOneCredential() throws Exception {
+        final ScriptedCredentialCache cache = new ScriptedCredentialCache(GSSCredential.INDEFINITE_LIFETIME);
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<GSSCredential> credentials = Collections.synchronizedList(new ArrayList<GSSCredential>());
+        final Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        credentials.add(cache.getCredential());
+                    } catch (Exception e) {
+                        throw new AssertionError(e);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join(10000);
+        }
+        assertEquals(threads.length, credentials.size());
+        for (GSSCredential credential : credentials) {
+            assertSame(credentials.get(0), credential);
+        }
+        assertEquals(1, cache.acquired.get());
+    }
+
+    @Test
+    public void testRenewedSubjectRebuildsCredential() throws Exception {
+        final ScriptedCredentialCache cache = new ScriptedCredentialCache(GSSCredential.INDEFINITE_LIFETIME);
+        final GSSCredential credential = cache.getCredential();
+        subjectHolder.relogin();
+        final GSSCredential renewed = cache.getCredential();
+        assertNotSame(credential, renewed);
+        assertSame(renewed, cache.getCredential());
+        assertEquals(2, cache.acquired.get());
+    }
+
+    @Test
+    public void testInvalidateRebuildsCredential() throws Exception {
+        final ScriptedCredentialCache cache = new ScriptedCredentialCache(GSSCredential.INDEFINITE_LIFETIME);
+        final GSSCredential credential = cache.getCredential();
+        cache.invalidate();
+        assertNotSame(credential, cache.getCredential());
+        assertEquals(2, cache.acquired.get());
+    }
+
+    @Test
+    public void testCredentialCloseToExpiryIsNotShared() throws Exception {
+        // within the expiry margin, every caller gets a fresh one
+        final ScriptedCredentialCache cache = new ScriptedCredentialCache(30);
+        assertNotSame(cache.getCredential(), cache.getCredential());
+        assertEquals(2, cache.acquired.get());
+
+        // an hour is shared
+        final ScriptedCredentialCache hour = new ScriptedCredentialCache(3600);
+        assertSame(hour.getCredential(), hour.getCredential());
+    }
+
+    @Test
+    public void testExpiredCredentialFails() throws Exception {
+        final ScriptedCredentialCache cache = new ScriptedCredentialCache(0);
+        try {
+            cache.getCredential();
+            fail("an expired credential cannot accept");
+        } catch (GSSException e) {
+            assertEquals(GSSException.CREDENTIALS_EXPIRED, e.getMajor());
+        }
+    }
+
+    /**
+     * Hands out credentials with the given remaining accept lifetime in seconds.
+     */
+    private final class ScriptedCredentialCache extends AcceptorCredentialCache {
+        final AtomicInteger acquired = new AtomicInteger();
+        private final int remainingLifetime;
+
+        ScriptedCredentialCache(int remainingLifetime) {
+            super(subjectHolder, logger);
+            this.remainingLifetime = remainingLifetime;
+        }
+
+        @Override
+        GSSCredential acquire(Subject subject) {
+            acquired.incrementAndGet();
+            return (GSSCredential) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { GSSCredential.class },
+                    new InvocationHandler() {
+                        @Override
+                        public Object invoke(Object proxy, Method method, Object[] args) {
+                            switch (method.getName()) {
+                            case "getRemainingAcceptLifetime":
+                                return remainingLifetime;
+                            case "hashCode":
+                                return System.identityHashCode(proxy);
+                            case "equals":
+                                return proxy == args[0];
+                            default:
+                                return null;
+                            }
+                        }
+                    });
+        }
+    }
+}
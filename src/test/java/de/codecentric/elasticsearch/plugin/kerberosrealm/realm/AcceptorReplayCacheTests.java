@@ -0,0 +1,157 @@
+/*
+   Copyright 2015 codecentric AG
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package de.codecentric.elasticsearch.plugin.kerberosrealm.realm;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import de.codecentric.elasticsearch.plugin.kerberosrealm.realm.AcceptorReplayCache.Result;
+
+public class AcceptorReplayCacheTests {
+
+    private static final long NOW = 1000000000000L;
+
+    @Test
+    public void testReplayWithinSkewIsDetected() {
+        final AcceptorReplayCache cache = new AcceptorReplayCache(1000, 300);
+        final TokenFingerprint fingerprint = authenticator("alice@EXAMPLE.COM", 1);
+        assertEquals(Result.FRESH, cache.check(fingerprint, NOW));
+        assertEquals(Result.REPLAY, cache.check(fingerprint, NOW + 1000));
+        assertEquals(Result.REPLAY, cache.check(fingerprint, NOW + 299 * 1000L));
+        assertEquals(2, cache.hits());
+        assertEquals(1, cache.misses());
+    }
+
+    @Test
+    public void testEntriesExpireAfterSkew() {
+        final AcceptorReplayCache cache = new AcceptorReplayCache(1000, 300);
+        final TokenFingerprint fingerprint = authenticator("alice@EXAMPLE.COM", 1);
+        assertEquals(Result.FRESH, cache.check(fingerprint, NOW));
+        // one bucket longer than the window so that the bucket of NOW is certainly dropped
+        assertEquals(Result.FRESH, cache.check(authenticator("bob@EXAMPLE.COM", 1), NOW + 340 * 1000L));
+        assertEquals(Result.FRESH, cache.check(fingerprint, NOW + 340 * 1000L));
+        assertEquals(1, cache.expirations());
+    }
+
+    @Test
+    public void testClientIsPartOfTheKey() {
+        final AcceptorReplayCache cache = new AcceptorReplayCache(1000, 300);
+        assertEquals(Result.FRESH, cache.check(authenticator("alice@EXAMPLE.COM", 1), NOW));
+        assertEquals(Result.FRESH, cache.check(authenticator("bob@EXAMPLE.COM", 1), NOW));
+    }
+
+    @Test
+    public void testFullCacheRejectsInsteadOfEvicting() {
+        // one entry per stripe
+        final AcceptorReplayCache cache = new AcceptorReplayCache(16, 300);
+        final List<TokenFingerprint> recorded = new ArrayList<>();
+        final List<TokenFingerprint> rejected = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            final TokenFingerprint fingerprint = authenticator("alice@EXAMPLE.COM", i);
+            final Result result = cache.check(fingerprint, NOW);
+            if (result == Result.FRESH) {
+                recorded.add(fingerprint);
+            } else {
+                assertEquals(Result.FULL, result);
+                rejected.add(fingerprint);
+            }
+        }
+        assertEquals(16, recorded.size());
+        assertEquals(184, rejected.size());
+        assertEquals(184, cache.rejections());
+        assertEquals(16, cache.size());
+
+        // a flood of other authenticators did not push out the recorded ones
+        for (final TokenFingerprint fingerprint : recorded) {
+            assertEquals(Result.REPLAY, cache.check(fingerprint, NOW + 1000));
+        }
+        // and a rejected authenticator was not recorded, so it is accepted once there is room again
+        assertEquals(Result.FULL, cache.check(rejected.get(0), NOW + 1000));
+        assertEquals(Result.FRESH, cache.check(rejected.get(0), NOW + 340 * 1000L));
+        // only the stripe of the checked authenticator expired its entry
+        assertEquals(1, cache.expirations());
+    }
+
+    @Test
+    public void testFullStripeRecoversAsBucketsExpire() {
+        // two entries per stripe, the authenticators below all fall into the same stripe
+        final AcceptorReplayCache cache = new AcceptorReplayCache(32, 300);
+        final List<TokenFingerprint> sameStripe = new ArrayList<>();
+        final int stripe = authenticator("alice@EXAMPLE.COM", 0).stripe(16);
+        for (int i = 0; sameStripe.size() < 4; i++) {
+            final TokenFingerprint fingerprint = authenticator("alice@EXAMPLE.COM", i);
+            if (fingerprint.stripe(16) == stripe) {
+                sameStripe.add(fingerprint);
+            }
+        }
+
+        assertEquals(Result.FRESH, cache.check(sameStripe.get(0), NOW));
+        assertEquals(Result.FRESH, cache.check(sameStripe.get(1), NOW + 100 * 1000L));
+        assertEquals(Result.FULL, cache.check(sameStripe.get(2), NOW + 200 * 1000L));
+        assertEquals(Result.FULL, cache.check(sameStripe.get(2), NOW + 299 * 1000L));
+
+        // the bucket of the first entry left the window, the one of the second did not
+        assertEquals(Result.FRESH, cache.check(sameStripe.get(2), NOW + 340 * 1000L));
+        assertEquals(Result.REPLAY, cache.check(sameStripe.get(1), NOW + 340 * 1000L));
+        assertEquals(Result.FULL, cache.check(sameStripe.get(3), NOW + 340 * 1000L));
+        assertEquals(1, cache.expirations());
+
+        // once every bucket expired the stripe takes a full load again
+        assertEquals(Result.FRESH, cache.check(sameStripe.get(3), NOW + 800 * 1000L));
+        assertEquals(Result.FRESH, cache.check(sameStripe.get(0), NOW + 800 * 1000L));
+        assertEquals(3, cache.expirations());
+        assertEquals(3, cache.rejections());
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testConcurrentChecksRecordOnce() throws Exception {
+        final AcceptorReplayCache cache = new AcceptorReplayCache(100000, 300);
+        final int threads = 8;
+        final int[] fresh = new int[threads];
+        final Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int index = t;
+            workers[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 1000; i++) {
+                        if (cache.check(authenticator("alice@EXAMPLE.COM", i), NOW) == Result.FRESH) {
+                            fresh[index]++;
+                        }
+                    }
+                }
+            };
+            workers[t].start();
+        }
+        int total = 0;
+        for (int t = 0; t < threads; t++) {
+            workers[t].join();
+            total += fresh[t];
+        }
+        assertEquals(1000, total);
+        assertEquals(7000, cache.hits());
+    }
+
+    private static TokenFingerprint authenticator(final String client, final int ctime) {
+        return TokenFingerprint.ofAuthenticator(client, ("authenticator-" + ctime).getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,151 @@
+/*
+   Copyright 2015 codecentric AG
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package de.codecentric.elasticsearch.plugin.kerberosrealm.realm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.security.auth.Subject;
+import javax.security.auth.login.LoginException;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.junit.Test;
+
+/**
+ * Checks when {@link AcceptorSubjectRenewer} re-logs in the acceptor, with a subject holder which logs in without a
+ * KDC.
+ */
+public class AcceptorSubjectRenewerTests {
+
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+    private final ESLogger logger = Loggers.getLogger(getClass());
+
+    @Test
+    public void testReloginAfterMaxAge() throws Exception {
+        final ScriptedSubjectHolder holder = new ScriptedSubjectHolder(null, logger);
+        assertTrue(holder.needsRelogin(HOUR));
+
+        final Subject subject = holder.getSubject();
+        assertSame(subject, holder.getSubject());
+        assertEquals(1, holder.logins.get());
+
+        final long loggedIn = holder.lastLoginMillis();
+        assertFalse(holder.needsRelogin(HOUR, loggedIn));
+        assertFalse(holder.needsRelogin(HOUR, loggedIn + HOUR - 1));
+        assertTrue(holder.needsRelogin(HOUR, loggedIn + HOUR));
+    }
+
+    @Test
+    public void testReloginWhenKeytabChanges() throws Exception {
+        final Path keytab = Files.createTempFile("acceptor", ".keytab");
+        try {
+            Files.setLastModifiedTime(keytab, FileTime.fromMillis(1000000000000L));
+            final ScriptedSubjectHolder holder = new ScriptedSubjectHolder(keytab, logger);
+            holder.getSubject();
+            assertFalse(holder.needsRelogin(HOUR, holder.lastLoginMillis()));
+
+            // e.g. a rotated service key, long before the subject is due
+            Files.setLastModifiedTime(keytab, FileTime.fromMillis(1000000060000L));
+            assertTrue(holder.needsRelogin(HOUR, holder.lastLoginMillis()));
+            holder.relogin();
+            assertFalse(holder.needsRelogin(HOUR, holder.lastLoginMillis()));
+            assertEquals(2, holder.generation());
+        } finally {
+            Files.deleteIfExists(keytab);
+        }
+    }
+
+    @Test
+    public void testFailedReloginKeepsSubject() throws Exception {
+        final ScriptedSubjectHolder holder = new ScriptedSubjectHolder(null, logger);
+        final Subject subject = holder.getSubject();
+        holder.failing = true;
+        try {
+            holder.relogin();
+        } catch (LoginException e) {
+            // expected
+        }
+        assertSame(subject, holder.getSubject());
+        assertEquals(1, holder.generation());
+    }
+
+    @Test
+    public void testCheckInterval() {
+        assertEquals(1000L, AcceptorSubjectRenewer.checkIntervalMillis(0));
+        assertEquals(1000L, AcceptorSubjectRenewer.checkIntervalMillis(10));
+        assertEquals(30000L, AcceptorSubjectRenewer.checkIntervalMillis(30000));
+        // a changed keytab is noticed within a minute however long the relogin interval is
+        assertEquals(60000L, AcceptorSubjectRenewer.checkIntervalMillis(HOUR));
+    }
+
+    @Test
+    public void testRenewerRelogsInUntilInterrupted() throws Exception {
+        final ScriptedSubjectHolder holder = new ScriptedSubjectHolder(null, logger);
+        holder.getSubject();
+        // a relogin interval of 0 minutes renews on every check, a failing login does not end the renewer
+        holder.failing = true;
+        final Thread renewer = new Thread(new AcceptorSubjectRenewer(holder, 0, logger));
+        renewer.start();
+        try {
+            assertTrue(holder.attempts.await(10, TimeUnit.SECONDS));
+            assertEquals(1, holder.generation());
+            holder.failing = false;
+            holder.renewed = new CountDownLatch(1);
+            assertTrue(holder.renewed.await(10, TimeUnit.SECONDS));
+        } finally {
+            renewer.interrupt();
+            renewer.join(10000);
+        }
+        assertFalse(renewer.isAlive());
+        assertTrue(holder.generation() >= 2);
+    }
+
+    /**
+     * Logs in with an empty subject instead of the keytab, or fails like an unreachable KDC.
+     */
+    static final class ScriptedSubjectHolder extends AcceptorSubjectHolder {
+        final AtomicInteger logins = new AtomicInteger();
+        final CountDownLatch attempts = new CountDownLatch(2);
+        volatile CountDownLatch renewed = new CountDownLatch(0);
+        volatile boolean failing;
+
+        ScriptedSubjectHolder(Path keytab, ESLogger logger) {
+            super("HTTP/localhost@EXAMPLE.COM", keytab, logger);
+        }
+
+        @Override
+        Subject login() throws LoginException {
+            attempts.countDown();
+            if (failing) {
+                throw new LoginException("KDC unreachable");
+            }
+            logins.incrementAndGet();
+            renewed.countDown();
+            return new Subject();
+        }
+    }
+}
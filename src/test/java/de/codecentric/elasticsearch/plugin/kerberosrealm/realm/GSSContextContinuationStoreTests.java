@@ -0,0 +1,105 @@
+/*
+   Copyright 2015 codecentric AG
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package de.codecentric.elasticsearch.plugin.kerberosrealm.realm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.ietf.jgss.GSSContext;
+import org.junit.Test;
+
+public class GSSContextContinuationStoreTests {
+
+    @Test
+    public void testContextIsOnlyResumedWithItsId() {
+        final GSSContextContinuationStore store = new GSSContextContinuationStore(10, 60);
+        final GSSContext first = context(new AtomicBoolean());
+        final GSSContext second = context(new AtomicBoolean());
+        final String firstId = store.put(first);
+        final String secondId = store.put(second);
+        assertTrue(!firstId.equals(secondId));
+
+        // without an id there is nothing to continue, not even if only one handshake is pending
+        assertNull(store.take(null));
+        assertNull(store.take("unknown"));
+        assertEquals(2, store.size());
+
+        assertSame(second, store.take(secondId));
+        assertSame(first, store.take(firstId));
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    public void testContextIsTakenOnlyOnce() {
+        final GSSContextContinuationStore store = new GSSContextContinuationStore(10, 60);
+        final GSSContext context = context(new AtomicBoolean());
+        final String id = store.put(context);
+        assertSame(context, store.take(id));
+        assertNull(store.take(id));
+    }
+
+    @Test
+    public void testEldestContextIsDisposedWhenFull() {
+        final GSSContextContinuationStore store = new GSSContextContinuationStore(2, 60);
+        final AtomicBoolean firstDisposed = new AtomicBoolean();
+        final String firstId = store.put(context(firstDisposed));
+        final String secondId = store.put(context(new AtomicBoolean()));
+        final String thirdId = store.put(context(new AtomicBoolean()));
+
+        assertTrue(firstDisposed.get());
+        assertEquals(2, store.size());
+        assertNull(store.take(firstId));
+        assertTrue(store.take(secondId) != null);
+        assertTrue(store.take(thirdId) != null);
+    }
+
+    @Test
+    public void testExpiredContextIsDisposed() {
+        final GSSContextContinuationStore store = new GSSContextContinuationStore(10, 0);
+        final AtomicBoolean disposed = new AtomicBoolean();
+        final String id = store.put(context(disposed));
+        assertNull(store.take(id));
+        assertTrue(disposed.get());
+        assertEquals(0, store.size());
+    }
+
+    private static GSSContext context(final AtomicBoolean disposed) {
+        return (GSSContext) Proxy.newProxyInstance(GSSContext.class.getClassLoader(), new Class<?>[] { GSSContext.class },
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                        if ("dispose".equals(method.getName())) {
+                            disposed.set(true);
+                            return null;
+                        }
+                        if ("equals".equals(method.getName())) {
+                            return proxy == args[0];
+                        }
+                        if ("hashCode".equals(method.getName())) {
+                            return System.identityHashCode(proxy);
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+}
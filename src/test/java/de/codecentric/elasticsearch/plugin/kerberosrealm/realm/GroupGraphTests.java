@@ -0,0 +1,235 @@
+/*
+   Copyright 2015 codecentric AG
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+   Author: Hendrik Saly <hendrik.saly@codecentric.de>
+ */
+package de.codecentric.elasticsearch.plugin.kerberosrealm.realm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import de.codecentric.elasticsearch.plugin.kerberosrealm.support.Sid;
+
+import org.junit.Test;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+
+/**
+ * Checks {@link GroupGraph} against the multimap of group DN to roles it replaced, using a synthetic directory of
+ * 100k groups for the structure it keeps.
+ */
+public class GroupGraphTests {
+
+    private static final int GROUPS = 100000;
+    private static final int MAPPED_GROUPS = 4000;
+    private static final int ROLES = 20;
+
+    @Test
+    public void testRolesMatchMultimap() {
+        final Map<String, RoleMapper.MappedGroup> mappedGroups = new LinkedHashMap<>();
+        mappedGroups.put("CN=Admins", new RoleMapper.MappedGroup("CN=Admins", null, Arrays.asList("admin"),
+                new String[] { "CN=Ops", "CN=Shared" }));
+        mappedGroups.put("CN=Readers", new RoleMapper.MappedGroup("CN=Readers", null, Arrays.asList("reader", "monitor"),
+                new String[] { "CN=Shared", "CN=Admins" }));
+        mappedGroups.put("CN=Empty", new RoleMapper.MappedGroup("CN=Empty", null, Arrays.asList("reader"), new String[0]));
+
+        final GroupGraph graph = GroupGraph.build(ArrayListMultimap.<String, String>create(), mappedGroups.values());
+        assertEquals(5, graph.size());
+        assertEquals(3, graph.roleCount());
+        assertEquals(-1, graph.id("CN=Unknown"));
+        assertEquals(-1, graph.id("cn=admins"));
+        assertEquals(roles(graph, "CN=Admins"), new HashSet<>(Arrays.asList("admin", "reader", "monitor")));
+        assertEquals(roles(graph, "CN=Ops"), new HashSet<>(Arrays.asList("admin")));
+        assertEquals(roles(graph, "CN=Shared"), new HashSet<>(Arrays.asList("admin", "reader", "monitor")));
+        assertEquals(roles(graph, "CN=Empty"), new HashSet<>(Arrays.asList("reader")));
+
+        final ListMultimap<String, String> multimap = multimap(mappedGroups);
+        for (int id = 0; id < graph.size(); id++) {
+            assertEquals(new HashSet<>(multimap.get(graph.dn(id))), roles(graph, graph.dn(id)));
+        }
+    }
+
+    @Test
+    public void testResolveRoles() {
+        final ListMultimap<String, String> users = ArrayListMultimap.create();
+        users.put("alice", "reader");
+        users.put("bob", "superuser");
+        final Sid adminsSid = Sid.wrap(new byte[] { 1, 5, 0, 0, 0, 0, 0, 5, 21, 0, 0, 0, 1, 0, 0, 0, 2, 0, 0, 0, 3, 0, 0, 0, 0, 2, 0, 0 });
+        final Sid otherSid = Sid.wrap(new byte[] { 1, 1, 0, 0, 0, 0, 0, 5, 32, 0, 0, 0 });
+        final Map<String, RoleMapper.MappedGroup> mappedGroups = new LinkedHashMap<>();
+        mappedGroups.put("CN=Admins", new RoleMapper.MappedGroup("CN=Admins", adminsSid, Arrays.asList("admin"),
+                new String[] { "CN=Ops" }));
+        mappedGroups.put("CN=Readers", new RoleMapper.MappedGroup("CN=Readers", null, Arrays.asList("reader", "monitor"),
+                new String[] { "CN=Admins" }));
+        final GroupGraph graph = GroupGraph.build(users, mappedGroups.values());
+
+        assertEquals(0, graph.resolveRoles("nobody", null, null).length);
+        assertEquals(0, graph.resolveRoles("nobody", Arrays.asList("CN=Unknown"), Arrays.asList(otherSid)).length);
+        assertEquals(new HashSet<>(Arrays.asList("reader")), set(graph.resolveRoles("alice", null, null)));
+        assertEquals(new HashSet<>(Arrays.asList("reader", "superuser", "admin", "monitor")),
+                set(graph.resolveRoles("bob", Arrays.asList("CN=Unknown", "CN=Ops", "CN=Readers"), null)));
+        // only the roles the group is mapped to itself, the PAC contains the groups it is nested in
+        assertEquals(new HashSet<>(Arrays.asList("admin")), set(graph.resolveRoles("nobody", null, Arrays.asList(otherSid, adminsSid))));
+
+        // users with the same roles share the array and nothing is written to the mapping
+        final String[] roles = graph.resolveRoles("nobody", Arrays.asList("CN=Ops"), null);
+        assertSame(roles, graph.resolveRoles("carol", null, Arrays.asList(adminsSid)));
+        assertEquals(3, graph.cachedRoleSets());
+        assertEquals(1, users.get("alice").size());
+        assertEquals(0, graph.resolveRoles("carol", null, null).length);
+    }
+
+    @Test
+    public void testManyRoles() {
+        final List<String> roles = new ArrayList<>();
+        final String[] nested = new String[150];
+        for (int i = 0; i < nested.length; i++) {
+            roles.add("role_" + i);
+            nested[i] = "CN=Nested " + i;
+        }
+        final Map<String, RoleMapper.MappedGroup> mappedGroups = new LinkedHashMap<>();
+        mappedGroups.put("CN=All", new RoleMapper.MappedGroup("CN=All", null, roles, nested));
+        mappedGroups.put("CN=Last", new RoleMapper.MappedGroup("CN=Last", null, Arrays.asList("last"), new String[] { "CN=Nested 149" }));
+        final GroupGraph graph = GroupGraph.build(ArrayListMultimap.<String, String>create(), mappedGroups.values());
+
+        assertEquals(151, graph.roleCount());
+        assertEquals(151, graph.resolveRoles("nobody", Arrays.asList("CN=Nested 149"), null).length);
+        assertEquals(150, graph.resolveRoles("nobody", Arrays.asList("CN=Nested 3"), null).length);
+        assertEquals(Arrays.asList("last"), Arrays.asList(graph.resolveRoles("nobody", Arrays.asList("CN=Last"), null)));
+    }
+
+    @Test
+    public void testSyntheticDirectoryMatchesMultimap() {
+        final Map<String, RoleMapper.MappedGroup> mappedGroups = directory(new Random(42));
+        final ListMultimap<String, String> multimap = multimap(mappedGroups);
+        final GroupGraph graph = GroupGraph.build(ArrayListMultimap.<String, String>create(), mappedGroups.values());
+
+        assertEquals(multimap.keySet().size(), graph.size());
+        for (String dn : multimap.keySet()) {
+            assertEquals(new HashSet<>(multimap.get(dn)), roles(graph, dn));
+        }
+    }
+
+    @Test
+    public void testSnapshotKeepsNestedGroupsOnlyInGraph() {
+        final Map<String, RoleMapper.MappedGroup> mappedGroups = directory(new Random(42));
+        final ListMultimap<String, String> multimap = multimap(mappedGroups);
+        final Set<String> instances = Collections.newSetFromMap(new IdentityHashMap<String, Boolean>());
+        final Set<String> distinct = new HashSet<>();
+        final Set<String> distinctNested = new HashSet<>();
+        int edges = 0;
+        for (RoleMapper.MappedGroup group : mappedGroups.values()) {
+            distinct.add(group.dn);
+            distinctNested.addAll(Arrays.asList(group.nested));
+            instances.addAll(Arrays.asList(group.nested));
+            edges += group.nested.length;
+        }
+        distinct.addAll(distinctNested);
+        assertEquals(edges, instances.size());
+
+        final RoleMappingSnapshot snapshot = RoleMappingSnapshot.create(1, ArrayListMultimap.<String, String>create(), mappedGroups);
+        final GroupGraph graph = snapshot.graph();
+        assertEquals(distinct.size(), graph.size());
+        assertEquals(MAPPED_GROUPS, graph.mappedGroups());
+        assertTrue(graph.roleCount() <= ROLES);
+        // the multimap has an entry per role and nested group, the graph a DN and a bitset per group
+        assertTrue(graph.size() + " groups, " + multimap.size() + " entries", graph.size() < multimap.size());
+
+        // the nested groups are read from the graph, every DN is a single instance
+        instances.clear();
+        final Map<String, RoleMapper.MappedGroup> expanded = snapshot.groups();
+        assertEquals(new ArrayList<>(mappedGroups.keySet()), new ArrayList<>(expanded.keySet()));
+        for (RoleMapper.MappedGroup group : expanded.values()) {
+            assertEquals(Arrays.asList(mappedGroups.get(group.dn).nested), Arrays.asList(group.nested));
+            for (String nested : group.nested) {
+                assertSame(graph.dn(graph.id(nested)), nested);
+                instances.add(nested);
+            }
+        }
+        assertEquals(distinctNested.size(), instances.size());
+        assertNull(snapshot.nestedGroups("CN=Unknown"));
+    }
+
+    /**
+     * Every mapped group has up to 100 nested groups out of 100k, the DNs are separate instances like the search
+     * results they are read from.
+     */
+    private static Map<String, RoleMapper.MappedGroup> directory(Random random) {
+        final Map<String, RoleMapper.MappedGroup> mappedGroups = new LinkedHashMap<>();
+        for (int m = 0; m < MAPPED_GROUPS; m++) {
+            final String dn = dn(m);
+            final List<String> roles = new ArrayList<>();
+            for (int r = 0; r <= random.nextInt(3); r++) {
+                roles.add(new String("role_" + random.nextInt(ROLES)));
+            }
+            final String[] nested = new String[random.nextInt(101)];
+            for (int i = 0; i < nested.length; i++) {
+                nested[i] = dn(random.nextInt(GROUPS));
+            }
+            mappedGroups.put(dn, new RoleMapper.MappedGroup(dn, null, roles, nested));
+        }
+        return mappedGroups;
+    }
+
+    private static String dn(int group) {
+        return String.format(Locale.ROOT, "CN=Group %d,OU=Groups,OU=Department %d,DC=corp,DC=example,DC=com", group, group % 50);
+    }
+
+    /**
+     * The group DN to roles multimap as built by RoleMapper before.
+     */
+    private static ListMultimap<String, String> multimap(Map<String, RoleMapper.MappedGroup> mappedGroups) {
+        final ListMultimap<String, String> groupMap = ArrayListMultimap.create();
+        for (RoleMapper.MappedGroup group : mappedGroups.values()) {
+            for (String role : group.roles) {
+                groupMap.put(group.dn, role);
+                for (String nestedGroup : group.nested) {
+                    groupMap.put(nestedGroup, role);
+                }
+            }
+        }
+        return groupMap;
+    }
+
+    private static HashSet<String> roles(GroupGraph graph, String dn) {
+        final HashSet<String> roles = new HashSet<>();
+        final int id = graph.id(dn);
+        for (int role = 0; role < graph.roleCount(); role++) {
+            if (graph.hasRole(id, role)) {
+                roles.add(graph.role(role));
+            }
+        }
+        return roles;
+    }
+
+    private static HashSet<String> set(String[] roles) {
+        return new HashSet<>(Arrays.asList(roles));
+    }
+}
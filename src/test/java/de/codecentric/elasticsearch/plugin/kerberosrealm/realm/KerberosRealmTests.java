@@ -0,0 +1,145 @@
+/*
+   Copyright 2015 codecentric AG
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package de.codecentric.elasticsearch.plugin.kerberosrealm.realm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.ElasticsearchTimeoutException;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Checks how the realm waits for the authentication work it hands to the bounded kerberos thread pool.
+ */
+public class KerberosRealmTests {
+
+    private final ESLogger logger = Loggers.getLogger(getClass());
+    private final CountDownLatch release = new CountDownLatch(1);
+    // one thread and one queued task, like a saturated kerberos pool
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(1),
+            new RejectedExecutionHandler() {
+                @Override
+                public void rejectedExecution(Runnable r, ThreadPoolExecutor e) {
+                    throw new EsRejectedExecutionException("rejected execution on kerberos pool");
+                }
+            });
+
+    @After
+    public void shutdown() {
+        release.countDown();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testResult() {
+        assertEquals("token", KerberosRealm.callWithTimeout(executor, new Callable<String>() {
+            @Override
+            public String call() {
+                return "token";
+            }
+        }, 1, logger));
+    }
+
+    @Test
+    public void testFailureIsThrownAsItIs() {
+        final ElasticsearchException failure = new ElasticsearchException("Bad 'Authorization' header");
+        try {
+            KerberosRealm.callWithTimeout(executor, new Callable<String>() {
+                @Override
+                public String call() {
+                    throw failure;
+                }
+            }, 1, logger);
+            fail("the failure of the authentication is reported");
+        } catch (ElasticsearchException e) {
+            assertSame(failure, e);
+        }
+    }
+
+    @Test
+    public void testSlowAuthenticationTimesOutAndIsInterrupted() throws Exception {
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        final long start = System.nanoTime();
+        try {
+            KerberosRealm.callWithTimeout(executor, new Callable<String>() {
+                @Override
+                public String call() {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        interrupted.countDown();
+                    }
+                    return "too late";
+                }
+            }, 1, logger);
+            fail("a caller waits at most the timeout");
+        } catch (ElasticsearchTimeoutException e) {
+            // expected
+        }
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 900);
+        // the pool thread is given back instead of waiting for the KDC
+        assertTrue(interrupted.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testSaturatedPoolRejects() throws Exception {
+        final CountDownLatch running = new CountDownLatch(1);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                running.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    // pass
+                }
+            }
+        });
+        assertTrue(running.await(10, TimeUnit.SECONDS));
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+
+        try {
+            KerberosRealm.callWithTimeout((Executor) executor, new Callable<String>() {
+                @Override
+                public String call() {
+                    return "token";
+                }
+            }, 1, logger);
+            fail("the queue is full");
+        } catch (EsRejectedExecutionException e) {
+            // turned into 429 by the failure handler
+        }
+    }
+}
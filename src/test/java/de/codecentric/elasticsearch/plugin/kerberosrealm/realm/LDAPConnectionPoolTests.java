@@ -0,0 +1,268 @@
+/*
+   Copyright 2015 codecentric AG
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package de.codecentric.elasticsearch.plugin.kerberosrealm.realm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.CommunicationException;
+import javax.naming.NamingException;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.ldap.LdapContext;
+
+import org.elasticsearch.ElasticsearchTimeoutException;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.junit.Test;
+
+/**
+ * Checks borrowing, returning and evicting connections of {@link LDAPConnectionPool} with connections which do not
+ * talk to a server.
+ */
+public class LDAPConnectionPoolTests {
+
+    private final ESLogger logger = Loggers.getLogger(getClass());
+
+    @Test
+    public void testConnectionIsReused() throws Exception {
+        final ScriptedPool pool = new ScriptedPool(0, 2, 60, 1, 3600);
+        try {
+            final LdapContext first = pool.execute(new Borrow());
+            assertSame(first, pool.execute(new Borrow()));
+            assertEquals(1, pool.opened.size());
+        } finally {
+            pool.shutdown();
+        }
+        assertTrue(pool.opened.get(0).closed);
+    }
+
+    @Test
+    public void testBorrowTimesOutWhenExhausted() throws Exception {
+        final ScriptedPool pool = new ScriptedPool(0, 1, 60, 1, 3600);
+        final CountDownLatch borrowed = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Thread holder = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    pool.execute(new LDAPConnectionPool.Operation<Void>() {
+                        @Override
+                        public Void run(LdapContext context) throws NamingException {
+                            borrowed.countDown();
+                            try {
+                                release.await();
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                            return null;
+                        }
+                    });
+                } catch (NamingException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        };
+        try {
+            holder.start();
+            assertTrue(borrowed.await(10, TimeUnit.SECONDS));
+
+            final long start = System.nanoTime();
+            try {
+                pool.execute(new Borrow());
+                fail("the only connection is in use");
+            } catch (ElasticsearchTimeoutException e) {
+                // expected
+            }
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 900);
+
+            // once it is returned the waiting is over and no further connection was opened
+            release.countDown();
+            holder.join(10000);
+            pool.execute(new Borrow());
+            assertEquals(1, pool.opened.size());
+        } finally {
+            release.countDown();
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testIdleConnectionsAreEvictedDownToMinimum() throws Exception {
+        final ScriptedPool pool = new ScriptedPool(1, 3, 60, 1, 3600);
+        try {
+            // three connections in use at the same time
+            pool.execute(new Nested(pool, 3));
+            assertEquals(3, pool.opened.size());
+
+            final long now = System.currentTimeMillis();
+            assertEquals(0, pool.evictIdle(now + 59 * 1000L));
+            assertEquals(2, pool.evictIdle(now + 61 * 1000L));
+            assertEquals(0, pool.evictIdle(now + 3600 * 1000L));
+            int closed = 0;
+            for (ScriptedContext context : pool.opened) {
+                closed += context.closed ? 1 : 0;
+            }
+            assertEquals(2, closed);
+
+            // the one kept is handed out without opening a new one
+            final LdapContext kept = pool.execute(new Borrow());
+            assertFalse(((ScriptedContext) Proxy.getInvocationHandler(kept)).closed);
+            assertEquals(3, pool.opened.size());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testBrokenConnectionIsClosed() throws Exception {
+        final ScriptedPool pool = new ScriptedPool(0, 2, 60, 1, 3600);
+        try {
+            try {
+                pool.execute(new LDAPConnectionPool.Operation<Void>() {
+                    @Override
+                    public Void run(LdapContext context) throws NamingException {
+                        throw new CommunicationException("connection reset");
+                    }
+                });
+                fail("the connection reset is reported");
+            } catch (CommunicationException e) {
+                // expected
+            }
+            assertTrue(pool.opened.get(0).closed);
+
+            // an error the server answered with leaves the connection in the pool
+            try {
+                pool.execute(new LDAPConnectionPool.Operation<Void>() {
+                    @Override
+                    public Void run(LdapContext context) throws NamingException {
+                        throw new NamingException("no such object");
+                    }
+                });
+                fail("the error of the server is reported");
+            } catch (NamingException e) {
+                // expected
+            }
+            assertFalse(pool.opened.get(1).closed);
+            pool.execute(new Borrow());
+            assertEquals(2, pool.opened.size());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testFailedHealthCheckReplacesConnection() throws Exception {
+        // every idle connection is checked before it is handed out
+        final ScriptedPool pool = new ScriptedPool(0, 2, 60, 1, 0);
+        try {
+            pool.execute(new Borrow());
+            pool.execute(new Borrow());
+            assertEquals(1, pool.opened.size());
+
+            pool.opened.get(0).unhealthy = true;
+            pool.execute(new Borrow());
+            assertEquals(2, pool.opened.size());
+            assertTrue(pool.opened.get(0).closed);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static final class Borrow implements LDAPConnectionPool.Operation<LdapContext> {
+        @Override
+        public LdapContext run(LdapContext context) {
+            return context;
+        }
+    }
+
+    /**
+     * Borrows the given number of connections at the same time.
+     */
+    private static final class Nested implements LDAPConnectionPool.Operation<Void> {
+        private final LDAPConnectionPool pool;
+        private final int depth;
+
+        Nested(LDAPConnectionPool pool, int depth) {
+            this.pool = pool;
+            this.depth = depth;
+        }
+
+        @Override
+        public Void run(LdapContext context) throws NamingException {
+            if (depth > 1) {
+                pool.execute(new Nested(pool, depth - 1));
+            }
+            return null;
+        }
+    }
+
+    private final class ScriptedPool extends LDAPConnectionPool {
+        final List<ScriptedContext> opened = new ArrayList<>();
+
+        ScriptedPool(int minSize, int maxSize, int idleTimeoutSeconds, int borrowTimeoutSeconds, int healthCheckIntervalSeconds) {
+            super(new Hashtable<String, Object>(), minSize, maxSize, idleTimeoutSeconds, borrowTimeoutSeconds,
+                    healthCheckIntervalSeconds, "test", logger);
+        }
+
+        @Override
+        synchronized LdapContext open() {
+            final ScriptedContext context = new ScriptedContext();
+            opened.add(context);
+            return (LdapContext) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { LdapContext.class }, context);
+        }
+    }
+
+    /**
+     * A connection which answers the health check unless it is unhealthy and remembers whether it was closed.
+     */
+    private static final class ScriptedContext implements InvocationHandler {
+        volatile boolean closed;
+        volatile boolean unhealthy;
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if ("close".equals(method.getName())) {
+                closed = true;
+                return null;
+            }
+            if ("getAttributes".equals(method.getName())) {
+                if (unhealthy || closed) {
+                    throw new CommunicationException("connection reset");
+                }
+                return new BasicAttributes(true);
+            }
+            if ("hashCode".equals(method.getName())) {
+                return System.identityHashCode(proxy);
+            }
+            if ("equals".equals(method.getName())) {
+                return proxy == args[0];
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/*
+   Copyright 2015 codecentric AG
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package de.codecentric.elasticsearch.plugin.kerberosrealm.realm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Hashtable;
+import java.util.List;
+
+import javax.naming.CommunicationException;
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingException;
+import javax.naming.ldap.LdapContext;
+
+import org.elasticsearch.ElasticsearchTimeoutException;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.junit.Test;
+
+public class LDAPEndpointRouterTests {
+
+    private static final Object OK = new Object();
+
+    private final ESLogger logger = Loggers.getLogger(getClass());
+
+    @Test
+    public void testUnreachableEndpointIsMarkedDownAndSkipped() throws Exception {
+        final ScriptedPool first = new ScriptedPool(new CommunicationException("connection refused"));
+        final ScriptedPool second = new ScriptedPool(OK, OK);
+        final LDAPEndpointRouter router = router(first, second);
+        try {
+            router.execute(NOOP);
+            assertTrue(router.isDown(0));
+            assertFalse(router.isDown(1));
+
+            router.execute(NOOP);
+            assertEquals(1, first.calls);
+            assertEquals(2, second.calls);
+        } finally {
+            router.shutdown();
+        }
+    }
+
+    @Test
+    public void testExhaustedPoolFailsOverWithoutMarkingDown() throws Exception {
+        final ScriptedPool first = new ScriptedPool(new ElasticsearchTimeoutException("No LDAP connection available"), OK);
+        final ScriptedPool second = new ScriptedPool(OK);
+        final LDAPEndpointRouter router = router(first, second);
+        try {
+            router.execute(NOOP);
+            assertEquals(1, second.calls);
+            assertFalse(router.isDown(0));
+
+            // still the preferred endpoint once it has a free connection again
+            router.execute(NOOP);
+            assertEquals(2, first.calls);
+            assertEquals(1, second.calls);
+        } finally {
+            router.shutdown();
+        }
+    }
+
+    @Test
+    public void testServerErrorIsNotRetried() throws Exception {
+        final ScriptedPool first = new ScriptedPool(new NameNotFoundException("no such object"));
+        final ScriptedPool second = new ScriptedPool(OK);
+        final LDAPEndpointRouter router = router(first, second);
+        try {
+            router.execute(NOOP);
+            fail("server error swallowed");
+        } catch (final NameNotFoundException e) {
+            assertEquals(0, second.calls);
+            assertFalse(router.isDown(0));
+        } finally {
+            router.shutdown();
+        }
+    }
+
+    @Test
+    public void testDownEndpointsAreStillTriedWhenAllAreDown() throws Exception {
+        final ScriptedPool first = new ScriptedPool(new CommunicationException("down"), OK);
+        final ScriptedPool second = new ScriptedPool(new CommunicationException("down"));
+        final LDAPEndpointRouter router = router(first, second);
+        try {
+            try {
+                router.execute(NOOP);
+                fail("failure swallowed");
+            } catch (final CommunicationException e) {
+                assertTrue(router.isDown(0));
+                assertTrue(router.isDown(1));
+            }
+            router.execute(NOOP);
+            assertEquals(2, first.calls);
+        } finally {
+            router.shutdown();
+        }
+    }
+
+    @Test
+    public void testProbeMarksUpAndDown() throws Exception {
+        final ScriptedPool first = new ScriptedPool(new CommunicationException("down"), OK,
+                new ElasticsearchTimeoutException("No LDAP connection available"), new NameNotFoundException("no root DSE"));
+        final ScriptedPool second = new ScriptedPool(OK, OK, OK, OK);
+        final LDAPEndpointRouter router = router(first, second);
+        try {
+            router.probeAll();
+            assertTrue(router.isDown(0));
+            router.probeAll();
+            assertFalse(router.isDown(0));
+
+            // neither a busy pool nor an answer of the server means the endpoint is down
+            router.probeAll();
+            assertFalse(router.isDown(0));
+            router.probeAll();
+            assertFalse(router.isDown(0));
+            assertFalse(router.isDown(1));
+        } finally {
+            router.shutdown();
+        }
+    }
+
+    @Test
+    public void testPreferredEndpointIsUsedWhileUp() throws Exception {
+        final ScriptedPool first = new ScriptedPool(OK);
+        final ScriptedPool second = new ScriptedPool(OK, new CommunicationException("down"));
+        final LDAPEndpointRouter router = router(first, second);
+        try {
+            router.execute("ldap://dc2", NOOP);
+            assertEquals(0, first.calls);
+            assertEquals(1, second.calls);
+
+            // falls back to the others once it is unreachable
+            router.execute("ldap://dc2", NOOP);
+            assertEquals(1, first.calls);
+            assertTrue(router.isDown(1));
+        } finally {
+            router.shutdown();
+        }
+    }
+
+    @Test
+    public void testReadTimeoutIsDetected() {
+        final NamingException readTimeout = new NamingException("LDAP response read timed out, timeout used: 1000 ms.");
+        assertTrue(LDAPConnectionPool.isTimeout(readTimeout, 1000, 1000));
+        assertFalse(LDAPConnectionPool.isTimeout(readTimeout, 10, 1000));
+        assertFalse(LDAPConnectionPool.isTimeout(readTimeout, 1000, 0));
+        assertFalse(LDAPConnectionPool.isTimeout(new NameNotFoundException(), 1000, 1000));
+
+        final CommunicationException connectTimeout = new CommunicationException("connect timed out");
+        connectTimeout.setRootCause(new SocketTimeoutException());
+        assertTrue(LDAPConnectionPool.isTimeout(connectTimeout, 0, 0));
+    }
+
+    private LDAPEndpointRouter router(final ScriptedPool... pools) {
+        final List<LDAPConnectionPool> list = Arrays.<LDAPConnectionPool>asList(pools);
+        final List<String> urls = Arrays.asList("ldap://dc1", "ldap://dc2", "ldap://dc3").subList(0, pools.length);
+        // the prober is driven by the tests
+        return new LDAPEndpointRouter(urls, list, 3600, "test", logger);
+    }
+
+    private static final LDAPConnectionPool.Operation<Void> NOOP = new LDAPConnectionPool.Operation<Void>() {
+        @Override
+        public Void run(final LdapContext context) {
+            return null;
+        }
+    };
+
+    /**
+     * Answers each operation with the next scripted outcome instead of talking to a server.
+     */
+    private final class ScriptedPool extends LDAPConnectionPool {
+        private final Deque<Object> outcomes;
+        int calls;
+
+        ScriptedPool(final Object... outcomes) {
+            super(new Hashtable<String, Object>(), 0, 1, 3600, 1, 3600, "test", logger);
+            this.outcomes = new ArrayDeque<>(Arrays.asList(outcomes));
+        }
+
+        @Override
+        public <T> T execute(final Operation<T> operation) throws NamingException {
+            calls++;
+            final Object outcome = outcomes.poll();
+            if (outcome instanceof NamingException) {
+                throw (NamingException) outcome;
+            }
+            if (outcome instanceof RuntimeException) {
+                throw (RuntimeException) outcome;
+            }
+            if (outcome == null) {
+                throw new AssertionError("unexpected LDAP operation");
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/*
+   Copyright 2015 codecentric AG
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+   Author: Hendrik Saly <hendrik.saly@codecentric.de>
+ */
+package de.codecentric.elasticsearch.plugin.kerberosrealm.realm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.naming.CommunicationException;
+import javax.naming.NamingException;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Checks {@link LDAPGroupTraverser} against following every path of a group hierarchy, which is what the former
+ * traverser did, and compares the number of member group queries.
+ */
+public class LDAPGroupTraverserTests {
+
+    private final ESLogger logger = Loggers.getLogger(getClass());
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testDiamondIsQueriedOnce() throws Exception {
+        // a contains b and c, both contain d, which contains e
+        final Hierarchy hierarchy = new Hierarchy();
+        hierarchy.nest("a", "b", "c");
+        hierarchy.nest("b", "d");
+        hierarchy.nest("c", "d");
+        hierarchy.nest("d", "e");
+
+        final Set<String> groups = new LDAPGroupTraverser(hierarchy, executor, 15, logger).traverse("a");
+        assertEquals(new HashSet<>(Arrays.asList("b", "c", "d", "e")), groups);
+        assertEquals(5, hierarchy.queries.get());
+
+        final Hierarchy reference = hierarchy.copy();
+        assertEquals(groups, everyPath(reference, "a", 15));
+        assertEquals(7, reference.queries.get());
+    }
+
+    @Test
+    public void testCycleEnds() throws Exception {
+        final Hierarchy hierarchy = new Hierarchy();
+        hierarchy.nest("a", "b");
+        hierarchy.nest("b", "c");
+        hierarchy.nest("c", "a");
+
+        final Set<String> groups = new LDAPGroupTraverser(hierarchy, executor, 15, logger).traverse("a");
+        assertEquals(new HashSet<>(Arrays.asList("a", "b", "c")), groups);
+        assertEquals(3, hierarchy.queries.get());
+
+        final Hierarchy reference = hierarchy.copy();
+        assertEquals(groups, everyPath(reference, "a", 15));
+        assertEquals(15, reference.queries.get());
+    }
+
+    @Test
+    public void testMaxDepth() throws Exception {
+        final Hierarchy hierarchy = new Hierarchy();
+        hierarchy.nest("a", "b");
+        hierarchy.nest("b", "c");
+        hierarchy.nest("c", "d");
+        hierarchy.nest("d", "e");
+
+        assertEquals(new HashSet<>(Arrays.asList("b", "c")), new LDAPGroupTraverser(hierarchy, executor, 2, logger).traverse("a"));
+        assertEquals(2, hierarchy.queries.get());
+        assertEquals(Collections.<String>emptySet(), new LDAPGroupTraverser(hierarchy, executor, 0, logger).traverse("a"));
+    }
+
+    @Test
+    public void testShorterPathFoundLater() throws Exception {
+        // e is within two levels only over the short path a -> d -> e
+        final Hierarchy hierarchy = new Hierarchy();
+        hierarchy.nest("a", "b", "d");
+        hierarchy.nest("b", "c");
+        hierarchy.nest("c", "d");
+        hierarchy.nest("d", "e");
+
+        for (int maxDepth = 1; maxDepth <= 4; maxDepth++) {
+            assertEquals(everyPath(hierarchy.copy(), "a", maxDepth),
+                    new LDAPGroupTraverser(hierarchy.copy(), executor, maxDepth, logger).traverse("a"));
+        }
+    }
+
+    @Test
+    public void testFailurePartWayIsThrown() throws Exception {
+        // b and its member groups are found, but the member groups of c cannot be read
+        final Hierarchy hierarchy = new Hierarchy();
+        hierarchy.nest("a", "b", "c");
+        hierarchy.nest("b", "d");
+        hierarchy.nest("c", "e");
+        hierarchy.failure = new CommunicationException("connection reset");
+        hierarchy.failing.add("c");
+
+        try {
+            new LDAPGroupTraverser(hierarchy, executor, 15, logger).traverse("a");
+            fail("incomplete nested groups returned");
+        } catch (final NamingException e) {
+            assertSame(hierarchy.failure, e);
+        }
+    }
+
+    @Test
+    public void testRandomHierarchiesMatchEveryPath() throws Exception {
+        final Random random = new Random(42);
+        long queries = 0;
+        long referenceQueries = 0;
+        for (int round = 0; round < 50; round++) {
+            final Hierarchy hierarchy = new Hierarchy();
+            final int size = 5 + random.nextInt(10);
+            for (int i = 0; i < size * 2; i++) {
+                hierarchy.nest("g" + random.nextInt(size), "g" + random.nextInt(size));
+            }
+            final int maxDepth = 1 + random.nextInt(5);
+
+            final Hierarchy reference = hierarchy.copy();
+            assertEquals(everyPath(reference, "g0", maxDepth), new LDAPGroupTraverser(hierarchy, executor, maxDepth, logger).traverse("g0"));
+            assertTrue(hierarchy.queries.get() <= reference.queries.get());
+            queries += hierarchy.queries.get();
+            referenceQueries += reference.queries.get();
+        }
+        logger.info("{} member group queries instead of {}", queries, referenceQueries);
+        assertTrue(queries < referenceQueries);
+    }
+
+    /**
+     * Follows every path up to maxDepth levels without remembering visited groups.
+     */
+    private static Set<String> everyPath(Hierarchy hierarchy, String group, int maxDepth) throws NamingException {
+        final Set<String> groups = new HashSet<>();
+        everyPath(hierarchy, group, 1, maxDepth, groups);
+        return groups;
+    }
+
+    private static void everyPath(Hierarchy hierarchy, String group, int depth, int maxDepth, Set<String> groups)
+            throws NamingException {
+        if (depth > maxDepth) {
+            return;
+        }
+        for (String member : hierarchy.getMemberGroups(group)) {
+            groups.add(member);
+            everyPath(hierarchy, member, depth + 1, maxDepth, groups);
+        }
+    }
+
+    private static final class Hierarchy implements LDAPGroupTraverser.MemberGroupSource {
+        final Map<String, List<String>> members = new HashMap<>();
+        final AtomicInteger queries = new AtomicInteger();
+        final Set<String> failing = new HashSet<>();
+        NamingException failure;
+
+        void nest(String group, String... memberGroups) {
+            if (!members.containsKey(group)) {
+                members.put(group, new ArrayList<String>());
+            }
+            for (String member : memberGroups) {
+                if (!members.get(group).contains(member)) {
+                    members.get(group).add(member);
+                }
+            }
+        }
+
+        Hierarchy copy() {
+            final Hierarchy copy = new Hierarchy();
+            copy.members.putAll(members);
+            return copy;
+        }
+
+        @Override
+        public List<String> getMemberGroups(String groupDn) throws NamingException {
+            queries.incrementAndGet();
+            if (failing.contains(groupDn)) {
+                throw failure;
+            }
+            final List<String> groups = members.get(groupDn);
+            return groups == null ? Collections.<String>emptyList() : groups;
+        }
+    }
+}
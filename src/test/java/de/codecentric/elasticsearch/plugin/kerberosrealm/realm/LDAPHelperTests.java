@@ -0,0 +1,261 @@
+/*
+   Copyright 2015 codecentric AG
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package de.codecentric.elasticsearch.plugin.kerberosrealm.realm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.naming.CommunicationException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.PagedResultsResponseControl;
+
+import org.junit.Test;
+
+/**
+ * Checks the RFC 4515 escaping of the DNs put into the role mapping and nested group filters, and the paged
+ * searches against a directory which serves pages of DNs.
+ */
+public class LDAPHelperTests {
+
+    @Test
+    public void testEscapeFilterValue() {
+        assertEquals("CN=Admins,DC=example,DC=com", LDAPHelper.escapeFilterValue("CN=Admins,DC=example,DC=com"));
+        assertEquals("CN=\\2a", LDAPHelper.escapeFilterValue("CN=*"));
+        assertEquals("CN=Ops \\28EU\\29", LDAPHelper.escapeFilterValue("CN=Ops (EU)"));
+        // an escaped comma in the DN keeps its backslash escaped, the filter does not end early
+        assertEquals("CN=Doe\\5c, John", LDAPHelper.escapeFilterValue("CN=Doe\\, John"));
+        assertEquals("CN=a\\00b", LDAPHelper.escapeFilterValue("CN=a\0b"));
+        assertEquals("\\5c\\2a\\28\\29\\00", LDAPHelper.escapeFilterValue("\\*()\0"));
+        assertEquals("", LDAPHelper.escapeFilterValue(""));
+    }
+
+    @Test
+    public void testEscapeFilterValueKeepsNonAscii() {
+        // the filter is sent as UTF-8 by JNDI, only the filter syntax characters are escaped
+        assertEquals("CN=M\u00fcller,OU=K\u00f6ln,DC=example,DC=com",
+                LDAPHelper.escapeFilterValue("CN=M\u00fcller,OU=K\u00f6ln,DC=example,DC=com"));
+        assertEquals("CN=\u6771\u4eac \\28\u65e5\u672c\\29", LDAPHelper.escapeFilterValue("CN=\u6771\u4eac (\u65e5\u672c)"));
+        assertEquals("CN=\ud83d\ude00\\2a", LDAPHelper.escapeFilterValue("CN=\ud83d\ude00*"));
+    }
+
+    @Test
+    public void testInChainFilter() {
+        assertEquals("(&(objectClass=group)(memberOf:1.2.840.113556.1.4.1941:=CN=Admins,DC=example,DC=com))",
+                LDAPHelper.inChainFilter("CN=Admins,DC=example,DC=com"));
+        // a DN cannot close the filter or turn the equality into a substring match
+        assertEquals("(&(objectClass=group)(memberOf:1.2.840.113556.1.4.1941:=CN=Ops \\28EU\\29 \\2a,DC=example,DC=com))",
+                LDAPHelper.inChainFilter("CN=Ops (EU) *,DC=example,DC=com"));
+    }
+
+    @Test
+    public void testPagedSearchReadsEveryPage() throws Exception {
+        final PagedDirectory directory = new PagedDirectory(Arrays.asList("CN=1", "CN=2"), Arrays.asList("CN=3", "CN=4"),
+                Arrays.asList("CN=5"));
+        final List<String> found = new ArrayList<>();
+        LDAPHelper.pagedSearch(directory.context(), "DC=example,DC=com", "(objectClass=group)", null, 2, collect(found, 10));
+
+        assertEquals(Arrays.asList("CN=1", "CN=2", "CN=3", "CN=4", "CN=5"), found);
+        assertEquals(Arrays.asList(2, 2, 2), directory.requestedSizes);
+        // the cookie of every response is sent with the request for the next page
+        assertNull(directory.requestedCookies.get(0));
+        assertArrayEquals(new byte[] { 1 }, directory.requestedCookies.get(1));
+        assertArrayEquals(new byte[] { 2 }, directory.requestedCookies.get(2));
+        // the connection goes back to the pool without the paging control
+        assertTrue(directory.controlsReset);
+    }
+
+    @Test
+    public void testStoppedSearchIsReleased() throws Exception {
+        final PagedDirectory directory = new PagedDirectory(Arrays.asList("CN=1", "CN=2"), Arrays.asList("CN=3", "CN=4"),
+                Arrays.asList("CN=5"));
+        final List<String> found = new ArrayList<>();
+        LDAPHelper.pagedSearch(directory.context(), "DC=example,DC=com", "(objectClass=group)", null, 2, collect(found, 3));
+
+        // the remaining pages are never read, a page size of 0 abandons the search on the server
+        assertEquals(Arrays.asList("CN=1", "CN=2", "CN=3"), found);
+        assertEquals(Arrays.asList(2, 2, 0), directory.requestedSizes);
+        assertArrayEquals(new byte[] { 2 }, directory.requestedCookies.get(2));
+        assertTrue(directory.controlsReset);
+    }
+
+    @Test
+    public void testFailedSearchResetsControls() throws Exception {
+        final PagedDirectory directory = new PagedDirectory(Arrays.asList("CN=1", "CN=2"), Arrays.asList("CN=3"));
+        directory.failingPage = 1;
+        final List<String> found = new ArrayList<>();
+        try {
+            LDAPHelper.pagedSearch(directory.context(), "DC=example,DC=com", "(objectClass=group)", null, 2, collect(found, 10));
+            fail("the second page could not be read");
+        } catch (CommunicationException e) {
+            // expected
+        }
+        assertEquals(Arrays.asList("CN=1", "CN=2"), found);
+        assertTrue(directory.controlsReset);
+    }
+
+    @Test
+    public void testServerWithoutPaging() throws Exception {
+        // no response control, everything came with the first page
+        final PagedDirectory directory = new PagedDirectory(Arrays.asList("CN=1", "CN=2", "CN=3"));
+        directory.paging = false;
+        final List<String> found = new ArrayList<>();
+        LDAPHelper.pagedSearch(directory.context(), "DC=example,DC=com", "(objectClass=group)", null, 2, collect(found, 10));
+        assertEquals(Arrays.asList("CN=1", "CN=2", "CN=3"), found);
+        assertEquals(1, directory.requestedSizes.size());
+    }
+
+    private static LDAPHelper.SearchResultHandler collect(final List<String> found, final int limit) {
+        return new LDAPHelper.SearchResultHandler() {
+            @Override
+            public boolean handle(SearchResult result) {
+                found.add(result.getNameInNamespace());
+                return found.size() < limit;
+            }
+        };
+    }
+
+    /**
+     * Serves the given pages of DNs, page i + 1 is requested with the cookie {i + 1}.
+     */
+    private static final class PagedDirectory implements InvocationHandler {
+        final List<List<String>> pages;
+        final List<Integer> requestedSizes = new ArrayList<>();
+        final List<byte[]> requestedCookies = new ArrayList<>();
+        boolean paging = true;
+        int failingPage = -1;
+        boolean controlsReset;
+        private byte[] responseCookie;
+
+        @SafeVarargs
+        PagedDirectory(List<String>... pages) {
+            this.pages = Arrays.asList(pages);
+        }
+
+        LdapContext context() {
+            return (LdapContext) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { LdapContext.class }, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+            case "setRequestControls":
+                final Control[] controls = (Control[]) args[0];
+                controlsReset = controls == null;
+                if (controls != null) {
+                    decodeRequest(controls[0].getEncodedValue());
+                }
+                return null;
+            case "search":
+                return page();
+            case "getResponseControls":
+                if (!paging) {
+                    return null;
+                }
+                return new Control[] { new PagedResultsResponseControl("1.2.840.113556.1.4.319", false, encodeResponse(responseCookie)) };
+            default:
+                return null;
+            }
+        }
+
+        private NamingEnumeration<SearchResult> page() throws NamingException {
+            final byte[] cookie = requestedCookies.get(requestedCookies.size() - 1);
+            final int index = cookie == null ? 0 : cookie[0];
+            if (requestedSizes.get(requestedSizes.size() - 1) == 0) {
+                return enumeration(Collections.<String>emptyList());
+            }
+            if (index == failingPage) {
+                throw new CommunicationException("connection reset");
+            }
+            responseCookie = index + 1 < pages.size() ? new byte[] { (byte) (index + 1) } : new byte[0];
+            return enumeration(pages.get(index));
+        }
+
+        private void decodeRequest(byte[] value) {
+            // SEQUENCE { INTEGER size, OCTET STRING cookie }
+            int pos = 2;
+            final int sizeLength = value[pos + 1];
+            int size = 0;
+            for (int i = 0; i < sizeLength; i++) {
+                size = (size << 8) | (value[pos + 2 + i] & 0xFF);
+            }
+            pos += 2 + sizeLength;
+            final int cookieLength = value[pos + 1];
+            requestedSizes.add(size);
+            requestedCookies.add(cookieLength == 0 ? null : Arrays.copyOfRange(value, pos + 2, pos + 2 + cookieLength));
+        }
+
+        private static byte[] encodeResponse(byte[] cookie) {
+            final byte[] value = new byte[7 + cookie.length];
+            value[0] = 0x30;
+            value[1] = (byte) (5 + cookie.length);
+            value[2] = 0x02;
+            value[3] = 1;
+            value[4] = 0;
+            value[5] = 0x04;
+            value[6] = (byte) cookie.length;
+            System.arraycopy(cookie, 0, value, 7, cookie.length);
+            return value;
+        }
+
+        private static NamingEnumeration<SearchResult> enumeration(List<String> dns) {
+            final Iterator<String> it = dns.iterator();
+            return new NamingEnumeration<SearchResult>() {
+                @Override
+                public SearchResult next() {
+                    final SearchResult result = new SearchResult(null, null, new BasicAttributes(true));
+                    result.setNameInNamespace(it.next());
+                    return result;
+                }
+
+                @Override
+                public boolean hasMore() {
+                    return it.hasNext();
+                }
+
+                @Override
+                public void close() {
+                }
+
+                @Override
+                public boolean hasMoreElements() {
+                    return hasMore();
+                }
+
+                @Override
+                public SearchResult nextElement() {
+                    return next();
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+   Copyright 2015 codecentric AG
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package de.codecentric.elasticsearch.plugin.kerberosrealm.realm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import javax.naming.CommunicationException;
+import javax.naming.NamingException;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.junit.Test;
+
+/**
+ * Checks {@link LDAPLevelBatchedResolver} against a group hierarchy which answers the batched member group queries.
+ */
+public class LDAPLevelBatchedResolverTests {
+
+    private final ESLogger logger = Loggers.getLogger(getClass());
+
+    @Test
+    public void testLevelsAreBatched() throws Exception {
+        // a contains b, c and d, which contain e, f and g
+        final Hierarchy hierarchy = new Hierarchy();
+        hierarchy.nest("a", "b", "c", "d");
+        hierarchy.nest("b", "e");
+        hierarchy.nest("c", "f");
+        hierarchy.nest("d", "g");
+
+        final String[] groups = new LDAPLevelBatchedResolver(hierarchy, 2, 15, logger).resolve("a");
+        assertEquals(Arrays.asList("b", "c", "d", "e", "f", "g"), Arrays.asList(groups));
+        // one query for a, two for b, c and d, two for e, f and g
+        assertEquals(5, hierarchy.queries.size());
+        assertEquals(Arrays.asList("b", "c"), hierarchy.queries.get(1));
+    }
+
+    @Test
+    public void testMaxDepth() throws Exception {
+        final Hierarchy hierarchy = new Hierarchy();
+        hierarchy.nest("a", "b");
+        hierarchy.nest("b", "c");
+        hierarchy.nest("c", "d");
+
+        assertEquals(Arrays.asList("b", "c"), Arrays.asList(new LDAPLevelBatchedResolver(hierarchy, 10, 2, logger).resolve("a")));
+        assertEquals(0, new LDAPLevelBatchedResolver(hierarchy, 10, 0, logger).resolve("a").length);
+    }
+
+    @Test
+    public void testCycleEnds() throws Exception {
+        // a contains b, which contains c, which contains a and b again
+        final Hierarchy hierarchy = new Hierarchy();
+        hierarchy.nest("a", "b");
+        hierarchy.nest("b", "c");
+        hierarchy.nest("c", "a", "b");
+
+        final String[] groups = new LDAPLevelBatchedResolver(hierarchy, 10, 15, logger).resolve("a");
+        // a is nested in c, so it is part of the result like with the traverser
+        assertEquals(new HashSet<>(Arrays.asList("a", "b", "c")), new HashSet<>(Arrays.asList(groups)));
+        assertEquals(3, groups.length);
+        assertEquals(3, hierarchy.queries.size());
+    }
+
+    @Test
+    public void testDuplicatesDifferingInCaseAreExpandedOnce() throws Exception {
+        // the directory returns a group with the case of the member attribute it was found over
+        final Hierarchy hierarchy = new Hierarchy();
+        hierarchy.nest("CN=A", "CN=B", "CN=C");
+        hierarchy.nest("CN=B", "cn=d");
+        hierarchy.nest("CN=C", "CN=D", "cn=a");
+        hierarchy.nest("CN=D", "CN=E");
+
+        final String[] groups = new LDAPLevelBatchedResolver(hierarchy, 10, 15, logger).resolve("CN=A");
+        assertEquals(Arrays.asList("CN=B", "CN=C", "cn=d", "cn=a", "CN=E"), Arrays.asList(groups));
+        // CN=A, then CN=B and CN=C, then cn=d only, then CN=E
+        assertEquals(4, hierarchy.queries.size());
+        assertEquals(Arrays.asList("cn=d"), hierarchy.queries.get(2));
+    }
+
+    @Test
+    public void testFailedLevelFails() throws Exception {
+        final Hierarchy hierarchy = new Hierarchy();
+        hierarchy.nest("a", "b", "c", "d");
+        hierarchy.nest("b", "e");
+        hierarchy.nest("d", "f");
+        // the second batch of the second level
+        hierarchy.failing.add("d");
+
+        try {
+            new LDAPLevelBatchedResolver(hierarchy, 2, 15, logger).resolve("a");
+            fail("the groups below d would be missing");
+        } catch (NamingException e) {
+            assertSame(hierarchy.failure, e);
+        }
+        // nothing is queried after the failure
+        assertEquals(3, hierarchy.queries.size());
+    }
+
+    /**
+     * Answers a batch with the member groups of all groups of the batch, fails a batch which contains a failing
+     * group. Groups are looked up case-insensitively like in the directory.
+     */
+    static final class Hierarchy implements LDAPLevelBatchedResolver.BatchMemberGroupSource {
+        final Map<String, List<String>> members = new HashMap<>();
+        final Set<String> failing = new HashSet<>();
+        final List<List<String>> queries = new ArrayList<>();
+        final NamingException failure = new CommunicationException("connection reset");
+
+        void nest(String group, String... memberGroups) {
+            members.put(group.toLowerCase(Locale.ROOT), Arrays.asList(memberGroups));
+        }
+
+        @Override
+        public List<String> getMemberGroupsOfAny(List<String> groupDns) throws NamingException {
+            queries.add(new ArrayList<>(groupDns));
+            final List<String> result = new ArrayList<>();
+            for (String dn : groupDns) {
+                if (failing.contains(dn)) {
+                    throw failure;
+                }
+                final List<String> memberGroups = members.get(dn.toLowerCase(Locale.ROOT));
+                if (memberGroups != null) {
+                    result.addAll(memberGroups);
+                }
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+   Copyright 2015 codecentric AG
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package de.codecentric.elasticsearch.plugin.kerberosrealm.realm;
+
+import static org.junit.Assert.fail;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import de.codecentric.elasticsearch.plugin.kerberosrealm.realm.NegativeAuthenticationCache.NegativeCacheHitException;
+
+public class NegativeAuthenticationCacheTests {
+
+    @Test
+    public void testFailedTokenIsRejectedFromSameHost() {
+        final NegativeAuthenticationCache cache = new NegativeAuthenticationCache(100, 60);
+        final TokenFingerprint token = token("stale");
+        cache.checkToken(token, "10.0.0.1");
+
+        cache.tokenFailed(token, "10.0.0.1");
+        assertHit(cache, token("stale"), "10.0.0.1");
+
+        // other hosts and other tokens are not affected
+        cache.checkToken(token, "10.0.0.2");
+        cache.checkToken(token("fresh"), "10.0.0.1");
+    }
+
+    @Test
+    public void testUnknownHostIsKeyedToo() {
+        final NegativeAuthenticationCache cache = new NegativeAuthenticationCache(100, 60);
+        cache.tokenFailed(token("stale"), null);
+        assertHit(cache, token("stale"), null);
+        cache.checkToken(token("stale"), "10.0.0.1");
+    }
+
+    @Test
+    public void testFailureIsForgottenAfterTtl() {
+        final NegativeAuthenticationCache cache = new NegativeAuthenticationCache(100, 0);
+        cache.tokenFailed(token("stale"), "10.0.0.1");
+        cache.checkToken(token("stale"), "10.0.0.1");
+    }
+
+    private static void assertHit(final NegativeAuthenticationCache cache, final TokenFingerprint token, final String host) {
+        try {
+            cache.checkToken(token, host);
+            fail("failed token accepted");
+        } catch (final NegativeCacheHitException e) {
+            // expected
+        }
+    }
+
+    private static TokenFingerprint token(final String value) {
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        return TokenFingerprint.of(bytes, 0, bytes.length);
+    }
+}
@@ -0,0 +1,383 @@
+/*
+   Copyright 2015 codecentric AG
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package de.codecentric.elasticsearch.plugin.kerberosrealm.realm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.CommunicationException;
+import javax.naming.NamingException;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.ldap.LdapName;
+
+import de.codecentric.elasticsearch.plugin.kerberosrealm.support.Sid;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.junit.Test;
+
+/**
+ * Resolves role_mapping.yml against a scripted directory instead of a domain controller.
+ */
+public class RoleMapperTests {
+
+    private static final String ADMINS = "CN=Admins,DC=example,DC=com";
+    private static final String OPS = "CN=Ops,DC=example,DC=com";
+    private static final String READERS = "CN=Readers,DC=example,DC=com";
+    private static final String SHARED = "CN=Shared,DC=example,DC=com";
+    private static final String ALICE = "CN=Alice,DC=example,DC=com";
+
+    private final ESLogger logger = Loggers.getLogger(getClass());
+
+    @Test
+    public void testFailedExpansionKeepsDirectMembersRoles() throws Exception {
+        final Path dir = Files.createTempDirectory("role-mapper");
+        try {
+            final ScriptedDirectory directory = directory();
+            final RoleMapper roleMapper = new RoleMapper(roleMapping(dir), directory, true, 5, false, null, 0.5, 0, 2, logger);
+            roleMapper.LoadRoles();
+            assertEquals(set("admin"), roles(roleMapper, OPS));
+
+            // the reload is published, the group keeps its direct members and its former nested groups
+            directory.failing.add(ADMINS);
+            roleMapper.LoadRoles();
+            assertEquals(2, roleMapper.snapshot().generation());
+            assertEquals(set("admin"), roles(roleMapper, ADMINS));
+            assertEquals(set("admin"), roles(roleMapper, OPS));
+            assertEquals(set("reader"), roles(roleMapper, SHARED));
+        } finally {
+            delete(dir);
+        }
+    }
+
+    @Test
+    public void testFailedExpansionCountsAgainstSuccessRatio() throws Exception {
+        final Path dir = Files.createTempDirectory("role-mapper");
+        try {
+            final ScriptedDirectory directory = directory();
+            final RoleMapper roleMapper = new RoleMapper(roleMapping(dir), directory, true, 5, false, null, 0.9, 0, 2, logger);
+            roleMapper.LoadRoles();
+
+            // 2 of 3 entries, the last good mapping stays
+            directory.failing.add(ADMINS);
+            roleMapper.LoadRoles();
+            assertEquals(1, roleMapper.snapshot().generation());
+        } finally {
+            delete(dir);
+        }
+    }
+
+    @Test
+    public void testFailedExpansionOnFirstLoadKeepsDirectMembersRoles() throws Exception {
+        final Path dir = Files.createTempDirectory("role-mapper");
+        try {
+            final ScriptedDirectory directory = directory();
+            directory.failing.add(ADMINS);
+            final RoleMapper roleMapper = new RoleMapper(roleMapping(dir), directory, true, 5, false, null, 0.5, 0, 2, logger);
+            roleMapper.LoadRoles();
+            assertEquals(set("admin"), roles(roleMapper, ADMINS));
+            assertEquals(set(), roles(roleMapper, OPS));
+            assertEquals(set("reader"), roleSet(roleMapper.snapshot().resolveRoles("alice", null, null)));
+        } finally {
+            delete(dir);
+        }
+    }
+
+    @Test
+    public void testFailedExpansionIsRetriedBySync() throws Exception {
+        final Path dir = Files.createTempDirectory("role-mapper");
+        try {
+            final ScriptedDirectory directory = directory();
+            directory.failing.add(ADMINS);
+            final Path stateFile = dir.resolve("sync.json");
+            final RoleMapper roleMapper = new RoleMapper(roleMapping(dir), directory, true, 5, true, stateFile, 0.5, 0, 2, logger);
+            roleMapper.LoadRoles();
+            assertEquals(set(), roles(roleMapper, OPS));
+            // a restart must not take the incomplete mapping for a complete one
+            assertFalse(Files.exists(stateFile));
+
+            directory.failing.clear();
+            roleMapper.syncRoles();
+            assertEquals(set("admin"), roles(roleMapper, OPS));
+            assertTrue(Files.exists(stateFile));
+        } finally {
+            delete(dir);
+        }
+    }
+
+    @Test
+    public void testIncompleteLoadIsNotPersisted() throws Exception {
+        final Path dir = Files.createTempDirectory("role-mapper");
+        try {
+            final ScriptedDirectory directory = directory();
+            directory.objects.remove(new LdapName(ALICE));
+            final Path stateFile = dir.resolve("sync.json");
+            final String roleMapping = roleMapping(dir);
+            new RoleMapper(roleMapping, directory, true, 5, true, stateFile, 0.5, 0, 2, logger).LoadRoles();
+            assertFalse(Files.exists(stateFile));
+
+            // nothing to restore after a restart, the whole mapping is resolved again
+            directory.user(ALICE, "alice@EXAMPLE.COM");
+            final RoleMapper restarted = new RoleMapper(roleMapping, directory, true, 5, true, stateFile, 0.5, 0, 2, logger);
+            restarted.syncRoles();
+            assertEquals(set("reader"), roleSet(restarted.snapshot().resolveRoles("alice", null, null)));
+            assertTrue(Files.exists(stateFile));
+        } finally {
+            delete(dir);
+        }
+    }
+
+    @Test
+    public void testMissingEntryIsResolvedByNextSync() throws Exception {
+        final Path dir = Files.createTempDirectory("role-mapper");
+        try {
+            final ScriptedDirectory directory = directory();
+            directory.objects.remove(new LdapName(ALICE));
+            final RoleMapper roleMapper = new RoleMapper(roleMapping(dir), directory, true, 5, true, dir.resolve("sync.json"), 0.5, 0, 2,
+                    logger);
+            roleMapper.LoadRoles();
+            assertEquals(set(), roleSet(roleMapper.snapshot().resolveRoles("alice", null, null)));
+
+            // created later, no group of the mapping changed
+            directory.user(ALICE, "alice@EXAMPLE.COM");
+            roleMapper.syncRoles();
+            assertEquals(set("reader"), roleSet(roleMapper.snapshot().resolveRoles("alice", null, null)));
+        } finally {
+            delete(dir);
+        }
+    }
+
+    @Test
+    public void testPeriodicFullSync() throws Exception {
+        final Path dir = Files.createTempDirectory("role-mapper");
+        try {
+            final ScriptedDirectory directory = directory();
+            final String roleMapping = roleMapping(dir);
+            final RoleMapper incremental = new RoleMapper(roleMapping, directory, true, 5, true, null, 0.5, 0, 2, logger);
+            final RoleMapper periodic = new RoleMapper(roleMapping, directory, true, 5, true, null, 0.5, 1, 2, logger);
+            incremental.LoadRoles();
+            periodic.LoadRoles();
+
+            // a change the USNs do not show
+            directory.group(ADMINS, OPS, "CN=Audit,DC=example,DC=com");
+            Thread.sleep(10);
+            incremental.syncRoles();
+            periodic.syncRoles();
+            assertEquals(set(), roles(incremental, "CN=Audit,DC=example,DC=com"));
+            assertEquals(set("admin"), roles(periodic, "CN=Audit,DC=example,DC=com"));
+        } finally {
+            delete(dir);
+        }
+    }
+
+    @Test
+    public void testReloadPublishesNewSnapshot() throws Exception {
+        final Path dir = Files.createTempDirectory("role-mapper");
+        try {
+            final ScriptedDirectory directory = directory();
+            final RoleMapper roleMapper = new RoleMapper(roleMapping(dir), directory, true, 5, false, null, 0.5, 0, 2, logger);
+            roleMapper.LoadRoles();
+            final RoleMappingSnapshot first = roleMapper.snapshot();
+            assertEquals(1, first.generation());
+
+            // readers of the first snapshot see the whole old mapping during and after the reload
+            directory.group(ADMINS, "CN=Audit,DC=example,DC=com");
+            directory.blocked = new CountDownLatch(1);
+            final CountDownLatch resolving = new CountDownLatch(1);
+            directory.resolving = resolving;
+            final Thread reload = new Thread() {
+                @Override
+                public void run() {
+                    roleMapper.LoadRoles();
+                }
+            };
+            reload.start();
+            try {
+                assertTrue(resolving.await(10, TimeUnit.SECONDS));
+                assertSame(first, roleMapper.snapshot());
+                assertEquals(set("admin"), roles(roleMapper, OPS));
+            } finally {
+                directory.blocked.countDown();
+                reload.join(10000);
+            }
+
+            final RoleMappingSnapshot second = roleMapper.snapshot();
+            assertEquals(2, second.generation());
+            assertEquals(set("admin"), roles(roleMapper, "CN=Audit,DC=example,DC=com"));
+            assertEquals(set(), roles(roleMapper, OPS));
+            assertEquals(set("admin"), roleSet(first.resolveRoles("nobody", Arrays.asList(OPS), null)));
+            assertEquals(set(), roleSet(first.resolveRoles("nobody", Arrays.asList("CN=Audit,DC=example,DC=com"), null)));
+        } finally {
+            delete(dir);
+        }
+    }
+
+    @Test
+    public void testTokenGroupsSidsMatchObjectSid() throws Exception {
+        final Path dir = Files.createTempDirectory("role-mapper");
+        try {
+            final ScriptedDirectory directory = directory();
+            final byte[] adminsSid = sid(1105);
+            directory.objects.get(new LdapName(ADMINS)).put("objectSid", adminsSid.clone());
+            final RoleMapper roleMapper = new RoleMapper(roleMapping(dir), directory, true, 5, false, null, 0.5, 0, 2, logger);
+            roleMapper.LoadRoles();
+
+            // tokenGroups values are separate arrays, PAC SIDs regions of the ticket, neither is the objectSid array
+            final byte[] ticket = new byte[adminsSid.length + 16];
+            System.arraycopy(adminsSid, 0, ticket, 7, adminsSid.length);
+            assertEquals(set("admin"), roleSet(roleMapper.snapshot().resolveRoles("nobody", null,
+                    Arrays.asList(Sid.wrap(sid(513)), Sid.wrap(adminsSid.clone())))));
+            assertEquals(set("admin"), roleSet(roleMapper.snapshot().resolveRoles("nobody", null,
+                    Arrays.asList(Sid.wrap(ticket, 7, adminsSid.length)))));
+            // the same domain, another RID
+            assertEquals(set(), roleSet(roleMapper.snapshot().resolveRoles("nobody", null, Arrays.asList(Sid.wrap(sid(1106))))));
+        } finally {
+            delete(dir);
+        }
+    }
+
+    /**
+     * @return the binary SID S-1-5-21-1-2-3-rid
+     */
+    private static byte[] sid(int rid) {
+        return new byte[] { 1, 5, 0, 0, 0, 0, 0, 5, 21, 0, 0, 0, 1, 0, 0, 0, 2, 0, 0, 0, 3, 0, 0, 0, (byte) rid, (byte) (rid >>> 8), 0, 0 };
+    }
+
+    private static ScriptedDirectory directory() throws NamingException {
+        final ScriptedDirectory directory = new ScriptedDirectory();
+        directory.group(ADMINS, OPS);
+        directory.group(READERS, SHARED);
+        directory.user(ALICE, "alice@EXAMPLE.COM");
+        return directory;
+    }
+
+    private static String roleMapping(Path dir) throws IOException {
+        final Path file = dir.resolve("role_mapping.yml");
+        final String yaml = "admin:\n  - \"" + ADMINS + "\"\nreader:\n  - \"" + READERS + "\"\n  - \"" + ALICE + "\"\n";
+        Files.write(file, yaml.getBytes(StandardCharsets.UTF_8));
+        return file.toString();
+    }
+
+    private static Set<String> roles(RoleMapper roleMapper, String group) {
+        return roleSet(roleMapper.snapshot().resolveRoles("nobody", Arrays.asList(group), null));
+    }
+
+    private static Set<String> roleSet(String[] roles) {
+        return new HashSet<>(Arrays.asList(roles));
+    }
+
+    private static Set<String> set(String... values) {
+        return new HashSet<>(Arrays.asList(values));
+    }
+
+    private static void delete(final Path dir) throws IOException {
+        try (java.nio.file.DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+            for (final Path entry : entries) {
+                if (Files.isDirectory(entry)) {
+                    delete(entry);
+                } else {
+                    Files.delete(entry);
+                }
+            }
+        }
+        Files.delete(dir);
+    }
+
+    /**
+     * Answers with the objects and nested groups it was given, the nested groups of the failing groups cannot be
+     * resolved. The domain controller never changes and reports the changed groups it was given.
+     */
+    static final class ScriptedDirectory implements RoleMapper.Directory {
+        final Map<LdapName, Attributes> objects = new HashMap<>();
+        final Map<String, String[]> nested = new HashMap<>();
+        final Set<String> failing = Collections.synchronizedSet(new HashSet<String>());
+        final List<String> changed = new ArrayList<>();
+        long usn = 1;
+        // if set, expanding a group waits for it after counting down resolving
+        volatile CountDownLatch blocked;
+        volatile CountDownLatch resolving;
+
+        void group(String dn, String... nestedGroups) throws NamingException {
+            final Attributes attributes = new BasicAttributes(true);
+            attributes.put("objectClass", "group");
+            objects.put(new LdapName(dn), attributes);
+            nested.put(dn, nestedGroups);
+        }
+
+        void user(String dn, String userPrincipalName) throws NamingException {
+            final Attributes attributes = new BasicAttributes(true);
+            attributes.put("objectClass", "user");
+            attributes.put("userPrincipalName", userPrincipalName);
+            objects.put(new LdapName(dn), attributes);
+        }
+
+        @Override
+        public Map<LdapName, Attributes> getADObjectsAttributes(Collection<String> distinguishedNames) throws NamingException {
+            final Map<LdapName, Attributes> found = new LinkedHashMap<>();
+            for (String dn : distinguishedNames) {
+                final LdapName name = new LdapName(dn);
+                if (objects.containsKey(name)) {
+                    found.put(name, objects.get(name));
+                }
+            }
+            return found;
+        }
+
+        @Override
+        public String[] getNestedGroupsInGroup(String groupDistinguishedName, int maxDepth) throws NamingException {
+            if (failing.contains(groupDistinguishedName)) {
+                throw new CommunicationException("connection reset");
+            }
+            if (blocked != null) {
+                resolving.countDown();
+                try {
+                    blocked.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            final String[] groups = nested.get(groupDistinguishedName);
+            return groups == null ? new String[0] : groups.clone();
+        }
+
+        @Override
+        public LDAPHelper.ChangedGroups getChangedGroups(String ldapUrl, String domainController, long sinceUsn) {
+            final List<String> groups = "dc1".equals(domainController) ? new ArrayList<>(changed) : null;
+            changed.clear();
+            return new LDAPHelper.ChangedGroups("ldap://dc1", "dc1", usn, groups);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+   Copyright 2015 codecentric AG
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package de.codecentric.elasticsearch.plugin.kerberosrealm.realm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+
+import de.codecentric.elasticsearch.plugin.kerberosrealm.support.Sid;
+
+public class RoleMappingSyncStateTests {
+
+    private static final byte[] SID = new byte[] { 1, 2, 0, 0, 0, 0, 0, 5, 21, 0, 0, 0, (byte) 0xe8, 3, 0, 0 };
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        final Path dir = Files.createTempDirectory("sync-state");
+        try {
+            final Path file = dir.resolve("kerberos").resolve("realm_role_mapping_sync.json");
+            state("ldap://dc1:389", "hash").write(file);
+
+            final RoleMappingSyncState read = RoleMappingSyncState.read(file);
+            assertEquals("ldap://dc1:389", read.ldapUrl);
+            assertEquals("CN=NTDS Settings,CN=DC1#aW52b2NhdGlvbg==", read.domainController);
+            assertEquals(4711, read.usn);
+            assertEquals("hash", read.mappingHash);
+            assertEquals(Arrays.asList("admin", "user"), read.users.get("hnelson"));
+            assertEquals(Arrays.asList("CN=Admins,DC=example,DC=com", "CN=Users,DC=example,DC=com"),
+                    Arrays.asList(read.groups.keySet().toArray()));
+
+            final RoleMapper.MappedGroup admins = read.groups.get("CN=Admins,DC=example,DC=com");
+            assertEquals(Sid.wrap(SID), admins.sid);
+            assertEquals(Arrays.asList("admin"), admins.roles);
+            assertArrayEquals(new Object[] { "CN=Nested,DC=example,DC=com" }, admins.nested);
+
+            final RoleMapper.MappedGroup users = read.groups.get("CN=Users,DC=example,DC=com");
+            assertNull(users.sid);
+            assertEquals(0, users.nested.length);
+
+            // the next sync goes to the same domain controller
+            final RoleMappingSyncState next = read.withUsn(4712, RoleMappingSnapshot.create(1, read.users, read.groups));
+            assertEquals("ldap://dc1:389", next.ldapUrl);
+            assertArrayEquals(new Object[] { "CN=Nested,DC=example,DC=com" }, next.groups.get("CN=Admins,DC=example,DC=com").nested);
+
+            // only the position is kept between syncs
+            assertEquals(0, read.position().groups.size());
+            assertEquals(4711, read.position().usn);
+        } finally {
+            delete(dir);
+        }
+    }
+
+    @Test
+    public void testStateWithoutUrlIsRead() throws IOException {
+        final Path dir = Files.createTempDirectory("sync-state");
+        try {
+            final Path file = dir.resolve("state.json");
+            state(null, "hash").write(file);
+            final RoleMappingSyncState read = RoleMappingSyncState.read(file);
+            assertNull(read.ldapUrl);
+            assertEquals(4711, read.usn);
+        } finally {
+            delete(dir);
+        }
+    }
+
+    @Test
+    public void testChangedRoleMappingInvalidatesState() throws IOException {
+        final Path dir = Files.createTempDirectory("sync-state");
+        try {
+            final Path file = dir.resolve("state.json");
+            assertNull(RoleMappingSyncState.read(file, "hash"));
+
+            state("ldap://dc1:389", "hash").write(file);
+            assertNotNull(RoleMappingSyncState.read(file, "hash"));
+            assertNull(RoleMappingSyncState.read(file, "changed"));
+        } finally {
+            delete(dir);
+        }
+    }
+
+    private static RoleMappingSyncState state(final String ldapUrl, final String mappingHash) {
+        final ListMultimap<String, String> users = ArrayListMultimap.create();
+        users.putAll("hnelson", Arrays.asList("admin", "user"));
+        final Map<String, RoleMapper.MappedGroup> groups = new LinkedHashMap<>();
+        groups.put("CN=Admins,DC=example,DC=com", new RoleMapper.MappedGroup("CN=Admins,DC=example,DC=com", Sid.wrap(SID),
+                Arrays.asList("admin"), new String[] { "CN=Nested,DC=example,DC=com" }));
+        groups.put("CN=Users,DC=example,DC=com", new RoleMapper.MappedGroup("CN=Users,DC=example,DC=com", null,
+                Arrays.asList("user"), new String[0]));
+        return new RoleMappingSyncState(ldapUrl, "CN=NTDS Settings,CN=DC1#aW52b2NhdGlvbg==", 4711, mappingHash, users, groups);
+    }
+
+    private static void delete(final Path dir) throws IOException {
+        try (java.nio.file.DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+            for (final Path entry : entries) {
+                if (Files.isDirectory(entry)) {
+                    delete(entry);
+                } else {
+                    Files.delete(entry);
+                }
+            }
+        }
+        Files.delete(dir);
+    }
+}
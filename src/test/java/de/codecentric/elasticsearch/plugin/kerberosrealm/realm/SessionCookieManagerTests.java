@@ -0,0 +1,188 @@
+/*
+   Copyright 2015 codecentric AG
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package de.codecentric.elasticsearch.plugin.kerberosrealm.realm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.xml.bind.DatatypeConverter;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.junit.Test;
+
+import de.codecentric.elasticsearch.plugin.kerberosrealm.support.KrbConstants;
+
+/**
+ * Checks that only unexpired session cookies signed with one of the configured keys and not changed afterwards
+ * are accepted.
+ */
+public class SessionCookieManagerTests {
+
+    private static final String KEY_A = "aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa";
+    private static final String KEY_B = "bbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbb";
+
+    private final ESLogger logger = Loggers.getLogger(getClass());
+
+    @Test
+    public void testIssuedCookieIsAccepted() {
+        final SessionCookieManager manager = new SessionCookieManager(new String[] { KEY_A }, 60, logger);
+        final KerberosAuthenticationToken token = manager.verify(header(manager.issue("hnelson", new String[] { "admin", "user" })));
+        assertNotNull(token);
+        assertEquals("hnelson", token.principal());
+        assertEquals(Arrays.asList("admin", "user"), Arrays.asList(token.roles()));
+    }
+
+    @Test
+    public void testCookieWithoutRolesIsAccepted() {
+        final SessionCookieManager manager = new SessionCookieManager(new String[] { KEY_A }, 60, logger);
+        final KerberosAuthenticationToken token = manager.verify(header(manager.issue("hnelson", new String[0])));
+        assertNotNull(token);
+        assertEquals(0, token.roles().length);
+    }
+
+    @Test
+    public void testCookieIsFoundAmongOtherCookies() {
+        final SessionCookieManager manager = new SessionCookieManager(new String[] { KEY_A }, 60, logger);
+        final String cookie = manager.issue("hnelson", new String[] { "admin" });
+        assertNotNull(manager.verify("a=b; " + KrbConstants.SESSION_COOKIE_NAME + "=" + cookie + "; c=d"));
+        assertNull(manager.verify("a=b; c=d"));
+        assertNull(manager.verify(null));
+    }
+
+    @Test
+    public void testExpiredCookieIsRejected() throws Exception {
+        final SessionCookieManager manager = new SessionCookieManager(new String[] { KEY_A }, 60, logger);
+        final long past = System.currentTimeMillis() - 1000;
+        assertNull(manager.verify(header(sign(KEY_A, encode("hnelson") + "." + past + "." + encode("admin")))));
+
+        final long future = System.currentTimeMillis() + 60000;
+        assertNotNull(manager.verify(header(sign(KEY_A, encode("hnelson") + "." + future + "." + encode("admin")))));
+    }
+
+    @Test
+    public void testZeroTtlExpiresImmediately() {
+        final SessionCookieManager manager = new SessionCookieManager(new String[] { KEY_A }, 0, logger);
+        assertNull(manager.verify(header(manager.issue("hnelson", new String[] { "admin" }))));
+    }
+
+    @Test
+    public void testTamperedPrincipalIsRejected() {
+        final SessionCookieManager manager = new SessionCookieManager(new String[] { KEY_A }, 60, logger);
+        final String cookie = manager.issue("hnelson", new String[] { "user" });
+        final String tampered = encode("admin") + cookie.substring(cookie.indexOf('.'));
+        assertNull(manager.verify(header(tampered)));
+    }
+
+    @Test
+    public void testTamperedRolesAreRejected() {
+        final SessionCookieManager manager = new SessionCookieManager(new String[] { KEY_A }, 60, logger);
+        final String[] parts = manager.issue("hnelson", new String[] { "user" }).split("\\.");
+        assertEquals(4, parts.length);
+        assertNull(manager.verify(header(parts[0] + "." + parts[1] + "." + encode("user,admin") + "." + parts[3])));
+    }
+
+    @Test
+    public void testTamperedExpiryIsRejected() {
+        final SessionCookieManager manager = new SessionCookieManager(new String[] { KEY_A }, 60, logger);
+        final String[] parts = manager.issue("hnelson", new String[] { "user" }).split("\\.");
+        final long later = Long.parseLong(parts[1]) + 24 * 60 * 60 * 1000L;
+        assertNull(manager.verify(header(parts[0] + "." + later + "." + parts[2] + "." + parts[3])));
+    }
+
+    @Test
+    public void testTamperedSignatureIsRejected() throws Exception {
+        final SessionCookieManager manager = new SessionCookieManager(new String[] { KEY_A }, 60, logger);
+        final String cookie = manager.issue("hnelson", new String[] { "user" });
+        final int macStart = cookie.lastIndexOf('.') + 1;
+        final byte[] mac = DatatypeConverter.parseBase64Binary(cookie.substring(macStart));
+        mac[0] ^= 1;
+        assertNull(manager.verify(header(cookie.substring(0, macStart) + DatatypeConverter.printBase64Binary(mac))));
+        assertNull(manager.verify(header(cookie.substring(0, macStart))));
+        assertNull(manager.verify(header(cookie.substring(0, macStart) + "%%%")));
+    }
+
+    @Test
+    public void testMalformedCookiesAreRejected() {
+        final SessionCookieManager manager = new SessionCookieManager(new String[] { KEY_A }, 60, logger);
+        assertNull(manager.verify(header("")));
+        assertNull(manager.verify(header("...")));
+        assertNull(manager.verify(header("abc")));
+        assertNull(manager.verify(header(".1.2.3")));
+    }
+
+    @Test
+    public void testCookieSignedWithUnknownKeyIsRejected() throws Exception {
+        final SessionCookieManager manager = new SessionCookieManager(new String[] { KEY_A }, 60, logger);
+        final long future = System.currentTimeMillis() + 60000;
+        assertNull(manager.verify(header(sign(KEY_B, encode("hnelson") + "." + future + "." + encode("admin")))));
+    }
+
+    @Test
+    public void testKeyRotation() {
+        final SessionCookieManager old = new SessionCookieManager(new String[] { KEY_A }, 60, logger);
+        final SessionCookieManager rotated = new SessionCookieManager(new String[] { KEY_B, KEY_A }, 60, logger);
+        final SessionCookieManager retired = new SessionCookieManager(new String[] { KEY_B }, 60, logger);
+
+        // cookies of the old key stay valid while it is configured as a secondary key
+        final String oldCookie = old.issue("hnelson", new String[] { "admin" });
+        assertNotNull(rotated.verify(header(oldCookie)));
+        assertNull(retired.verify(header(oldCookie)));
+
+        // new cookies are signed with the primary key only
+        final String newCookie = rotated.issue("hnelson", new String[] { "admin" });
+        assertNotNull(retired.verify(header(newCookie)));
+        assertNull(old.verify(header(newCookie)));
+    }
+
+    @Test
+    public void testShortKeysAreRefused() {
+        try {
+            new SessionCookieManager(new String[] { "short" }, 60, logger);
+            throw new AssertionError("short key accepted");
+        } catch (final ElasticsearchException e) {
+            assertTrue(e.getMessage().contains("at least"));
+        }
+        try {
+            new SessionCookieManager(new String[0], 60, logger);
+            throw new AssertionError("no key accepted");
+        } catch (final ElasticsearchException e) {
+            assertTrue(e.getMessage().contains("no signing keys"));
+        }
+    }
+
+    private static String header(final String cookie) {
+        return KrbConstants.SESSION_COOKIE_NAME + "=" + cookie;
+    }
+
+    private static String encode(final String value) {
+        return DatatypeConverter.printBase64Binary(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String sign(final String key, final String payload) throws Exception {
+        final Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(key.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+        return payload + "." + DatatypeConverter.printBase64Binary(mac.doFinal(payload.getBytes(StandardCharsets.UTF_8)));
+    }
+}
@@ -0,0 +1,237 @@
+/*
+   Copyright 2015 codecentric AG
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package de.codecentric.elasticsearch.plugin.kerberosrealm.realm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.CommunicationException;
+
+import de.codecentric.elasticsearch.plugin.kerberosrealm.support.Sid;
+
+import org.junit.Test;
+
+import com.google.common.base.Ticker;
+
+/**
+ * Drives {@link UserGroupCache} with a scripted loader, a manual clock and an executor which runs the background
+ * reloads only when the test asks for it.
+ */
+public class UserGroupCacheTests {
+
+    private static final String ALICE_DN = "CN=Alice,OU=Users,DC=example,DC=com";
+    private static final String ADMINS = "CN=Admins,OU=Groups,DC=example,DC=com";
+    private static final Sid ADMINS_SID = Sid.wrap(new byte[] { 1, 5, 0, 0, 0, 0, 0, 5, 21, 0, 0, 0, 1, 0, 0, 0, 2, 0, 0, 0, 3, 0, 0, 0,
+            0, 2, 0, 0 });
+
+    private final ManualTicker ticker = new ManualTicker();
+    private final QueuedExecutor executor = new QueuedExecutor();
+    private final ScriptedLoader loader = new ScriptedLoader();
+
+    @Test
+    public void testCachedUntilInvalidated() {
+        final UserGroupCache cache = new UserGroupCache(loader, 100, 600, 0, executor, ticker);
+        loader.groups.put("alice", groups(ALICE_DN, ADMINS));
+
+        final UserGroupCache.UserGroups first = cache.get("alice");
+        assertSame(first, cache.get("alice"));
+        assertEquals(1, loader.loads);
+
+        cache.invalidate("alice");
+        assertEquals(Arrays.asList(ADMINS), cache.get("alice").groups);
+        assertEquals(2, loader.loads);
+
+        cache.invalidateAll();
+        cache.get("alice");
+        assertEquals(3, loader.loads);
+    }
+
+    @Test
+    public void testExpiresAfterTtl() {
+        final UserGroupCache cache = new UserGroupCache(loader, 100, 600, 0, executor, ticker);
+        loader.groups.put("alice", groups(ALICE_DN, ADMINS));
+        cache.get("alice");
+
+        ticker.advance(599);
+        cache.get("alice");
+        assertEquals(1, loader.loads);
+        ticker.advance(2);
+        cache.get("alice");
+        assertEquals(2, loader.loads);
+    }
+
+    @Test
+    public void testRefreshAheadReturnsStaleGroups() {
+        final UserGroupCache cache = new UserGroupCache(loader, 100, 600, 60, executor, ticker);
+        loader.groups.put("alice", groups(ALICE_DN, ADMINS));
+        final UserGroupCache.UserGroups stale = cache.get("alice");
+
+        // within the last minute of the lifetime the read schedules a reload and does not wait for it
+        ticker.advance(545);
+        loader.groups.put("alice", groups(ALICE_DN));
+        assertSame(stale, cache.get("alice"));
+        assertEquals(1, loader.loads);
+        assertEquals(1, executor.tasks.size());
+
+        executor.runAll();
+        assertEquals(2, loader.loads);
+        assertEquals(Collections.<String>emptyList(), cache.get("alice").groups);
+
+        // the reloaded entry lives for a full ttl again
+        ticker.advance(500);
+        cache.get("alice");
+        assertEquals(2, loader.loads);
+        assertTrue(executor.tasks.isEmpty());
+    }
+
+    @Test
+    public void testFailedRefreshKeepsStaleGroups() {
+        final UserGroupCache cache = new UserGroupCache(loader, 100, 600, 60, executor, ticker);
+        loader.groups.put("alice", groups(ALICE_DN, ADMINS));
+        final UserGroupCache.UserGroups stale = cache.get("alice");
+
+        ticker.advance(545);
+        loader.failing = true;
+        cache.get("alice");
+        executor.runAll();
+        assertSame(stale, cache.get("alice"));
+    }
+
+    @Test
+    public void testFailedLoadIsNotCached() {
+        final UserGroupCache cache = new UserGroupCache(loader, 100, 600, 60, executor, ticker);
+        loader.groups.put("alice", groups(ALICE_DN, ADMINS));
+        loader.failing = true;
+        try {
+            cache.get("alice");
+            fail("the failure must not be reported as no groups");
+        } catch (final RuntimeException e) {
+            // expected
+        }
+
+        loader.failing = false;
+        assertEquals(Arrays.asList(ADMINS), cache.get("alice").groups);
+        assertEquals(2, loader.loads);
+    }
+
+    @Test
+    public void testInvalidateAffected() {
+        final UserGroupCache cache = new UserGroupCache(loader, 100, 600, 0, executor, ticker);
+        loader.groups.put("alice", groups(ALICE_DN, ADMINS));
+        loader.groups.put("bob", groups("CN=Bob,OU=Users,DC=example,DC=com"));
+        loader.groups.put("carol", new UserGroupCache.UserGroups("CN=Carol,OU=Users,DC=example,DC=com",
+                Collections.<String>emptyList(), Arrays.asList(ADMINS_SID)));
+        cache.get("alice");
+        cache.get("bob");
+        cache.get("carol");
+
+        // a change of an unrelated group
+        assertEquals(0, cache.invalidateAffected("CN=Other,DC=example,DC=com", null, Collections.<String>emptySet()));
+
+        // alice through the group DN, carol through the group SID, bob as a new member
+        final int invalidated = cache.invalidateAffected(ADMINS.toLowerCase(), ADMINS_SID,
+                new HashSet<>(Arrays.asList("cn=bob,ou=users,dc=example,dc=com")));
+        assertEquals(3, invalidated);
+        cache.get("alice");
+        cache.get("bob");
+        cache.get("carol");
+        assertEquals(6, loader.loads);
+    }
+
+    @Test
+    public void testIsAffectedBy() {
+        final UserGroupCache.UserGroups alice = groups(ALICE_DN, ADMINS);
+        final Sid otherSid = Sid.wrap(new byte[] { 1, 1, 0, 0, 0, 0, 0, 5, 32, 0, 0, 0 });
+        assertTrue(alice.isAffectedBy(ALICE_DN.toUpperCase(), null, Collections.<String>emptySet()));
+        assertTrue(alice.isAffectedBy("cn=admins,ou=groups,dc=example,dc=com", null, Collections.<String>emptySet()));
+        assertTrue(alice.isAffectedBy("CN=Other", null, Collections.singleton(ALICE_DN.toLowerCase())));
+        assertFalse(alice.isAffectedBy("CN=Other", otherSid, Collections.singleton("cn=bob")));
+
+        final UserGroupCache.UserGroups sids = new UserGroupCache.UserGroups(null, Collections.<String>emptyList(),
+                Arrays.asList(ADMINS_SID));
+        assertTrue(sids.isAffectedBy("CN=Other", ADMINS_SID, Collections.<String>emptySet()));
+        assertFalse(sids.isAffectedBy("CN=Other", otherSid, Collections.<String>emptySet()));
+        // a principal which was not found has no DN to match
+        assertFalse(sids.isAffectedBy(null, null, Collections.singleton("cn=alice")));
+    }
+
+    private static UserGroupCache.UserGroups groups(String dn, String... groups) {
+        return new UserGroupCache.UserGroups(dn, Arrays.asList(groups), Collections.<Sid>emptyList());
+    }
+
+    /**
+     * Answers with the groups it was given or fails like an unreachable domain controller.
+     */
+    static final class ScriptedLoader implements UserGroupCache.Loader {
+        final Map<String, UserGroupCache.UserGroups> groups = new HashMap<>();
+        volatile boolean failing;
+        int loads;
+
+        @Override
+        public UserGroupCache.UserGroups load(String principal) throws Exception {
+            loads++;
+            if (failing) {
+                throw new CommunicationException("connection reset");
+            }
+            return groups.get(principal);
+        }
+    }
+
+    static final class ManualTicker extends Ticker {
+        private long nanos;
+
+        void advance(long seconds) {
+            nanos += TimeUnit.SECONDS.toNanos(seconds);
+        }
+
+        @Override
+        public long read() {
+            return nanos;
+        }
+    }
+
+    /**
+     * Keeps the background reloads until {@link #runAll()}, on the calling thread.
+     */
+    static final class QueuedExecutor implements Executor {
+        final Queue<Runnable> tasks = new ArrayDeque<>();
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        void runAll() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/*
+   Copyright 2015 codecentric AG
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package de.codecentric.elasticsearch.plugin.kerberosrealm.rest;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import de.codecentric.elasticsearch.plugin.kerberosrealm.support.KrbConstants;
+
+public class SessionCookieRestFilterTests {
+
+    @Test
+    public void testCookieIsHttpOnly() {
+        assertEquals(KrbConstants.SESSION_COOKIE_NAME + "=abc.1.def.ghi; Path=/; HttpOnly",
+                SessionCookieRestFilter.setCookieHeader("abc.1.def.ghi", false));
+    }
+
+    @Test
+    public void testCookieIsSecureWithSsl() {
+        assertEquals(KrbConstants.SESSION_COOKIE_NAME + "=abc.1.def.ghi; Path=/; HttpOnly; Secure",
+                SessionCookieRestFilter.setCookieHeader("abc.1.def.ghi", true));
+    }
+}
@@ -0,0 +1,91 @@
+/*
+   Copyright 2015 codecentric AG
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+   Author: Hendrik Saly <hendrik.saly@codecentric.de>
+ */
+package de.codecentric.elasticsearch.plugin.kerberosrealm.support;
+
+import java.util.Locale;
+import java.util.Random;
+
+import javax.xml.bind.DatatypeConverter;
+
+/**
+ * Compares the Negotiate header parsing of {@link HeaderUtil} and {@link Base64Util} with the former trim, lower
+ * case, substring and {@link DatatypeConverter} decoding. Not part of the test suite and without assertions, the
+ * correctness is checked by {@link Base64UtilTests}. Run it with the test classpath:
+ *
+ * <pre>
+ * java -cp target/classes:target/test-classes:... de.codecentric.elasticsearch.plugin.kerberosrealm.support.Base64UtilBenchmark [tokenBytes] [iterations]
+ * </pre>
+ *
+ * A service ticket with a PAC is a few kB, 2048 bytes are used by default.
+ */
+public final class Base64UtilBenchmark {
+
+    private static final int ROUNDS = 5;
+
+    // consumed results, keeps the JIT from dropping the decoding
+    private static long sink;
+
+    private Base64UtilBenchmark() {
+    }
+
+    public static void main(final String[] args) {
+        final int tokenBytes = args.length > 0 ? Integer.parseInt(args[0]) : 2048;
+        final int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+
+        final byte[] token = new byte[tokenBytes];
+        new Random(42).nextBytes(token);
+        final String header = "Negotiate " + DatatypeConverter.printBase64Binary(token);
+
+        System.out.println(String.format(Locale.ROOT, "%d byte token, %d iterations per round", tokenBytes, iterations));
+        for (int round = 0; round < ROUNDS; round++) {
+            // the first rounds are warm up, only the later ones are meaningful
+            final long baseline = baseline(header, iterations);
+            final long current = current(header, iterations);
+            System.out.println(String.format(Locale.ROOT, "round %d: baseline %.1f ns/op, Base64Util %.1f ns/op", round,
+                    (double) baseline / iterations, (double) current / iterations));
+        }
+        System.out.println("(" + sink + ")");
+    }
+
+    private static long baseline(final String header, final int iterations) {
+        final long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            if (!header.trim().toLowerCase(Locale.ENGLISH).startsWith("negotiate ")) {
+                throw new IllegalArgumentException("Bad 'Authorization' header");
+            }
+            final byte[] decoded = DatatypeConverter.parseBase64Binary(header.substring(10));
+            sink += decoded[decoded.length - 1];
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long current(final String header, final int iterations) {
+        final long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            final int tokenStart = HeaderUtil.negotiateTokenStart(header);
+            if (tokenStart < 0) {
+                throw new IllegalArgumentException("Bad 'Authorization' header");
+            }
+            final int tokenEnd = HeaderUtil.trimmedEnd(header, tokenStart);
+            final byte[] decoded = Base64Util.threadLocalBuffer(Base64Util.maxDecodedLength(tokenEnd - tokenStart));
+            final int length = Base64Util.decode(header, tokenStart, tokenEnd, decoded);
+            sink += decoded[length - 1];
+        }
+        return System.nanoTime() - start;
+    }
+}
@@ -0,0 +1,109 @@
+/*
+   Copyright 2015 codecentric AG
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+   Author: Hendrik Saly <hendrik.saly@codecentric.de>
+ */
+package de.codecentric.elasticsearch.plugin.kerberosrealm.support;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+import javax.xml.bind.DatatypeConverter;
+
+import org.junit.Test;
+
+/**
+ * Checks {@link Base64Util} and {@link HeaderUtil} against the JDK codec and the former header parsing.
+ */
+public class Base64UtilTests {
+
+    private final Random random = new Random(42);
+
+    @Test
+    public void testRoundTripMatchesDatatypeConverter() {
+        for (int length = 0; length < 300; length++) {
+            final byte[] data = randomBytes(length);
+            final String encoded = Base64Util.encode(data);
+            assertEquals(DatatypeConverter.printBase64Binary(data), encoded);
+
+            final byte[] buffer = Base64Util.threadLocalBuffer(Base64Util.maxDecodedLength(encoded.length()));
+            final int decodedLength = Base64Util.decode(encoded, 0, encoded.length(), buffer);
+            assertArrayEquals(data, Arrays.copyOf(buffer, decodedLength));
+        }
+    }
+
+    @Test
+    public void testDecodeWithoutPadding() {
+        final byte[] buffer = new byte[16];
+        assertEquals(1, Base64Util.decode("YQ", 0, 2, buffer));
+        assertEquals('a', buffer[0]);
+        assertEquals(2, Base64Util.decode("YWI", 0, 3, buffer));
+    }
+
+    @Test
+    public void testDecodeRejectsInvalidInput() {
+        final byte[] buffer = new byte[16];
+        assertEquals(-1, Base64Util.decode("YW I=", 0, 5, buffer));
+        assertEquals(-1, Base64Util.decode("YQ=a", 0, 4, buffer));
+        assertEquals(-1, Base64Util.decode("Y", 0, 1, buffer));
+        assertEquals(-1, Base64Util.decode("YWJj\u00e4", 0, 5, buffer));
+    }
+
+    @Test
+    public void testNegotiateTokenStart() {
+        assertEquals(10, HeaderUtil.negotiateTokenStart("Negotiate YIIB"));
+        assertEquals(10, HeaderUtil.negotiateTokenStart("nEGOTIATE YIIB"));
+        assertEquals(12, HeaderUtil.negotiateTokenStart("  Negotiate YIIB"));
+        assertEquals(12, HeaderUtil.negotiateTokenStart("Negotiate   YIIB"));
+        assertEquals(-1, HeaderUtil.negotiateTokenStart("Negotiate"));
+        assertEquals(-1, HeaderUtil.negotiateTokenStart("Negotiate_c YIIB"));
+        assertEquals(-1, HeaderUtil.negotiateTokenStart("Basic dXNlcjpwYXNz"));
+        assertEquals(14, HeaderUtil.trimmedEnd("Negotiate YIIB \t", 10));
+    }
+
+    @Test
+    public void testParseMatchesLegacyParsing() {
+        // typical AD tickets with a PAC are a few kilobytes
+        final String header = "Negotiate " + DatatypeConverter.printBase64Binary(randomBytes(6 * 1024));
+        final byte[] expected = parseLegacy(header);
+        final int length = parse(header);
+        assertArrayEquals(expected, Arrays.copyOf(Base64Util.threadLocalBuffer(length), length));
+    }
+
+    // header handling as it was done before HeaderUtil and Base64Util
+    private static byte[] parseLegacy(final String header) {
+        if (!header.trim().toLowerCase(Locale.ENGLISH).startsWith("negotiate ")) {
+            throw new IllegalArgumentException();
+        }
+        return DatatypeConverter.parseBase64Binary(header.substring(10));
+    }
+
+    private static int parse(final String header) {
+        final int start = HeaderUtil.negotiateTokenStart(header);
+        final int end = HeaderUtil.trimmedEnd(header, start);
+        final byte[] buffer = Base64Util.threadLocalBuffer(Base64Util.maxDecodedLength(end - start));
+        return Base64Util.decode(header, start, end, buffer);
+    }
+
+    private byte[] randomBytes(final int length) {
+        final byte[] data = new byte[length];
+        random.nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,478 @@
+/*
+   Copyright 2015 codecentric AG
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package de.codecentric.elasticsearch.plugin.kerberosrealm.support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.sun.security.jgss.AuthorizationDataEntry;
+
+/**
+ * Decodes PACs laid out like those of an Active Directory KDC (MS-PAC 2.4 to 2.5, NDR type serialization with the
+ * logon info, client info and both signature buffers, wrapped in AD-IF-RELEVANT) and checks that malformed ones
+ * fail with an {@link IllegalArgumentException} instead of yielding a partial group list.
+ */
+public class PacUtilTests {
+
+    private static final int AD_IF_RELEVANT = 1;
+    private static final int AD_WIN2K_PAC = 128;
+
+    private static final String DOMAIN = "S-1-5-21-1004336348-1177238915-682003330";
+    private static final String RESOURCE_DOMAIN = "S-1-5-21-2222222222-3333333333-444444444";
+
+    @Test
+    public void testGroupsOfTheLogonDomain() {
+        final List<Sid> sids = decode(ifRelevant(new Pac().pac()));
+        assertEquals(Arrays.asList(DOMAIN + "-513", DOMAIN + "-1108", DOMAIN + "-1109"), strings(sids));
+    }
+
+    @Test
+    public void testExtraSids() {
+        final Pac pac = new Pac();
+        pac.extraSids = new String[] { "S-1-18-1", DOMAIN + "-1110", "S-1-5-21-9-8-7-1500" };
+        assertEquals(Arrays.asList(DOMAIN + "-513", DOMAIN + "-1108", DOMAIN + "-1109", "S-1-18-1", DOMAIN + "-1110",
+                "S-1-5-21-9-8-7-1500"), strings(decode(ifRelevant(pac.pac()))));
+    }
+
+    @Test
+    public void testResourceGroups() {
+        final Pac pac = new Pac();
+        pac.extraSids = new String[] { "S-1-18-1" };
+        pac.resourceDomain = RESOURCE_DOMAIN;
+        pac.resourceRids = new long[] { 1201, 1202 };
+        assertEquals(Arrays.asList(DOMAIN + "-513", DOMAIN + "-1108", DOMAIN + "-1109", "S-1-18-1", RESOURCE_DOMAIN + "-1201",
+                RESOURCE_DOMAIN + "-1202"), strings(decode(ifRelevant(pac.pac()))));
+    }
+
+    @Test
+    public void testEmptyAndMissingStrings() {
+        final Pac pac = new Pac();
+        pac.names = new String[] { "alice", null, "", null, "\\\\fs1\\home\\alice", "H:" };
+        pac.logonServer = null;
+        assertEquals(Arrays.asList(DOMAIN + "-513", DOMAIN + "-1108", DOMAIN + "-1109"), strings(decode(ifRelevant(pac.pac()))));
+    }
+
+    @Test
+    public void testPrimaryGroupOnly() {
+        final Pac pac = new Pac();
+        pac.primaryGroup = 1115;
+        pac.groupRids = new long[0];
+        assertEquals(Arrays.asList(DOMAIN + "-1115"), strings(decode(ifRelevant(pac.pac()))));
+    }
+
+    @Test
+    public void testUnwrappedPac() {
+        final List<Sid> sids = PacUtil.getGroupSids(new AuthorizationDataEntry[] {
+                new AuthorizationDataEntry(AD_WIN2K_PAC, new Pac().pac()) });
+        assertEquals(3, sids.size());
+    }
+
+    @Test
+    public void testNoPac() {
+        assertNull(PacUtil.getGroupSids(new AuthorizationDataEntry[0]));
+        // AD-IF-RELEVANT holding something else, e.g. the restrictions of an MIT KDC
+        final byte[] other = tlv(0x30, tlv(0x30, tlv(0xA0, new byte[] { 0x02, 0x01, (byte) 0x8D }), tlv(0xA1, tlv(0x04, new byte[8]))));
+        assertNull(decode(new AuthorizationDataEntry(AD_IF_RELEVANT, other)));
+        // PAC without logon info
+        final Pac pac = new Pac();
+        pac.withLogonInfo = false;
+        assertNull(decode(ifRelevant(pac.pac())));
+    }
+
+    @Test
+    public void testTruncatedLogonInfoIsRejected() {
+        final Pac pac = new Pac();
+        pac.extraSids = new String[] { "S-1-18-1", DOMAIN + "-1110" };
+        pac.resourceDomain = RESOURCE_DOMAIN;
+        pac.resourceRids = new long[] { 1201, 1202 };
+        final int length = pac.logonInfo().length;
+        pac.logonInfoSize = length;
+        assertEquals(7, decode(ifRelevant(pac.pac())).size());
+        for (int size = 0; size < length; size++) {
+            pac.logonInfoSize = size;
+            assertRejected(pac.pac());
+        }
+    }
+
+    @Test
+    public void testTruncatedPacIsRejectedUnlessLogonInfoIsComplete() {
+        final byte[] pac = new Pac().pac();
+        for (int length = 0; length < pac.length; length++) {
+            final byte[] truncated = Arrays.copyOf(pac, length);
+            try {
+                final List<Sid> sids = PacUtil.getGroupSids(new AuthorizationDataEntry[] { new AuthorizationDataEntry(AD_WIN2K_PAC, truncated) });
+                // only the buffers behind the logon info may be cut off
+                assertEquals(3, sids.size());
+            } catch (final IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testBufferOutOfBoundsIsRejected() {
+        final Pac pac = new Pac();
+        for (final long offset : new long[] { 4096, 0xFFFFFFFFL, 0x7FFFFFFFFFFFFFF0L, 0x8000000000000000L, -8 }) {
+            pac.logonInfoOffset = offset;
+            assertRejected(pac.pac());
+        }
+        pac.logonInfoOffset = -1;
+        pac.logonInfoSize = 0xFFFFFFF0L;
+        assertRejected(pac.pac());
+    }
+
+    @Test
+    public void testHugeCountsAreRejected() {
+        final Pac pac = new Pac();
+        pac.groupCountOverride = 0x20000000L;
+        assertRejected(pac.pac());
+
+        final Pac extra = new Pac();
+        extra.extraSids = new String[] { "S-1-18-1" };
+        extra.extraSidCountOverride = 0xFFFFFFFFL;
+        assertRejected(extra.pac());
+
+        final Pac strings = new Pac();
+        strings.stringCountOverride = 0x7FFFFFFFL;
+        assertRejected(strings.pac());
+    }
+
+    @Test
+    public void testMalformedSidIsRejected() {
+        final Pac pac = new Pac();
+        pac.sidCountMismatch = true;
+        assertRejected(pac.pac());
+    }
+
+    @Test
+    public void testCorruptedPacFailsInAControlledWay() {
+        final Pac pac = new Pac();
+        pac.extraSids = new String[] { "S-1-18-1", DOMAIN + "-1110" };
+        pac.resourceDomain = RESOURCE_DOMAIN;
+        pac.resourceRids = new long[] { 1201 };
+        final byte[] original = ifRelevant(pac.pac()).getData();
+        final Random random = new Random(42);
+        for (int i = 0; i < 20000; i++) {
+            final byte[] corrupt = original.clone();
+            final int changes = 1 + random.nextInt(4);
+            for (int c = 0; c < changes; c++) {
+                corrupt[random.nextInt(corrupt.length)] = (byte) random.nextInt(256);
+            }
+            try {
+                decode(new AuthorizationDataEntry(AD_IF_RELEVANT, corrupt));
+            } catch (final IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    private static void assertRejected(final byte[] pac) {
+        try {
+            final List<Sid> sids = decode(ifRelevant(pac));
+            throw new AssertionError("malformed PAC accepted: " + sids);
+        } catch (final IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private static List<Sid> decode(final AuthorizationDataEntry entry) {
+        return PacUtil.getGroupSids(new AuthorizationDataEntry[] { new AuthorizationDataEntry(2, new byte[] { 1, 2, 3 }), entry });
+    }
+
+    private static List<String> strings(final List<Sid> sids) {
+        final List<String> strings = new ArrayList<>();
+        for (final Sid sid : sids) {
+            strings.add(sid.toString());
+        }
+        return strings;
+    }
+
+    // AD-IF-RELEVANT ::= AuthorizationData ::= SEQUENCE OF SEQUENCE { ad-type [0] Int32, ad-data [1] OCTET STRING }
+    private static AuthorizationDataEntry ifRelevant(final byte[] pac) {
+        final byte[] type = { 0x02, 0x02, 0x00, (byte) AD_WIN2K_PAC };
+        return new AuthorizationDataEntry(AD_IF_RELEVANT, tlv(0x30, tlv(0x30, tlv(0xA0, type), tlv(0xA1, tlv(0x04, pac)))));
+    }
+
+    private static byte[] tlv(final int tag, final byte[]... values) {
+        final ByteArrayOutputStream value = new ByteArrayOutputStream();
+        for (final byte[] v : values) {
+            value.write(v, 0, v.length);
+        }
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(tag);
+        final int length = value.size();
+        if (length < 0x80) {
+            out.write(length);
+        } else if (length < 0x100) {
+            out.write(0x81);
+            out.write(length);
+        } else {
+            out.write(0x82);
+            out.write(length >>> 8);
+            out.write(length);
+        }
+        out.write(value.toByteArray(), 0, length);
+        return out.toByteArray();
+    }
+
+    /**
+     * A PAC as issued by an AD KDC for a user of the domain, with knobs to produce malformed ones.
+     */
+    private static final class Pac {
+        String[] names = { "alice", "Alice Example", "", "", "", "" };
+        String logonServer = "DC1";
+        String logonDomainName = "EXAMPLE";
+        long primaryGroup = 513;
+        long[] groupRids = { 513, 1108, 1109 };
+        String[] extraSids;
+        String resourceDomain;
+        long[] resourceRids;
+        boolean withLogonInfo = true;
+
+        long logonInfoOffset = -1;
+        long logonInfoSize = -1;
+        long groupCountOverride = -1;
+        long extraSidCountOverride = -1;
+        long stringCountOverride = -1;
+        boolean sidCountMismatch;
+
+        // PACTYPE followed by the buffers, each 8 byte aligned
+        byte[] pac() {
+            final List<long[]> infos = new ArrayList<>();
+            final List<byte[]> buffers = new ArrayList<>();
+            if (withLogonInfo) {
+                buffers.add(logonInfo());
+                infos.add(new long[] { 1 });
+            }
+            // PAC_CLIENT_INFO: ClientId, NameLength, Name
+            final Ndr clientInfo = new Ndr();
+            clientInfo.u32(0x9E4B1A80L);
+            clientInfo.u32(0x01D1F1A3L);
+            clientInfo.u16(10);
+            clientInfo.bytes("alice".getBytes(StandardCharsets.UTF_16LE));
+            buffers.add(clientInfo.toByteArray());
+            infos.add(new long[] { 10 });
+            // PAC_SIGNATURE_DATA of the server and the KDC: SignatureType (HMAC_SHA1_96_AES256), Signature
+            for (final int type : new int[] { 6, 7 }) {
+                final Ndr signature = new Ndr();
+                signature.u32(16);
+                signature.bytes(new byte[12]);
+                buffers.add(signature.toByteArray());
+                infos.add(new long[] { type });
+            }
+
+            final Ndr pac = new Ndr();
+            pac.u32(buffers.size());
+            pac.u32(0);
+            long offset = 8 + 16 * buffers.size();
+            final long[] offsets = new long[buffers.size()];
+            for (int i = 0; i < buffers.size(); i++) {
+                offsets[i] = offset;
+                offset += (buffers.get(i).length + 7) / 8 * 8;
+            }
+            for (int i = 0; i < buffers.size(); i++) {
+                final boolean logon = infos.get(i)[0] == 1;
+                pac.u32(infos.get(i)[0]);
+                pac.u32(logon && logonInfoSize >= 0 ? logonInfoSize : buffers.get(i).length);
+                final long bufferOffset = logon && logonInfoOffset != -1 ? logonInfoOffset : offsets[i];
+                pac.u32(bufferOffset & 0xFFFFFFFFL);
+                pac.u32(bufferOffset >>> 32);
+            }
+            for (final byte[] buffer : buffers) {
+                pac.bytes(buffer);
+                pac.align(8);
+            }
+            return pac.toByteArray();
+        }
+
+        // KERB_VALIDATION_INFO with NDR type serialization version 1 headers
+        byte[] logonInfo() {
+            final Ndr r = new Ndr();
+            // common type header: version 1, little endian, header length 8, filler
+            r.bytes(new byte[] { 0x01, 0x10, 0x08, 0x00 });
+            r.u32(0xCCCCCCCCL);
+            // private header: length of the serialized data (patched below), filler
+            r.u32(0);
+            r.u32(0);
+            r.pointer(true);
+
+            for (int i = 0; i < 6; i++) {
+                // LogonTime, LogoffTime, KickOffTime, PasswordLastSet, PasswordCanChange, PasswordMustChange
+                r.u32(0xFFFFFFFFL);
+                r.u32(0x7FFFFFFFL);
+            }
+            for (final String name : names) {
+                r.unicodeString(name);
+            }
+            r.u16(12); // LogonCount
+            r.u16(0); // BadPasswordCount
+            r.u32(1105); // UserId
+            r.u32(primaryGroup);
+            r.u32(groupRids.length);
+            r.pointer(groupRids.length > 0);
+            r.u32((extraSids != null ? 0x20 : 0) | (resourceDomain != null ? 0x200 : 0)); // UserFlags
+            r.bytes(new byte[16]); // UserSessionKey
+            r.unicodeString(logonServer);
+            r.unicodeString(logonDomainName);
+            r.pointer(true); // LogonDomainId
+            r.u32(0); // Reserved1
+            r.u32(0);
+            r.u32(0x210); // UserAccountControl
+            r.u32(0); // SubAuthStatus
+            r.bytes(new byte[16]); // LastSuccessfulILogon, LastFailedILogon
+            r.u32(0); // FailedILogonCount
+            r.u32(0); // Reserved3
+            r.u32(extraSids != null ? extraSids.length : 0);
+            r.pointer(extraSids != null);
+            r.pointer(resourceDomain != null);
+            r.u32(resourceRids != null ? resourceRids.length : 0);
+            r.pointer(resourceRids != null);
+
+            // referents in the order of their pointers
+            for (final String name : names) {
+                r.unicodeStringData(name, stringCountOverride);
+            }
+            if (groupRids.length > 0) {
+                r.groupMemberships(groupRids, groupCountOverride);
+            }
+            r.unicodeStringData(logonServer, -1);
+            r.unicodeStringData(logonDomainName, -1);
+            r.sid(DOMAIN, sidCountMismatch);
+            if (extraSids != null) {
+                // conformant array of KERB_SID_AND_ATTRIBUTES, the SIDs follow the array
+                r.u32(extraSidCountOverride >= 0 ? extraSidCountOverride : extraSids.length);
+                for (int i = 0; i < extraSids.length; i++) {
+                    r.pointer(true);
+                    r.u32(7); // SE_GROUP_MANDATORY | SE_GROUP_ENABLED_BY_DEFAULT | SE_GROUP_ENABLED
+                }
+                for (final String sid : extraSids) {
+                    r.sid(sid, false);
+                }
+            }
+            if (resourceDomain != null) {
+                r.sid(resourceDomain, false);
+            }
+            if (resourceRids != null) {
+                r.groupMemberships(resourceRids, -1);
+            }
+            // cbBufferSize does not include the padding up to the next buffer
+            final byte[] bytes = r.toByteArray();
+            final int length = bytes.length - 16;
+            bytes[8] = (byte) length;
+            bytes[9] = (byte) (length >>> 8);
+            return bytes;
+        }
+    }
+
+    /**
+     * Little endian NDR writer, alignment is relative to the start of the buffer.
+     */
+    private static final class Ndr {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private long referent = 0x20000;
+
+        void align(final int alignment) {
+            while (out.size() % alignment != 0) {
+                out.write(0);
+            }
+        }
+
+        void bytes(final byte[] bytes) {
+            out.write(bytes, 0, bytes.length);
+        }
+
+        void u16(final int value) {
+            align(2);
+            out.write(value);
+            out.write(value >>> 8);
+        }
+
+        void u32(final long value) {
+            align(4);
+            for (int i = 0; i < 4; i++) {
+                out.write((int) (value >>> (8 * i)));
+            }
+        }
+
+        void pointer(final boolean present) {
+            if (present) {
+                u32(referent);
+                referent += 4;
+            } else {
+                u32(0);
+            }
+        }
+
+        // RPC_UNICODE_STRING: Length and MaximumLength in bytes, pointer to the characters
+        void unicodeString(final String value) {
+            final int length = value == null ? 0 : value.length() * 2;
+            u16(length);
+            u16(length);
+            pointer(value != null);
+        }
+
+        // conformant varying array of WCHAR: MaxCount, Offset, ActualCount, characters
+        void unicodeStringData(final String value, final long countOverride) {
+            if (value == null) {
+                return;
+            }
+            u32(value.length());
+            u32(0);
+            u32(countOverride >= 0 ? countOverride : value.length());
+            bytes(value.getBytes(StandardCharsets.UTF_16LE));
+        }
+
+        void groupMemberships(final long[] rids, final long countOverride) {
+            u32(countOverride >= 0 ? countOverride : rids.length);
+            for (final long rid : rids) {
+                u32(rid);
+                u32(7);
+            }
+        }
+
+        // RPC_SID: MaxCount, Revision, SubAuthorityCount, IdentifierAuthority (big endian), SubAuthority[]
+        void sid(final String sid, final boolean countMismatch) {
+            final String[] parts = sid.split("-");
+            final int subAuthorities = parts.length - 3;
+            u32(countMismatch ? subAuthorities + 1 : subAuthorities);
+            out.write(Integer.parseInt(parts[1]));
+            out.write(subAuthorities);
+            final long authority = Long.parseLong(parts[2]);
+            for (int i = 5; i >= 0; i--) {
+                out.write((int) (authority >>> (8 * i)));
+            }
+            for (int i = 3; i < parts.length; i++) {
+                final long value = Long.parseLong(parts[i]);
+                for (int b = 0; b < 4; b++) {
+                    out.write((int) (value >>> (8 * b)));
+                }
+            }
+        }
+
+        byte[] toByteArray() {
+            return out.toByteArray();
+        }
+    }
+}
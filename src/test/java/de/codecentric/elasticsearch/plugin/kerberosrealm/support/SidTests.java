@@ -0,0 +1,81 @@
+/*
+   Copyright 2015 codecentric AG
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package de.codecentric.elasticsearch.plugin.kerberosrealm.support;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class SidTests {
+
+    // S-1-5-21-1-2-3
+    private static final byte[] DOMAIN = new byte[] { 1, 4, 0, 0, 0, 0, 0, 5, 21, 0, 0, 0, 1, 0, 0, 0, 2, 0, 0, 0, 3, 0, 0, 0 };
+    // S-1-5-21-1-2-3-1105
+    private static final byte[] GROUP = new byte[] { 1, 5, 0, 0, 0, 0, 0, 5, 21, 0, 0, 0, 1, 0, 0, 0, 2, 0, 0, 0, 3, 0, 0, 0, 0x51, 0x04,
+            0, 0 };
+
+    @Test
+    public void testRegionEqualsCopy() {
+        final byte[] buffer = new byte[GROUP.length + 10];
+        System.arraycopy(GROUP, 0, buffer, 5, GROUP.length);
+        final Sid region = Sid.wrap(buffer, 5, GROUP.length);
+        final Sid copy = Sid.wrap(GROUP.clone());
+        assertEquals(copy, region);
+        assertEquals(copy.hashCode(), region.hashCode());
+        assertArrayEquals(GROUP, region.toByteArray());
+
+        // a role index keyed by the objectSid is hit by SIDs from tokenGroups or the PAC
+        final Map<Sid, String> index = new HashMap<>();
+        index.put(copy, "admin");
+        assertEquals("admin", index.get(region));
+    }
+
+    @Test
+    public void testAppendRid() {
+        assertEquals(Sid.wrap(GROUP), Sid.append(Sid.wrap(DOMAIN), 1105));
+        assertFalse(Sid.wrap(GROUP).equals(Sid.append(Sid.wrap(DOMAIN), 1106)));
+        assertFalse(Sid.wrap(GROUP).equals(Sid.wrap(DOMAIN)));
+    }
+
+    @Test
+    public void testToString() {
+        assertEquals("S-1-5-21-1-2-3-1105", Sid.wrap(GROUP).toString());
+        assertEquals("S-1-5-21-1-2-3", Sid.wrap(DOMAIN).toString());
+    }
+
+    @Test
+    public void testMalformed() {
+        try {
+            // claims five sub authorities but has four
+            Sid.wrap(GROUP, 0, DOMAIN.length);
+            fail("the length does not match the sub authority count");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            Sid.wrap(new byte[] { 1, 0, 0 });
+            fail("shorter than the header");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/*
+   Copyright 2015 codecentric AG
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package de.codecentric.elasticsearch.plugin.kerberosrealm.support;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Checks that the authenticator of an AP-REQ is found whatever it is wrapped in, so that the replay cache sees the
+ * same key for the same AP-REQ.
+ */
+public class SpnegoUtilTests {
+
+    private static final byte[] SPNEGO_OID = { 0x2B, 0x06, 0x01, 0x05, 0x05, 0x02 };
+    private static final byte[] KRB5_OID = { 0x2A, (byte) 0x86, 0x48, (byte) 0x86, (byte) 0xF7, 0x12, 0x01, 0x02, 0x02 };
+    private static final byte[] MS_KRB5_OID = { 0x2A, (byte) 0x86, 0x48, (byte) 0x82, (byte) 0xF7, 0x12, 0x01, 0x02, 0x02 };
+    private static final byte[] NTLM_OID = { 0x2B, 0x06, 0x01, 0x04, 0x01, (byte) 0x82, 0x37, 0x02, 0x02, 0x0A };
+
+    @Test
+    public void testBareApReq() {
+        final byte[] cipher = cipher(40);
+        assertArrayEquals(cipher, authenticatorCipher(apReq(cipher, false)));
+    }
+
+    @Test
+    public void testSameApReqInEveryWrapping() {
+        // long enough for a two byte length
+        final byte[] cipher = cipher(300);
+        final byte[] apReq = apReq(cipher, true);
+        assertArrayEquals(cipher, authenticatorCipher(krb5Token(KRB5_OID, apReq)));
+        assertArrayEquals(cipher, authenticatorCipher(krb5Token(MS_KRB5_OID, apReq)));
+        assertArrayEquals(cipher, authenticatorCipher(negTokenInit(krb5Token(KRB5_OID, apReq), true)));
+        assertArrayEquals(cipher, authenticatorCipher(negTokenInit(krb5Token(MS_KRB5_OID, apReq), false)));
+        assertArrayEquals(cipher, authenticatorCipher(negTokenResp(krb5Token(KRB5_OID, apReq))));
+    }
+
+    @Test
+    public void testTokensWithoutApReq() {
+        // NegTokenResp of a later leg without response token
+        assertNull(authenticatorCipher(tlv(0xA1, tlv(0x30, tlv(0xA0, tlv(0x0A, new byte[] { 1 }))))));
+        // NTLM offered through SPNEGO
+        assertNull(authenticatorCipher(gss(SPNEGO_OID, tlv(0xA0, tlv(0x30,
+                tlv(0xA0, tlv(0x30, tlv(0x06, NTLM_OID))), tlv(0xA2, tlv(0x04, "NTLMSSP".getBytes())))))));
+        // a Kerberos AP-REP instead of an AP-REQ
+        assertNull(authenticatorCipher(gss(KRB5_OID, concat(new byte[] { 0x02, 0x00 }, tlv(0x6F, tlv(0x30))))));
+        assertNull(authenticatorCipher("NTLMSSP".getBytes()));
+    }
+
+    @Test
+    public void testApReqWithoutAuthenticatorIsRejected() {
+        final byte[] apReq = tlv(0x6E, tlv(0x30, tlv(0xA0, integer(5)), tlv(0xA1, integer(14))));
+        assertRejected(krb5Token(KRB5_OID, apReq));
+    }
+
+    @Test
+    public void testTruncatedTokensAreRejected() {
+        final byte[] token = negTokenInit(krb5Token(KRB5_OID, apReq(cipher(300), true)), true);
+        for (int length = 0; length < token.length; length++) {
+            try {
+                final byte[] cipher = SpnegoUtil.authenticatorCipher(token, 0, length);
+                if (cipher != null) {
+                    throw new AssertionError("authenticator found in a token truncated to " + length + " bytes");
+                }
+            } catch (final IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testCorruptLengthsOnlyFailWithIllegalArgument() {
+        final byte[] token = negTokenInit(krb5Token(KRB5_OID, apReq(cipher(40), false)), true);
+        for (int i = 0; i < token.length; i++) {
+            for (final int value : new int[] { 0x7F, 0x81, 0x82, 0x83, 0x84, 0xFF }) {
+                final byte[] corrupt = token.clone();
+                corrupt[i] = (byte) value;
+                try {
+                    SpnegoUtil.authenticatorCipher(corrupt, 0, corrupt.length);
+                } catch (final IllegalArgumentException e) {
+                    // expected
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testTokenInsideLargerBuffer() {
+        final byte[] cipher = cipher(40);
+        final byte[] token = negTokenInit(krb5Token(KRB5_OID, apReq(cipher, false)), true);
+        final byte[] buffer = new byte[token.length + 20];
+        Arrays.fill(buffer, (byte) 0x30);
+        System.arraycopy(token, 0, buffer, 5, token.length);
+        assertArrayEquals(cipher, SpnegoUtil.authenticatorCipher(buffer, 5, token.length));
+        assertRejected(Arrays.copyOf(token, token.length - 1));
+    }
+
+    private static byte[] authenticatorCipher(final byte[] token) {
+        return SpnegoUtil.authenticatorCipher(token, 0, token.length);
+    }
+
+    private static void assertRejected(final byte[] token) {
+        try {
+            SpnegoUtil.authenticatorCipher(token, 0, token.length);
+            throw new AssertionError("malformed token accepted");
+        } catch (final IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private static byte[] cipher(final int length) {
+        final byte[] cipher = new byte[length];
+        for (int i = 0; i < length; i++) {
+            cipher[i] = (byte) (i * 31 + 7);
+        }
+        return cipher;
+    }
+
+    private static byte[] apReq(final byte[] cipher, final boolean withKvno) {
+        final byte[] ticket = tlv(0x61, tlv(0x30, tlv(0xA0, integer(5)), tlv(0xA1, tlv(0x1B, "EXAMPLE.COM".getBytes())),
+                tlv(0xA3, tlv(0x30, tlv(0xA0, integer(18)), tlv(0xA2, tlv(0x04, cipher(120)))))));
+        final byte[] authenticator = withKvno
+                ? tlv(0x30, tlv(0xA0, integer(18)), tlv(0xA1, integer(2)), tlv(0xA2, tlv(0x04, cipher)))
+                : tlv(0x30, tlv(0xA0, integer(18)), tlv(0xA2, tlv(0x04, cipher)));
+        return tlv(0x6E, tlv(0x30, tlv(0xA0, integer(5)), tlv(0xA1, integer(14)), tlv(0xA2, tlv(0x03, new byte[] { 0, 0x20, 0, 0, 0 })),
+                tlv(0xA3, ticket), tlv(0xA4, authenticator)));
+    }
+
+    private static byte[] krb5Token(final byte[] oid, final byte[] apReq) {
+        return gss(oid, concat(new byte[] { 0x01, 0x00 }, apReq));
+    }
+
+    private static byte[] negTokenInit(final byte[] mechToken, final boolean withMic) {
+        final byte[] mechTypes = tlv(0xA0, tlv(0x30, tlv(0x06, KRB5_OID), tlv(0x06, MS_KRB5_OID)));
+        final byte[] init = withMic
+                ? tlv(0x30, mechTypes, tlv(0xA2, tlv(0x04, mechToken)), tlv(0xA3, tlv(0x04, cipher(16))))
+                : tlv(0x30, mechTypes, tlv(0xA2, tlv(0x04, mechToken)));
+        return gss(SPNEGO_OID, tlv(0xA0, init));
+    }
+
+    private static byte[] negTokenResp(final byte[] responseToken) {
+        return tlv(0xA1, tlv(0x30, tlv(0xA0, tlv(0x0A, new byte[] { 1 })), tlv(0xA1, tlv(0x06, KRB5_OID)),
+                tlv(0xA2, tlv(0x04, responseToken))));
+    }
+
+    private static byte[] gss(final byte[] oid, final byte[] inner) {
+        return tlv(0x60, tlv(0x06, oid), inner);
+    }
+
+    private static byte[] integer(final int value) {
+        return tlv(0x02, new byte[] { (byte) value });
+    }
+
+    private static byte[] tlv(final int tag, final byte[]... values) {
+        final byte[] value = concat(values);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(tag);
+        if (value.length < 0x80) {
+            out.write(value.length);
+        } else if (value.length < 0x100) {
+            out.write(0x81);
+            out.write(value.length);
+        } else {
+            out.write(0x82);
+            out.write(value.length >>> 8);
+            out.write(value.length);
+        }
+        out.write(value, 0, value.length);
+        return out.toByteArray();
+    }
+
+    private static byte[] concat(final byte[]... values) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (final byte[] value : values) {
+            out.write(value, 0, value.length);
+        }
+        return out.toByteArray();
+    }
+}